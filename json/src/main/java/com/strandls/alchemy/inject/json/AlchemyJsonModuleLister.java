@@ -16,6 +16,7 @@
 
 package com.strandls.alchemy.inject.json;
 
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -24,10 +25,14 @@ import java.util.Set;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.reflections.ReflectionUtils;
+
 import com.fasterxml.jackson.databind.Module;
 import com.google.inject.Injector;
 import com.strandls.alchemy.inject.AlchemyModule.Environment;
+import com.strandls.alchemy.inject.AlchemyModuleIndex;
 import com.strandls.alchemy.reflect.JavaTypeQueryHandler;
+import com.strandls.alchemy.reflect.TypeHandle;
 
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
@@ -52,6 +57,11 @@ public class AlchemyJsonModuleLister {
      */
     private final JavaTypeQueryHandler typeQueryHandler;
 
+    /**
+     * Compile time index of modules, read for the context class loader.
+     */
+    private final AlchemyModuleIndex moduleIndex = new AlchemyModuleIndex();
+
     /**
      * Get all guice {@link Module}s for a give environment.
      *
@@ -76,20 +86,34 @@ public class AlchemyJsonModuleLister {
      */
     public Collection<Module> getModules(@NonNull final Environment environment,
             final String packageRegex) {
-        // get all classes with Alchemy module marker
-        final Set<Class<?>> classes =
-                typeQueryHandler.getTypesAnnotatedWith(packageRegex, AlchemyJsonModule.class);
+        // get indexed classes with Alchemy json module marker
+        final Set<String> classNames =
+                moduleIndex.getTypeNames(AlchemyJsonModule.class, packageRegex, environment);
+
+        // scan classpath entries that do not have an index and are not
+        // excluded from discovery, matching against the desired environment
+        // before loading.
+        final Collection<URL> scanUrls = moduleIndex.getScanUrls(packageRegex);
+        if (!scanUrls.isEmpty()) {
+            for (final TypeHandle handle : typeQueryHandler.getTypeHandlesAnnotatedWith(
+                    scanUrls, packageRegex, AlchemyJsonModule.class)) {
+                if (handle.isAnnotated()
+                        && environment.isCompatible(handle.getAnnotationValue(Environment.class))) {
+                    classNames.add(handle.getClassName());
+                }
+            }
+        }
         final List<Module> modules = new ArrayList<Module>();
 
         log.debug("Looking for json modules in Environment: {}", environment);
-        for (final Class<?> klass : classes) {
-            final AlchemyJsonModule marker = klass.getAnnotation(AlchemyJsonModule.class);
-
-            // match against desired environment
-            if (environment.isCompatible(marker.value())) {
-                log.debug("For Environment: {} found : {}", environment, klass);
-                modules.add((Module) injector.getInstance(klass));
+        for (final String className : classNames) {
+            final Class<?> klass = ReflectionUtils.forName(className);
+            if (klass == null) {
+                log.warn("Could not load json module class {}", className);
+                continue;
             }
+            log.debug("For Environment: {} found : {}", environment, klass);
+            modules.add((Module) injector.getInstance(klass));
         }
         return modules;
     }
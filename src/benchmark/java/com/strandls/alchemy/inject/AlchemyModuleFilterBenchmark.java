@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.inject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+/**
+ * Benchmark the compiled {@link AlchemyModuleFilter} against matching every
+ * filter regex with {@link String#matches(String)} for every module. Kept in
+ * the benchmark source set, out of the tests. Run with the number of filters
+ * and of modules as arguments, by default 500 and 1000, e.g.
+ *
+ * <pre>
+ * gradle moduleFilterBenchmark
+ * java -cp ... com.strandls.alchemy.inject.AlchemyModuleFilterBenchmark 500 1000
+ * </pre>
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class AlchemyModuleFilterBenchmark {
+    /**
+     * Number of measured rounds, after as many warm up rounds.
+     */
+    private static final int ROUNDS = 20;
+
+    /**
+     * Filter the modules matching each regex in turn.
+     *
+     * @param filters
+     *            the filter regexes.
+     * @param modules
+     *            the module class names.
+     * @return the number of modules retained.
+     */
+    private static int filterByRegex(final List<String> filters, final List<String> modules) {
+        int count = 0;
+        for (final String module : modules) {
+            boolean retain = true;
+            for (final String filter : filters) {
+                if (module.matches(filter)) {
+                    retain = false;
+                    break;
+                }
+            }
+            if (retain) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Filter the modules with a compiled filter.
+     *
+     * @param filters
+     *            the filter regexes.
+     * @param modules
+     *            the module class names.
+     * @return the number of modules retained.
+     */
+    private static int filterCompiled(final List<String> filters, final List<String> modules) {
+        final AlchemyModuleFilter filter = new AlchemyModuleFilter(filters);
+        int count = 0;
+        for (final String module : modules) {
+            if (filter.apply(module)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            the number of filters and of modules.
+     */
+    public static void main(final String[] args) {
+        final int filterCount = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int moduleCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        // measure the matching, not logging each filtered out module.
+        ((Logger) LoggerFactory.getLogger(AlchemyModuleFilter.class)).setLevel(Level.WARN);
+
+        // mostly class names and package prefixes, as in typical
+        // configurations, with a few regexes.
+        final List<String> filters = new ArrayList<>();
+        for (int i = 0; i < filterCount; i++) {
+            switch (i % 10) {
+            case 0:
+                filters.add("(?i).*dummy" + i + ".*");
+                break;
+            case 1:
+            case 2:
+            case 3:
+                filters.add("com.example.pkg" + i + ".*");
+                break;
+            default:
+                filters.add("com.example.pkg" + i % 50 + ".Module" + i);
+            }
+        }
+        final List<String> modules = new ArrayList<>();
+        for (int i = 0; i < moduleCount; i++) {
+            modules.add("com.example.pkg" + i % 50 + ".Module" + i);
+        }
+
+        int expected = -1;
+        for (final boolean compiled : new boolean[] { false, true }) {
+            int count = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                count = compiled ? filterCompiled(filters, modules) : filterByRegex(filters, modules);
+            }
+            final long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                count = compiled ? filterCompiled(filters, modules) : filterByRegex(filters, modules);
+            }
+            final long time = (System.nanoTime() - start) / ROUNDS;
+            if (expected >= 0 && expected != count) {
+                throw new IllegalStateException("Retained " + count + " modules, expected "
+                        + expected);
+            }
+            expected = count;
+            System.out.printf("%-10s %d filters %d modules %6d retained %10.3f ms%n",
+                    compiled ? "compiled" : "regex", filterCount, moduleCount, count, time / 1e6);
+        }
+    }
+}
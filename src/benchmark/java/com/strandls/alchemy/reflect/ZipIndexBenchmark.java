@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.reflections.vfs.Vfs;
+
+import com.google.common.io.ByteStreams;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Benchmark reading the class files of jars through memory mapped
+ * {@link ZipIndex}es against the default {@link Vfs} url types, which stream
+ * every entry through the heap. Kept in the benchmark source set, out of the
+ * tests. Run with the jars to read as arguments, by default the jars on the
+ * class path, e.g.
+ *
+ * <pre>
+ * gradle zipIndexBenchmark
+ * java -cp ... com.strandls.alchemy.reflect.ZipIndexBenchmark a.jar b.jar
+ * </pre>
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class ZipIndexBenchmark {
+    /**
+     * Number of measured rounds, after as many warm up rounds.
+     */
+    private static final int ROUNDS = 5;
+
+    /**
+     * Read the summary of every class file of the jars.
+     *
+     * @param urls
+     *            the jar urls.
+     * @param urlTypes
+     *            the url types to read the jars with.
+     * @return the number of class files read.
+     * @throws IOException
+     */
+    private static int readClassFiles(final List<URL> urls, final Vfs.UrlType... urlTypes)
+            throws IOException {
+        int count = 0;
+        for (final URL url : urls) {
+            final Vfs.Dir dir = Vfs.fromURL(url, urlTypes);
+            try {
+                for (final Vfs.File file : dir.getFiles()) {
+                    if (!file.getRelativePath().endsWith(".class")) {
+                        continue;
+                    }
+                    final ByteBuffer data;
+                    if (file instanceof ZipIndexDir.ZipIndexFile) {
+                        data = ((ZipIndexDir.ZipIndexFile) file).getData();
+                    } else {
+                        try (InputStream in = file.openInputStream()) {
+                            data = ByteBuffer.wrap(ByteStreams.toByteArray(in));
+                        }
+                    }
+                    ClassFileSummary.read(data, true);
+                    count++;
+                }
+            } finally {
+                dir.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Measure reading the jars with the given url types.
+     *
+     * @param name
+     *            the name to report.
+     * @param urls
+     *            the jar urls.
+     * @param urlTypes
+     *            the url types.
+     * @throws IOException
+     */
+    private static void measure(final String name, final List<URL> urls,
+            final Vfs.UrlType... urlTypes) throws IOException {
+        for (int i = 0; i < ROUNDS; i++) {
+            readClassFiles(urls, urlTypes);
+        }
+        final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long allocated = threadBean.getThreadAllocatedBytes(threadId);
+        final long start = System.nanoTime();
+        int count = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            count = readClassFiles(urls, urlTypes);
+        }
+        final long time = (System.nanoTime() - start) / ROUNDS;
+        final long bytes = (threadBean.getThreadAllocatedBytes(threadId) - allocated) / ROUNDS;
+        System.out.printf("%-10s %6d classes %8.1f ms %8d KB allocated%n", name, count,
+                time / 1e6, bytes / 1024);
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            the jars, the jars on the class path if none.
+     * @throws IOException
+     */
+    public static void main(final String[] args) throws IOException {
+        final List<String> paths =
+                Arrays.asList(args.length > 0 ? args : System.getProperty("java.class.path")
+                        .split(File.pathSeparator));
+        final List<URL> urls = new ArrayList<>();
+        long size = 0;
+        for (final String path : paths) {
+            final File file = new File(path);
+            if (file.isFile() && path.endsWith(".jar")) {
+                urls.add(file.toURI().toURL());
+                size += file.length();
+            }
+        }
+        System.out.printf("%d jars, %d KB%n", urls.size(), size / 1024);
+        measure("vfs", urls, Vfs.DefaultUrlTypes.values());
+        measure("zip index", urls, ZipIndexUrlType.Jar);
+    }
+}
@@ -0,0 +1,632 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.inject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.CreationException;
+import com.google.inject.Binding;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.Stage;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.InjectionRequest;
+import com.google.inject.spi.Message;
+import com.google.inject.spi.PrivateElements;
+import com.strandls.alchemy.inject.AlchemyModule.Environment;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates injectors from the modules listed by an {@link AlchemyModuleLister}.
+ * The bindings of each module are recorded with
+ * {@link Elements#getElements(Stage, Iterable)}, concurrently with
+ * {@link #RECORDING_PARALLELISM_PARAM}, and the injector is created from the
+ * recorded elements, so that expensive {@link Module#configure} methods need
+ * not run one after the other on the calling thread.
+ * <p>
+ * Bindings keep the source they were declared at and errors reported by a
+ * module's configure method additionally name the module. Modules recorded in
+ * parallel that share an installed module, e.g. a multibinder they contribute
+ * to, are recorded again together, so that guice installs the shared module
+ * once as usual.
+ * <p>
+ * Injectors for {@link Environment#Prod} are created in
+ * {@link Stage#PRODUCTION}, all others in {@link Stage#DEVELOPMENT}. With
+ * {@link #WARMUP_PARALLELISM_PARAM} the singletons the stage creates eagerly
+ * are created in parallel, see {@link SingletonWarmup}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@Slf4j
+public class AlchemyInjectorFactory {
+    /**
+     * The phases of creating an injector asynchronously, see
+     * {@link AlchemyInjectorFactory#createAsync(Environment, String, Executor, Timings, Module...)}
+     * .
+     *
+     * @author Ashish Shinde
+     *
+     */
+    public static enum Phase {
+        /**
+         * Finding module classes in the module indexes and on the classpath.
+         */
+        Scan,
+        /**
+         * Filtering out modules and loading the module classes.
+         */
+        Filter,
+        /**
+         * Instantiating the modules.
+         */
+        Instantiate,
+        /**
+         * Recording the modules and creating the injector, including
+         * creating eager singletons.
+         */
+        Create;
+    }
+
+    /**
+     * Time taken by each phase of creating an injector. Phases are recorded
+     * as they complete and can be read while the injector is being created.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    public static final class Timings {
+        /**
+         * Time taken in nanoseconds by each completed phase.
+         */
+        private final Map<Phase, Long> nanos =
+                Collections.synchronizedMap(new EnumMap<Phase, Long>(Phase.class));
+
+        /**
+         * Run a phase and record the time it took.
+         *
+         * @param phase
+         *            the phase.
+         * @param task
+         *            the phase's work.
+         * @return the result of the phase.
+         */
+        private <T> T time(final Phase phase, final Supplier<T> task) {
+            final long start = System.nanoTime();
+            final T result = task.get();
+            nanos.put(phase, System.nanoTime() - start);
+            return result;
+        }
+
+        /**
+         * Get the time taken by a phase.
+         *
+         * @param phase
+         *            the phase.
+         * @return the time taken in milliseconds, -1 if the phase has not
+         *         completed.
+         */
+        public long getMillis(@NonNull final Phase phase) {
+            final Long phaseNanos = nanos.get(phase);
+            return phaseNanos == null ? -1 : TimeUnit.NANOSECONDS.toMillis(phaseNanos);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            for (final Phase phase : Phase.values()) {
+                final long millis = getMillis(phase);
+                if (millis >= 0) {
+                    builder.append(builder.length() > 0 ? ", " : "").append(phase).append(": ")
+                            .append(millis).append(" ms");
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The system property for the number of modules recorded in parallel. One,
+     * the default, records on the calling thread, zero or less uses one thread
+     * per processor.
+     */
+    public static final String RECORDING_PARALLELISM_PARAM =
+            "com.strandls.alchemy.inject.AlchemyInjectorFactory.recordingParallelism";
+
+    /**
+     * The system property for the number of eager singletons created in
+     * parallel. One, the default, leaves creating them to guice, zero or less
+     * uses one thread per processor.
+     */
+    public static final String WARMUP_PARALLELISM_PARAM =
+            "com.strandls.alchemy.inject.AlchemyInjectorFactory.warmupParallelism";
+
+    /**
+     * For listing the modules.
+     */
+    private final AlchemyModuleLister moduleLister;
+
+    /**
+     * The number of modules recorded in parallel, see
+     * {@link #RECORDING_PARALLELISM_PARAM}.
+     */
+    private final int recordingParallelism;
+
+    /**
+     * The number of eager singletons created in parallel, see
+     * {@link #WARMUP_PARALLELISM_PARAM}.
+     */
+    private final int warmupParallelism;
+
+    /**
+     * Create a factory listing modules with a default
+     * {@link AlchemyModuleLister}, recording modules and creating eager
+     * singletons as configured with the {@link #RECORDING_PARALLELISM_PARAM}
+     * and {@link #WARMUP_PARALLELISM_PARAM} system properties.
+     */
+    public AlchemyInjectorFactory() {
+        this(new AlchemyModuleLister(), Integer.getInteger(RECORDING_PARALLELISM_PARAM, 1),
+                Integer.getInteger(WARMUP_PARALLELISM_PARAM, 1));
+    }
+
+    /**
+     * Create a factory.
+     *
+     * @param moduleLister
+     *            the module lister.
+     * @param recordingParallelism
+     *            the number of modules recorded in parallel, see
+     *            {@link #RECORDING_PARALLELISM_PARAM}.
+     */
+    public AlchemyInjectorFactory(@NonNull final AlchemyModuleLister moduleLister,
+            final int recordingParallelism) {
+        this(moduleLister, recordingParallelism, 1);
+    }
+
+    /**
+     * Create a factory.
+     *
+     * @param moduleLister
+     *            the module lister.
+     * @param recordingParallelism
+     *            the number of modules recorded in parallel, see
+     *            {@link #RECORDING_PARALLELISM_PARAM}.
+     * @param warmupParallelism
+     *            the number of eager singletons created in parallel, see
+     *            {@link #WARMUP_PARALLELISM_PARAM}.
+     */
+    public AlchemyInjectorFactory(@NonNull final AlchemyModuleLister moduleLister,
+            final int recordingParallelism, final int warmupParallelism) {
+        this.moduleLister = moduleLister;
+        this.recordingParallelism = recordingParallelism;
+        this.warmupParallelism = warmupParallelism;
+    }
+
+    /**
+     * Get the stage to create injectors for an environment in.
+     *
+     * @param environment
+     *            the environment.
+     * @return {@link Stage#PRODUCTION} for {@link Environment#Prod},
+     *         {@link Stage#DEVELOPMENT} otherwise.
+     */
+    public static Stage getStage(@NonNull final Environment environment) {
+        return environment == Environment.Prod ? Stage.PRODUCTION : Stage.DEVELOPMENT;
+    }
+
+    /**
+     * Create an injector with all modules for an environment.
+     *
+     * @param environment
+     *            the environment to get modules for. Cannot be
+     *            <code>null</code>.
+     * @param additionalModules
+     *            modules to add to the discovered modules, e.g. environment
+     *            specific bindings.
+     * @return the injector.
+     */
+    public Injector create(@NonNull final Environment environment,
+            final Module... additionalModules) {
+        return create(environment, ".*", additionalModules);
+    }
+
+    /**
+     * Create an injector with the modules for an environment.
+     *
+     * @param environment
+     *            the environment to get modules for. Cannot be
+     *            <code>null</code>.
+     * @param packageRegex
+     *            the regex for the package to search for modules in. Use ".*" to
+     *            search for all packages.
+     * @param additionalModules
+     *            modules to add to the discovered modules, e.g. environment
+     *            specific bindings.
+     * @return the injector, in the stage for the environment, see
+     *         {@link #getStage(Environment)}.
+     */
+    public Injector create(@NonNull final Environment environment, final String packageRegex,
+            final Module... additionalModules) {
+        final List<Module> modules =
+                new ArrayList<>(moduleLister.getModules(environment, packageRegex));
+        modules.addAll(Arrays.asList(additionalModules));
+        return create(getStage(environment), modules);
+    }
+
+    /**
+     * Create an injector with the modules for an environment asynchronously,
+     * so that the caller can go on with other work. The injector is created in
+     * phases on the executor, the time taken by each is logged once the
+     * injector is created.
+     *
+     * @param environment
+     *            the environment to get modules for. Cannot be
+     *            <code>null</code>.
+     * @param packageRegex
+     *            the regex for the package to search for modules in. Use ".*" to
+     *            search for all packages.
+     * @param executor
+     *            the executor to run the phases on.
+     * @param additionalModules
+     *            modules to add to the discovered modules, e.g. environment
+     *            specific bindings.
+     * @return future for the injector.
+     */
+    public CompletableFuture<Injector> createAsync(@NonNull final Environment environment,
+            final String packageRegex, @NonNull final Executor executor,
+            final Module... additionalModules) {
+        final Timings timings = new Timings();
+        return createAsync(environment, packageRegex, executor, timings, additionalModules)
+                .whenComplete((injector, e) -> {
+                    if (e == null) {
+                        log.info("Created injector for environment {} - {}", environment,
+                                timings);
+                    }
+                });
+    }
+
+    /**
+     * Create an injector with the modules for an environment asynchronously.
+     * Each phase, see {@link Phase}, runs on the executor once the previous
+     * one is done and records the time it took. Phases run with the context
+     * class loader of the caller, which modules are found and loaded with.
+     *
+     * @param environment
+     *            the environment to get modules for. Cannot be
+     *            <code>null</code>.
+     * @param packageRegex
+     *            the regex for the package to search for modules in. Use ".*" to
+     *            search for all packages.
+     * @param executor
+     *            the executor to run the phases on.
+     * @param timings
+     *            to record the time taken by each phase in.
+     * @param additionalModules
+     *            modules to add to the discovered modules, e.g. environment
+     *            specific bindings.
+     * @return future for the injector, failed with the error of the first
+     *         failing phase.
+     */
+    public CompletableFuture<Injector> createAsync(@NonNull final Environment environment,
+            final String packageRegex, @NonNull final Executor executor,
+            @NonNull final Timings timings, final Module... additionalModules) {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return CompletableFuture
+                .supplyAsync(
+                        () -> runPhase(timings, Phase.Scan, contextClassLoader,
+                                () -> moduleLister.scan(environment, packageRegex)), executor)
+                .thenApplyAsync(
+                        moduleNames -> runPhase(timings, Phase.Filter, contextClassLoader,
+                                () -> moduleLister.load(environment, moduleNames)), executor)
+                .thenApplyAsync(
+                        moduleClasses -> runPhase(timings, Phase.Instantiate,
+                                contextClassLoader,
+                                () -> moduleLister.instantiate(moduleClasses)), executor)
+                .thenApplyAsync(discovered -> runPhase(timings, Phase.Create,
+                        contextClassLoader, () -> {
+                            final List<Module> modules = new ArrayList<>(discovered);
+                            modules.addAll(Arrays.asList(additionalModules));
+                            return create(getStage(environment), modules);
+                        }), executor);
+    }
+
+    /**
+     * Run a phase of an asynchronous creation with a context class loader,
+     * restoring the context class loader of the executor thread afterwards.
+     *
+     * @param timings
+     *            to record the time taken by the phase in.
+     * @param phase
+     *            the phase.
+     * @param contextClassLoader
+     *            the context class loader to run the phase with.
+     * @param task
+     *            the phase.
+     * @return the result of the phase.
+     */
+    private static <T> T runPhase(final Timings timings, final Phase phase,
+            final ClassLoader contextClassLoader, final Supplier<T> task) {
+        final Thread thread = Thread.currentThread();
+        final ClassLoader threadClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(contextClassLoader);
+        try {
+            return timings.time(phase, task);
+        } finally {
+            thread.setContextClassLoader(threadClassLoader);
+        }
+    }
+
+    /**
+     * Create an injector from modules, recording their bindings in parallel.
+     *
+     * @param stage
+     *            the stage.
+     * @param modules
+     *            the modules.
+     * @return the injector.
+     * @throws CreationException
+     *             if the injector or any of its eager singletons could not be
+     *             created.
+     */
+    public Injector create(@NonNull final Stage stage,
+            @NonNull final Collection<? extends Module> modules) {
+        final List<Element> elements = recordElements(stage, modules);
+        if (warmupParallelism == 1) {
+            return Guice.createInjector(stage, Elements.getModule(elements));
+        }
+        final SingletonWarmup warmup = new SingletonWarmup(stage);
+        final Injector injector = Guice.createInjector(stage, warmup.rebind(elements));
+        if (warmup.size() > 0) {
+            final long start = System.nanoTime();
+            final ExecutorService executor =
+                    newExecutor(warmupParallelism, warmup.size(), "alchemy-singleton-warmup-%d");
+            try {
+                warmup.warmUp(injector, executor);
+            } finally {
+                executor.shutdownNow();
+            }
+            log.info("Created {} eager singletons in {} ms", warmup.size(),
+                    (System.nanoTime() - start) / 1000000);
+        }
+        return injector;
+    }
+
+    /**
+     * Record the bindings of modules in parallel.
+     *
+     * @param stage
+     *            the stage to record in.
+     * @param modules
+     *            the modules.
+     * @return a module replaying the recorded bindings, in the order of the
+     *         modules.
+     */
+    public Module record(@NonNull final Stage stage,
+            @NonNull final Collection<? extends Module> modules) {
+        return Elements.getModule(recordElements(stage, modules));
+    }
+
+    /**
+     * Record the bindings of modules, in parallel if enabled with
+     * {@link #RECORDING_PARALLELISM_PARAM}. Modules recorded apart replay
+     * modules they share, e.g. a module instance installed by several of them
+     * or a multibinder they contribute to, once per recording, which guice
+     * would reject as duplicate bindings. Recordings sharing bindings are
+     * therefore discarded and the modules recorded together instead, so that
+     * guice installs every module once.
+     *
+     * @param stage
+     *            the stage to record in.
+     * @param modules
+     *            the modules.
+     * @return the recorded elements, in the order of the modules.
+     */
+    private List<Element> recordElements(final Stage stage,
+            final Collection<? extends Module> modules) {
+        // guice configures a module passed more than once only once.
+        final List<Module> distinctModules = new ArrayList<>(new LinkedHashSet<>(modules));
+        List<Element> elements = null;
+        if (recordingParallelism != 1 && distinctModules.size() > 1) {
+            final List<List<Element>> recordings = recordApart(stage, distinctModules);
+            if (isOverlapping(recordings)) {
+                log.debug("Modules share installed modules, recording them together");
+            } else {
+                elements = new ArrayList<>();
+                for (final List<Element> recording : recordings) {
+                    elements.addAll(recording);
+                }
+            }
+        }
+        if (elements == null) {
+            elements = record(stage, distinctModules);
+        }
+        log.debug("Recorded {} elements from {} modules", elements.size(),
+                distinctModules.size());
+        return elements;
+    }
+
+    /**
+     * Record each module on its own, in parallel.
+     *
+     * @param stage
+     *            the stage to record in.
+     * @param modules
+     *            the distinct modules.
+     * @return the recorded elements of each module, in the order of the
+     *         modules.
+     */
+    private List<List<Element>> recordApart(final Stage stage, final List<Module> modules) {
+        final ExecutorService executor =
+                newExecutor(recordingParallelism, modules.size(), "alchemy-module-recording-%d");
+        try {
+            // module configure methods may rely on the caller's context class
+            // loader.
+            final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+            final List<Future<List<Element>>> futures = new ArrayList<>();
+            for (final Module module : modules) {
+                futures.add(executor.submit(() -> {
+                    final Thread thread = Thread.currentThread();
+                    final ClassLoader threadClassLoader = thread.getContextClassLoader();
+                    thread.setContextClassLoader(contextClassLoader);
+                    try {
+                        return record(stage, Collections.singletonList(module));
+                    } finally {
+                        thread.setContextClassLoader(threadClassLoader);
+                    }
+                }));
+            }
+            // collect in module order so that bindings are replayed as guice
+            // would have configured them.
+            final List<List<Element>> recordings = new ArrayList<>();
+            for (final Future<List<Element>> future : futures) {
+                recordings.add(future.get());
+            }
+            return recordings;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Check if recordings share elements, that is bind the same key or
+     * declare other elements at the same source. Either they replay a module
+     * they share, or guice reports the duplicates when the modules are
+     * recorded together as well.
+     *
+     * @param recordings
+     *            the recordings.
+     * @return <code>true</code> if any element of a recording is shared with
+     *         an earlier recording.
+     */
+    private static boolean isOverlapping(final List<List<Element>> recordings) {
+        final Set<Object> seen = new HashSet<>();
+        for (final List<Element> recording : recordings) {
+            final Set<Object> identities = new HashSet<>();
+            for (final Element element : recording) {
+                if (element instanceof Binding) {
+                    identities.add(((Binding<?>) element).getKey());
+                } else {
+                    if (element instanceof PrivateElements) {
+                        identities.addAll(((PrivateElements) element).getExposedKeys());
+                    }
+                    identities.add(Arrays.asList(element.getClass(), element.getSource()));
+                }
+            }
+            if (!Collections.disjoint(seen, identities)) {
+                return true;
+            }
+            seen.addAll(identities);
+        }
+        return false;
+    }
+
+    /**
+     * Create an executor for tasks.
+     *
+     * @param parallelism
+     *            the number of tasks to run in parallel, zero or less for one
+     *            per processor.
+     * @param tasks
+     *            the number of tasks.
+     * @param nameFormat
+     *            the thread name format.
+     * @return the executor, to be shut down once the tasks are done.
+     */
+    private static ExecutorService newExecutor(final int parallelism, final int tasks,
+            final String nameFormat) {
+        final int threads =
+                Math.min(tasks, parallelism > 0 ? parallelism : Runtime.getRuntime()
+                        .availableProcessors());
+        return Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat(nameFormat).build());
+    }
+
+    /**
+     * Record the bindings of modules together, so that guice installs a
+     * module shared by several of them once. Errors reported by a module, or
+     * thrown from its configure method, get the module class as their
+     * outermost source.
+     *
+     * @param stage
+     *            the stage to record in.
+     * @param modules
+     *            the distinct modules.
+     * @return the recorded elements, in the order of the modules.
+     */
+    private static List<Element> record(final Stage stage, final List<Module> modules) {
+        // each module is preceded by a marker element, which tells the
+        // elements of the modules apart.
+        final Object marker = new Object();
+        final List<Module> markedModules = new ArrayList<>(modules.size());
+        for (final Module module : modules) {
+            markedModules.add(binder -> {
+                binder.requestInjection(marker);
+                binder.install(module);
+            });
+        }
+        final List<Element> elements = Elements.getElements(stage, markedModules);
+        final List<Element> result = new ArrayList<>(elements.size());
+        int index = -1;
+        for (final Element element : elements) {
+            if (element instanceof InjectionRequest
+                    && ((InjectionRequest<?>) element).getInstance() == marker) {
+                index++;
+            } else if (element instanceof Message) {
+                final Message message = (Message) element;
+                result.add(new Message(ImmutableList.builder()
+                        .add(modules.get(index).getClass()).addAll(message.getSources())
+                        .build(), message.getMessage(), message.getCause()));
+            } else {
+                result.add(element);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.inject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.inject.Singleton;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.configuration.SystemConfiguration;
+import org.apache.commons.lang3.ObjectUtils;
+
+/**
+ * Configuration of the classpath entries scanned for modules that are not
+ * indexed. By default all entries are scanned. In opt in mode only entries
+ * that declare that they contain modules are scanned, either with an
+ * <code>Alchemy-Modules: true</code> manifest attribute or a
+ * {@link AlchemyModuleIndex#MARKER_RESOURCE} resource. Entries can further
+ * be allowed or denied by name, e.g. <code>guava-15.0.jar</code>, with
+ * regexes. Allowed entries are always scanned, denied entries never are
+ * unless they are allowed as well.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@Singleton
+@Slf4j
+public class AlchemyModuleDiscoveryConfiguration {
+    /**
+     * Name of the .ini file for configuration.
+     */
+    private static final String MODULE_CONFIGURATION_NAME = "alchemy-modules.ini";
+
+    /**
+     * The opt in mode property used in the .ini file.
+     */
+    private static final String OPT_IN_PROPERTY = "Discovery.optIn";
+
+    /**
+     * The allowed entry name regex property used in the .ini file.
+     */
+    private static final String ALLOW_PROPERTY = "Discovery.allow";
+
+    /**
+     * The denied entry name regex property used in the .ini file.
+     */
+    private static final String DENY_PROPERTY = "Discovery.deny";
+
+    /**
+     * Indicates only entries that declare themselves are scanned.
+     */
+    @Getter
+    private final boolean optIn;
+
+    /**
+     * Names of entries that are always scanned.
+     */
+    private final List<Pattern> allowed;
+
+    /**
+     * Names of entries that are not scanned.
+     */
+    private final List<Pattern> denied;
+
+    /**
+     * Creates the configuration object.
+     */
+    public AlchemyModuleDiscoveryConfiguration() {
+        this(readConfiguration());
+    }
+
+    /**
+     * Creates the configuration object.
+     *
+     * @param configuration
+     *            the configuration to read.
+     */
+    AlchemyModuleDiscoveryConfiguration(final Configuration configuration) {
+        optIn = configuration.getBoolean(OPT_IN_PROPERTY, false);
+        allowed = compile(configuration.getList(ALLOW_PROPERTY));
+        denied = compile(configuration.getList(DENY_PROPERTY));
+        if (optIn) {
+            log.info("Only scanning classpath entries that opt in for modules");
+        }
+    }
+
+    /**
+     * Check if a classpath entry is explicitly allowed.
+     *
+     * @param name
+     *            the entry name.
+     * @return <code>true</code> if it matches an allow regex.
+     */
+    public boolean isAllowed(final String name) {
+        return matchesAny(allowed, name);
+    }
+
+    /**
+     * Check if a classpath entry is denied.
+     *
+     * @param name
+     *            the entry name.
+     * @return <code>true</code> if it matches a deny regex.
+     */
+    public boolean isDenied(final String name) {
+        return matchesAny(denied, name);
+    }
+
+    /**
+     * @param patterns
+     *            the patterns.
+     * @param name
+     *            the entry name.
+     * @return <code>true</code> if any pattern matches the whole name.
+     */
+    private static boolean matchesAny(final List<Pattern> patterns, final String name) {
+        for (final Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compile configured regexes.
+     *
+     * @param regexes
+     *            the regexes.
+     * @return the patterns.
+     */
+    private static List<Pattern> compile(final List<Object> regexes) {
+        final List<Pattern> patterns = new ArrayList<>();
+        for (final Object regex : regexes) {
+            final String pattern = ObjectUtils.toString(regex);
+            log.info("Found module discovery pattern {}", pattern);
+            patterns.add(Pattern.compile(pattern));
+        }
+        return Collections.unmodifiableList(patterns);
+    }
+
+    /**
+     * @return configuration read from the config file.
+     */
+    private static Configuration readConfiguration() {
+        final CompositeConfiguration config = new CompositeConfiguration();
+        config.addConfiguration(new SystemConfiguration());
+        try {
+            config.addConfiguration(new HierarchicalINIConfiguration(MODULE_CONFIGURATION_NAME));
+        } catch (final ConfigurationException e) {
+            // ignore if the configuration file is missing. This means all
+            // entries are scanned.
+            log.warn("Error loading configuration file {}", e);
+        }
+        return config;
+    }
+}
@@ -16,12 +16,17 @@
 
 package com.strandls.alchemy.inject;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 import com.google.inject.Module;
 
@@ -30,18 +35,83 @@ import com.google.inject.Module;
  * environment. The input to this module is a list of regexes / class names to
  * filter out. A module whose canonical class name matches <b>ANY</b> one of
  * the regex will be filtered out.
+ * <p>
+ * The filters are compiled once. Plain class names are looked up in a hash
+ * set, class name prefixes of the form <code>com.example.*</code> are walked
+ * in a trie and all other regexes are combined into a single pattern. Dots in
+ * plain class names and prefixes match themselves only.
  *
  * @author Ashish Shinde
  *
  */
-@RequiredArgsConstructor
 @Slf4j
 public class AlchemyModuleFilter implements Predicate<Module> {
     /**
-     * List of regexs for class names to filter out.
+     * Matches class names, with dots between the name segments.
      */
-    @NonNull
-    private final Set<String> toFilterOut;
+    private static final Pattern CLASS_NAME = Pattern.compile("\\w+(\\.\\w+)*");
+
+    /**
+     * Matches class name prefixes, i.e. class names with an optional trailing
+     * dot.
+     */
+    private static final Pattern CLASS_NAME_PREFIX = Pattern.compile("\\w+(\\.\\w+)*\\.?");
+
+    /**
+     * Suffix of a class name prefix.
+     */
+    private static final String PREFIX_SUFFIX = ".*";
+
+    /**
+     * Class names to filter out.
+     */
+    private final Set<String> classNames;
+
+    /**
+     * Class name prefixes to filter out.
+     */
+    private final PrefixTrie prefixes;
+
+    /**
+     * All other regexes combined, <code>null</code> if there are none.
+     */
+    private final Pattern pattern;
+
+    /**
+     * Compile the filters.
+     *
+     * @param toFilterOut
+     *            list of regexs for class names to filter out.
+     */
+    public AlchemyModuleFilter(@NonNull final Collection<String> toFilterOut) {
+        classNames = new HashSet<>();
+        prefixes = new PrefixTrie();
+        final Set<String> regexes = new HashSet<>();
+        for (final String classRegex : toFilterOut) {
+            if (CLASS_NAME.matcher(classRegex).matches()) {
+                classNames.add(classRegex);
+            } else if (classRegex.endsWith(PREFIX_SUFFIX)
+                    && CLASS_NAME_PREFIX.matcher(getPrefix(classRegex)).matches()) {
+                prefixes.add(getPrefix(classRegex));
+            } else {
+                // keep each regex in its own group so that alternations and
+                // inline flags do not leak into the others.
+                regexes.add("(?:" + classRegex + ")");
+            }
+        }
+        pattern = regexes.isEmpty() ? null : Pattern.compile(Joiner.on('|').join(regexes));
+    }
+
+    /**
+     * Get the class name prefix of a prefix regex.
+     *
+     * @param classRegex
+     *            the regex ending with {@link #PREFIX_SUFFIX}.
+     * @return the prefix.
+     */
+    private static String getPrefix(final String classRegex) {
+        return classRegex.substring(0, classRegex.length() - PREFIX_SUFFIX.length());
+    }
 
     /*
      * (non-Javadoc)
@@ -49,15 +119,90 @@ public class AlchemyModuleFilter implements Predicate<Module> {
      */
     @Override
     public boolean apply(final Module input) {
-        final String className = input.getClass().getName();
-        for (final String classRegex : toFilterOut) {
-            if (className.matches(classRegex)) {
-                // matches the regex. This module should be filtered out.
-                log.info("Filtered out module: {}", input);
-                return false;
-            }
+        return apply(input.getClass().getName());
+    }
+
+    /**
+     * Check a module class by name, so that filtered out modules need not be
+     * loaded.
+     *
+     * @param className
+     *            the module class name.
+     * @return <code>true</code> if the module should be retained.
+     */
+    public boolean apply(final String className) {
+        if (matches(className) || className.indexOf('$') >= 0
+                && matches(className.replace('$', '.'))) {
+            // matches a filter. This module should be filtered out.
+            log.info("Filtered out module: {}", className);
+            return false;
         }
-        // does not match any regex retain the module.
+        // does not match any filter retain the module.
         return true;
     }
+
+    /**
+     * Check if a class name matches any of the filters.
+     *
+     * @param className
+     *            the class name.
+     * @return <code>true</code> if the class name matches.
+     */
+    private boolean matches(final String className) {
+        return classNames.contains(className) || prefixes.matches(className)
+                || pattern != null && pattern.matcher(className).matches();
+    }
+
+    /**
+     * Trie of class name prefixes, with one node per character.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class PrefixTrie {
+        /**
+         * Child nodes keyed by the next character.
+         */
+        private final Map<Character, PrefixTrie> children = new HashMap<>(4);
+
+        /**
+         * Indicates a prefix ends at this node.
+         */
+        private boolean prefix;
+
+        /**
+         * Add a prefix.
+         *
+         * @param value
+         *            the prefix.
+         */
+        public void add(final String value) {
+            PrefixTrie node = this;
+            for (int i = 0; i < value.length(); i++) {
+                node = node.children.computeIfAbsent(value.charAt(i), key -> new PrefixTrie());
+            }
+            node.prefix = true;
+        }
+
+        /**
+         * Check if a class name starts with any of the prefixes.
+         *
+         * @param className
+         *            the class name.
+         * @return <code>true</code> if a prefix matches.
+         */
+        public boolean matches(final String className) {
+            PrefixTrie node = this;
+            for (int i = 0; i < className.length(); i++) {
+                if (node.prefix) {
+                    return true;
+                }
+                node = node.children.get(className.charAt(i));
+                if (node == null) {
+                    return false;
+                }
+            }
+            return node.prefix;
+        }
+    }
 }
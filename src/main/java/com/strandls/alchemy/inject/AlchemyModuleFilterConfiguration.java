@@ -17,6 +17,7 @@
 package com.strandls.alchemy.inject;
 
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -64,14 +65,32 @@ public class AlchemyModuleFilterConfiguration {
      */
     private final Map<Environment, List<String>> environmentFilterConfig;
 
+    /**
+     * Compiled filters for each environment.
+     */
+    private final Map<Environment, AlchemyModuleFilter> environmentFilters;
+
     /**
      * Creates the configuration object.
      */
     public AlchemyModuleFilterConfiguration() {
         environmentFilterConfig = new HashMap<>();
+        environmentFilters = new EnumMap<>(Environment.class);
         loadConfiguration();
     }
 
+    /**
+     * Return the module filter for an environment, compiled once from
+     * {@link #getFilterConfiguration(Environment)}.
+     *
+     * @param env
+     *            the environment.
+     * @return the module filter to use for the environment.
+     */
+    public AlchemyModuleFilter getFilter(final Environment env) {
+        return environmentFilters.get(env);
+    }
+
     /**
      * Return the filter module filter regex list to use for an environment.
      * Includes filters for compatible environments as well.
@@ -114,6 +133,10 @@ public class AlchemyModuleFilterConfiguration {
                     });
             environmentFilterConfig.put(env, Collections.unmodifiableList(filterConfig));
         }
+        environmentFilters.clear();
+        for (final Environment env : Environment.values()) {
+            environmentFilters.put(env, new AlchemyModuleFilter(getFilterConfiguration(env)));
+        }
     }
 
     /**
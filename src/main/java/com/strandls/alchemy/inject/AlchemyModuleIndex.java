@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.inject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import javax.inject.Singleton;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import org.reflections.ReflectionUtils;
+import org.reflections.util.ClasspathHelper;
+import org.reflections.util.FilterBuilder;
+
+import com.google.common.base.Predicate;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.strandls.alchemy.inject.AlchemyModule.Environment;
+
+/**
+ * Compile time index of Alchemy modules. The index is written into each jar /
+ * classes directory by the {@link AlchemyModuleIndexProcessor} and lists the
+ * annotated module classes with their environments. Classpath entries with an
+ * index need not be scanned for module annotations.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@Singleton
+@Slf4j
+public class AlchemyModuleIndex {
+    /**
+     * An entry in the index.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    @Getter
+    @RequiredArgsConstructor
+    @ToString
+    public static class Entry {
+        /**
+         * Name of the marker annotation.
+         */
+        private final String annotationName;
+
+        /**
+         * Binary name of the annotated class.
+         */
+        private final String className;
+
+        /**
+         * The environments in the annotation.
+         */
+        private final List<String> environments;
+    }
+
+    /**
+     * Name of the Alchemy module annotation.
+     */
+    static final String ALCHEMY_MODULE = "com.strandls.alchemy.inject.AlchemyModule";
+
+    /**
+     * Name of the Alchemy json module annotation.
+     */
+    static final String ALCHEMY_JSON_MODULE = "com.strandls.alchemy.inject.json.AlchemyJsonModule";
+
+    /**
+     * The first line of the index file.
+     */
+    static final String HEADER = "# Alchemy module index v1";
+
+    /**
+     * Location of the index in a jar or classes directory.
+     */
+    public static final String INDEX_RESOURCE = "META-INF/alchemy/modules.idx";
+
+    /**
+     * Resource that marks a jar or classes directory as containing modules,
+     * for {@link AlchemyModuleDiscoveryConfiguration#isOptIn()}.
+     */
+    public static final String MARKER_RESOURCE = "META-INF/alchemy/modules";
+
+    /**
+     * Manifest attribute that marks a jar as containing modules, for
+     * {@link AlchemyModuleDiscoveryConfiguration#isOptIn()}.
+     */
+    public static final String MANIFEST_ATTRIBUTE = "Alchemy-Modules";
+
+    /**
+     * Index contents read from the class loaders of a scope.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class Contents {
+        /**
+         * Classpath roots that carry an index.
+         */
+        private final Set<String> indexedRoots = new HashSet<>();
+
+        /**
+         * Classpath roots that declare they contain modules, only looked up
+         * in opt in mode.
+         */
+        private final Set<String> optedInRoots = new HashSet<>();
+
+        /**
+         * All entries from all indexes on the classpath.
+         */
+        private final List<Entry> entries = new ArrayList<>();
+    }
+
+    /**
+     * Contents read from a fixed class loader, <code>null</code> to read
+     * them for the context class loader.
+     */
+    private final Contents fixedContents;
+
+    /**
+     * Contents read for each context class loader. Class loaders are held
+     * weakly, so that undeployed web applications can be unloaded.
+     */
+    private final LoadingCache<ClassLoader, Contents> contextContents;
+
+    /**
+     * Which classpath entries to scan.
+     */
+    private final AlchemyModuleDiscoveryConfiguration discoveryConfiguration;
+
+    /**
+     * Creates the index from all index resources visible to the context class
+     * loader of the querying thread and to the class loader of this class,
+     * the class loaders classpath urls are found with as well.
+     */
+    public AlchemyModuleIndex() {
+        this(null, new AlchemyModuleDiscoveryConfiguration());
+    }
+
+    /**
+     * Creates the index from all index resources visible to a class loader.
+     *
+     * @param classLoader
+     *            the class loader.
+     */
+    public AlchemyModuleIndex(final ClassLoader classLoader) {
+        this(classLoader, new AlchemyModuleDiscoveryConfiguration());
+    }
+
+    /**
+     * Creates the index from all index resources visible to a class loader.
+     *
+     * @param classLoader
+     *            the class loader, <code>null</code> for the context class
+     *            loader of the querying thread and the class loader of this
+     *            class.
+     * @param discoveryConfiguration
+     *            which classpath entries to scan.
+     */
+    public AlchemyModuleIndex(final ClassLoader classLoader,
+            final AlchemyModuleDiscoveryConfiguration discoveryConfiguration) {
+        this.discoveryConfiguration = discoveryConfiguration;
+        if (classLoader != null) {
+            fixedContents = load(classLoader);
+            contextContents = null;
+        } else {
+            fixedContents = null;
+            contextContents =
+                    CacheBuilder.newBuilder().weakKeys()
+                            .build(new CacheLoader<ClassLoader, Contents>() {
+                                @Override
+                                public Contents load(final ClassLoader contextClassLoader) {
+                                    return AlchemyModuleIndex.this.load(contextClassLoader,
+                                            AlchemyModuleIndex.class.getClassLoader());
+                                }
+                            });
+        }
+    }
+
+    /**
+     * Get the contents for the querying thread.
+     *
+     * @return the contents.
+     */
+    private Contents getContents() {
+        if (fixedContents != null) {
+            return fixedContents;
+        }
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return contextContents.getUnchecked(contextClassLoader != null ? contextClassLoader
+                : AlchemyModuleIndex.class.getClassLoader());
+    }
+
+    /**
+     * Read the contents visible to class loaders.
+     *
+     * @param classLoaders
+     *            the class loaders, resources visible to several of them are
+     *            read once.
+     * @return the contents.
+     */
+    private Contents load(final ClassLoader... classLoaders) {
+        final Contents contents = new Contents();
+        loadIndex(contents, getResources(INDEX_RESOURCE, classLoaders));
+        if (discoveryConfiguration.isOptIn()) {
+            loadOptedInRoots(contents, getResources(MARKER_RESOURCE, classLoaders),
+                    getResources(JarFile.MANIFEST_NAME, classLoaders));
+        }
+        return contents;
+    }
+
+    /**
+     * Get the resources with a name visible to class loaders.
+     *
+     * @param name
+     *            the resource name.
+     * @param classLoaders
+     *            the class loaders.
+     * @return the distinct resources.
+     */
+    private static Collection<URL> getResources(final String name,
+            final ClassLoader... classLoaders) {
+        final Map<String, URL> resources = new LinkedHashMap<>();
+        for (final ClassLoader classLoader : new LinkedHashSet<>(Arrays.asList(classLoaders))) {
+            try {
+                for (final URL resource : Collections.list(classLoader.getResources(name))) {
+                    resources.putIfAbsent(resource.toExternalForm(), resource);
+                }
+            } catch (final IOException e) {
+                log.warn("Error looking up {}", name, e);
+            }
+        }
+        return resources.values();
+    }
+
+    /**
+     * Read index entries.
+     *
+     * @param reader
+     *            the reader for the index file.
+     * @return the entries in the index.
+     * @throws IOException
+     *             on error reading.
+     */
+    static List<Entry> read(final Reader reader) throws IOException {
+        final List<Entry> result = new ArrayList<>();
+        final BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            final String[] parts = line.split("\t", -1);
+            if (parts.length != 3) {
+                throw new IOException("Malformed index line: " + line);
+            }
+            final List<String> environments = new ArrayList<>();
+            for (final String environment : parts[2].split(",")) {
+                if (!environment.isEmpty()) {
+                    environments.add(environment);
+                }
+            }
+            result.add(new Entry(parts[0], parts[1], Collections.unmodifiableList(environments)));
+        }
+        return result;
+    }
+
+    /**
+     * Convert the url of an index resource to the url of the classpath root
+     * holding it, in the form used by {@link ClasspathHelper}.
+     *
+     * @param resourceUrl
+     *            the resource url.
+     * @param resourceName
+     *            the resource name.
+     * @return the classpath root url.
+     */
+    static String toClasspathRoot(final URL resourceUrl, final String resourceName) {
+        final String root = resourceUrl.toExternalForm();
+        final int index = root.lastIndexOf(resourceName);
+        return normalize(index != -1 ? root.substring(0, index) : root);
+    }
+
+    /**
+     * Normalize a classpath root url, turning jar urls into the url for the
+     * jar file itself.
+     *
+     * @param root
+     *            the external form of the root url.
+     * @return the normalized form.
+     */
+    static String normalize(final String root) {
+        String normalized = root;
+        if (normalized.startsWith("jar:")) {
+            normalized = normalized.substring("jar:".length());
+            if (normalized.endsWith("!/")) {
+                normalized = normalized.substring(0, normalized.length() - "!/".length());
+            }
+        }
+        return normalized;
+    }
+
+    /**
+     * Get the classpath urls that could contain types from the packages and
+     * have no index. These need to be scanned.
+     *
+     * @param packageRegex
+     *            the package regex.
+     * @return the urls without an index.
+     */
+    public Collection<URL> getUnindexedUrls(final String packageRegex) {
+        Collection<URL> urls = ClasspathHelper.forPackage(packageRegex);
+        if (urls.isEmpty()) {
+            // the same fallback reflections uses.
+            urls = ClasspathHelper.forClassLoader();
+        }
+        final Set<String> indexedRoots = getContents().indexedRoots;
+        final Set<URL> unindexed = new LinkedHashSet<>();
+        for (final URL url : urls) {
+            if (!indexedRoots.contains(normalize(url.toExternalForm()))) {
+                unindexed.add(url);
+            }
+        }
+        return unindexed;
+    }
+
+    /**
+     * Get the classpath urls that could contain types from the packages, have
+     * no index and are scanned according to the discovery configuration.
+     *
+     * @param packageRegex
+     *            the package regex.
+     * @return the urls to scan.
+     */
+    public Collection<URL> getScanUrls(final String packageRegex) {
+        final Set<URL> scanUrls = new LinkedHashSet<>();
+        for (final URL url : getUnindexedUrls(packageRegex)) {
+            if (isScanned(normalize(url.toExternalForm()))) {
+                scanUrls.add(url);
+            } else {
+                log.debug("Not scanning {} for modules", url);
+            }
+        }
+        return scanUrls;
+    }
+
+    /**
+     * Check if a classpath root is scanned according to the discovery
+     * configuration.
+     *
+     * @param root
+     *            the normalized root url.
+     * @return <code>true</code> if the root should be scanned.
+     */
+    boolean isScanned(final String root) {
+        final String name = getName(root);
+        if (discoveryConfiguration.isAllowed(name)) {
+            return true;
+        } else if (discoveryConfiguration.isDenied(name)) {
+            return false;
+        }
+        return !discoveryConfiguration.isOptIn() || getContents().optedInRoots.contains(root);
+    }
+
+    /**
+     * Get the name of a classpath root, its last path segment, e.g.
+     * <code>guava-15.0.jar</code> or <code>classes</code>.
+     *
+     * @param root
+     *            the normalized root url.
+     * @return the name.
+     */
+    static String getName(final String root) {
+        final int end = root.endsWith("/") ? root.length() - 1 : root.length();
+        return root.substring(root.lastIndexOf('/', end - 1) + 1, end);
+    }
+
+    /**
+     * Get entries for an annotation belonging to the packages.
+     *
+     * @param annotation
+     *            the marker annotation.
+     * @param packageRegex
+     *            the package regex.
+     * @return matching entries.
+     */
+    public List<Entry> getEntries(final Class<? extends Annotation> annotation,
+            final String packageRegex) {
+        final Predicate<String> packageFilter = new FilterBuilder().includePackage(packageRegex);
+        final List<Entry> result = new ArrayList<>();
+        for (final Entry entry : getContents().entries) {
+            if (entry.annotationName.equals(annotation.getName())
+                    && packageFilter.apply(entry.className + ".class")) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get names of indexed types for an annotation whose environments are
+     * compatible with the input environment, without loading them.
+     *
+     * @param annotation
+     *            the marker annotation.
+     * @param packageRegex
+     *            the package regex.
+     * @param environment
+     *            the environment.
+     * @return the class names.
+     */
+    public Set<String> getTypeNames(final Class<? extends Annotation> annotation,
+            final String packageRegex, final Environment environment) {
+        final Set<String> typeNames = new HashSet<>();
+        for (final Entry entry : getEntries(annotation, packageRegex)) {
+            if (isCompatible(entry, environment)) {
+                typeNames.add(entry.className);
+            } else {
+                log.debug("Ignored indexed class {}", entry.className);
+            }
+        }
+        return typeNames;
+    }
+
+    /**
+     * Load indexed types for an annotation whose environments are compatible
+     * with the input environment.
+     *
+     * @param annotation
+     *            the marker annotation.
+     * @param packageRegex
+     *            the package regex.
+     * @param environment
+     *            the environment.
+     * @return the loaded classes.
+     */
+    public Set<Class<?>> getTypes(final Class<? extends Annotation> annotation,
+            final String packageRegex, final Environment environment) {
+        final Set<Class<?>> types = new HashSet<>();
+        for (final String typeName : getTypeNames(annotation, packageRegex, environment)) {
+            final Class<?> type = ReflectionUtils.forName(typeName);
+            if (type == null) {
+                log.warn("Could not load indexed class {}", typeName);
+            } else {
+                types.add(type);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * @param entry
+     *            the index entry.
+     * @param environment
+     *            the environment.
+     * @return <code>true</code> if the entry applies to the environment.
+     */
+    private boolean isCompatible(final Entry entry, final Environment environment) {
+        for (final String name : entry.environments) {
+            try {
+                if (environment.isCompatible(Environment.valueOf(name))) {
+                    return true;
+                }
+            } catch (final IllegalArgumentException e) {
+                log.warn("Unknown environment {} for {}", name, entry.className);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the classpath roots that declare they contain modules, with the
+     * marker resource or the manifest attribute.
+     *
+     * @param contents
+     *            the contents to add the roots to.
+     * @param markers
+     *            the marker resources.
+     * @param manifests
+     *            the manifests.
+     */
+    private static void loadOptedInRoots(final Contents contents,
+            final Collection<URL> markers, final Collection<URL> manifests) {
+        for (final URL resource : markers) {
+            contents.optedInRoots.add(toClasspathRoot(resource, MARKER_RESOURCE));
+        }
+        for (final URL resource : manifests) {
+            try (InputStream in = resource.openStream()) {
+                final String value =
+                        new Manifest(in).getMainAttributes().getValue(MANIFEST_ATTRIBUTE);
+                if (Boolean.parseBoolean(value)) {
+                    contents.optedInRoots.add(toClasspathRoot(resource, JarFile.MANIFEST_NAME));
+                }
+            } catch (final IOException e) {
+                log.warn("Error reading manifest {}", resource, e);
+            }
+        }
+        log.debug("Classpath entries opting in for modules {}", contents.optedInRoots);
+    }
+
+    /**
+     * Read index resources.
+     *
+     * @param contents
+     *            the contents to add the index entries to.
+     * @param resources
+     *            the index resources.
+     */
+    private static void loadIndex(final Contents contents, final Collection<URL> resources) {
+        for (final URL resource : resources) {
+            try (InputStream in = resource.openStream()) {
+                contents.entries.addAll(read(new InputStreamReader(in, StandardCharsets.UTF_8)));
+                contents.indexedRoots.add(toClasspathRoot(resource, INDEX_RESOURCE));
+                log.debug("Loaded module index {}", resource);
+            } catch (final IOException e) {
+                // the classpath entry will be scanned instead.
+                log.warn("Error reading module index {}", resource, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.inject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor that writes the {@link AlchemyModuleIndex} for the
+ * classes being compiled. Every class annotated with {@link AlchemyModule} or
+ * with the json module marker is recorded along with the environments it
+ * applies to, so that listers can skip classpath scanning for the jar.
+ * <p>
+ * The processor is registered as a service and is picked up by javac from the
+ * compile classpath. Entries from a previous (incremental) compilation are
+ * retained as long as the class still exists and is still annotated. The
+ * processor runs for every compilation, so that an index is written even
+ * once the last annotated class is removed, instead of leaving a stale one.
+ * </p>
+ *
+ * @author Ashish Shinde
+ *
+ */
+@SupportedAnnotationTypes("*")
+public class AlchemyModuleIndexProcessor extends AbstractProcessor {
+    /**
+     * Index entries collected across rounds, keyed by annotation name and then
+     * the binary class name. Sorted so that the index file is reproducible.
+     */
+    private final Map<String, Map<String, List<String>>> entries = new TreeMap<>();
+
+    /*
+     * (non-Javadoc)
+     * @see javax.annotation.processing.AbstractProcessor#getSupportedSourceVersion()
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see
+     * javax.annotation.processing.AbstractProcessor#process(java.util.Set,
+     * javax.annotation.processing.RoundEnvironment)
+     */
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations,
+            final RoundEnvironment roundEnv) {
+        for (final TypeElement annotation : annotations) {
+            final String annotationName = annotation.getQualifiedName().toString();
+            if (!AlchemyModuleIndex.ALCHEMY_MODULE.equals(annotationName)
+                    && !AlchemyModuleIndex.ALCHEMY_JSON_MODULE.equals(annotationName)) {
+                continue;
+            }
+            for (final Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element instanceof TypeElement) {
+                    final TypeElement type = (TypeElement) element;
+                    getEntries(annotationName).put(
+                            processingEnv.getElementUtils().getBinaryName(type).toString(),
+                            getEnvironments(type, annotationName));
+                }
+            }
+        }
+
+        if (roundEnv.processingOver()) {
+            // written even without entries, to replace a stale index.
+            mergePreviousIndex();
+            writeIndex();
+        }
+        // do not claim the annotations, other processors may want them.
+        return false;
+    }
+
+    /**
+     * @param annotationName
+     *            the annotation name.
+     * @return the mutable entries for the annotation.
+     */
+    private Map<String, List<String>> getEntries(final String annotationName) {
+        return entries.computeIfAbsent(annotationName, name -> new TreeMap<>());
+    }
+
+    /**
+     * Read the environment names from the annotation on a type.
+     *
+     * @param type
+     *            the annotated type.
+     * @param annotationName
+     *            the marker annotation.
+     * @return the environment names, empty if the annotation could not be
+     *         read.
+     */
+    private List<String> getEnvironments(final TypeElement type, final String annotationName) {
+        final List<String> environments = new ArrayList<>();
+        final AnnotationMirror mirror = getAnnotationMirror(type, annotationName);
+        if (mirror == null) {
+            return environments;
+        }
+        for (final Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror
+                .getElementValues().entrySet()) {
+            if (!"value".contentEquals(entry.getKey().getSimpleName())) {
+                continue;
+            }
+            final Object value = entry.getValue().getValue();
+            if (value instanceof List) {
+                for (final Object item : (List<?>) value) {
+                    addEnvironment(environments, ((AnnotationValue) item).getValue());
+                }
+            } else {
+                // single valued array written without braces.
+                addEnvironment(environments, value);
+            }
+        }
+        return environments;
+    }
+
+    /**
+     * Add an enum constant value to the environment list.
+     *
+     * @param environments
+     *            the list to add to.
+     * @param value
+     *            the annotation value.
+     */
+    private void addEnvironment(final List<String> environments, final Object value) {
+        if (value instanceof VariableElement) {
+            environments.add(((VariableElement) value).getSimpleName().toString());
+        }
+    }
+
+    /**
+     * @param type
+     *            the type.
+     * @param annotationName
+     *            the annotation name.
+     * @return the mirror for the annotation on the type or <code>null</code>
+     *         if the type is not annotated.
+     */
+    private AnnotationMirror getAnnotationMirror(final TypeElement type,
+            final String annotationName) {
+        for (final AnnotationMirror mirror : type.getAnnotationMirrors()) {
+            final Element annotationType = mirror.getAnnotationType().asElement();
+            if (annotationType instanceof TypeElement
+                    && ((TypeElement) annotationType).getQualifiedName().contentEquals(
+                            annotationName)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Retain entries from an index written by a previous compilation for
+     * classes that were not recompiled this time around.
+     */
+    private void mergePreviousIndex() {
+        final FileObject previous;
+        try {
+            previous =
+                    processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "",
+                            AlchemyModuleIndex.INDEX_RESOURCE);
+        } catch (final IOException | IllegalArgumentException e) {
+            // no previous index.
+            return;
+        }
+
+        try (Reader reader =
+                new BufferedReader(new InputStreamReader(previous.openInputStream(),
+                        StandardCharsets.UTF_8))) {
+            for (final AlchemyModuleIndex.Entry entry : AlchemyModuleIndex.read(reader)) {
+                final Map<String, List<String>> annotationEntries =
+                        getEntries(entry.getAnnotationName());
+                if (annotationEntries.containsKey(entry.getClassName())) {
+                    continue;
+                }
+                final TypeElement type =
+                        processingEnv.getElementUtils().getTypeElement(
+                                entry.getClassName().replace('$', '.'));
+                if (type != null && getAnnotationMirror(type, entry.getAnnotationName()) != null) {
+                    annotationEntries.put(entry.getClassName(),
+                            getEnvironments(type, entry.getAnnotationName()));
+                }
+            }
+        } catch (final IOException e) {
+            // the previous index does not exist or is unreadable.
+        }
+    }
+
+    /**
+     * Write the collected entries to the class output.
+     */
+    private void writeIndex() {
+        try {
+            final FileObject file =
+                    processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "",
+                            AlchemyModuleIndex.INDEX_RESOURCE);
+            try (Writer writer = file.openWriter()) {
+                writer.write(AlchemyModuleIndex.HEADER);
+                writer.write('\n');
+                for (final Map.Entry<String, Map<String, List<String>>> annotationEntries : entries
+                        .entrySet()) {
+                    for (final Map.Entry<String, List<String>> entry : annotationEntries
+                            .getValue().entrySet()) {
+                        writer.write(annotationEntries.getKey());
+                        writer.write('\t');
+                        writer.write(entry.getKey());
+                        writer.write('\t');
+                        writer.write(String.join(",", entry.getValue()));
+                        writer.write('\n');
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            processingEnv.getMessager().printMessage(Kind.WARNING,
+                    "Could not write " + AlchemyModuleIndex.INDEX_RESOURCE + ": " + e);
+        }
+    }
+}
@@ -16,19 +16,35 @@
 
 package com.strandls.alchemy.inject;
 
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import com.google.common.collect.Collections2;
+import org.reflections.ReflectionUtils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Module;
 import com.strandls.alchemy.inject.AlchemyModule.Environment;
 import com.strandls.alchemy.reflect.CachingJavaTypeQueryHandler;
 import com.strandls.alchemy.reflect.JavaTypeQueryHandler;
+import com.strandls.alchemy.reflect.TypeHandle;
 
 import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -38,11 +54,46 @@ import lombok.extern.slf4j.Slf4j;
  */
 @Slf4j
 public class AlchemyModuleLister {
+    /**
+     * Module class names found by {@link AlchemyModuleLister#scan(Environment, String)}.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    @RequiredArgsConstructor
+    @ToString
+    static final class ModuleNames {
+        /**
+         * The module class names.
+         */
+        private final Set<String> classNames;
+
+        /**
+         * Indicates the names are configured statically, their classes have
+         * to exist.
+         */
+        private final boolean staticModules;
+    }
+
+    /**
+     * The system property for the number of modules instantiated in parallel,
+     * for modules doing expensive work in their constructors or static
+     * initializers. One, the default, instantiates on the calling thread, zero
+     * or less uses one thread per processor.
+     */
+    public static final String INSTANTIATION_PARALLELISM_PARAM =
+            "com.strandls.alchemy.inject.AlchemyModuleLister.instantiationParallelism";
+
     /**
      * For applying filter on the classes.
      */
     private static final AlchemyModuleFilterConfiguration filterConfiguration;
 
+    /**
+     * Compile time index of modules.
+     */
+    private static final AlchemyModuleIndex moduleIndex;
+
     /**
      * For static module listing.
      */
@@ -55,10 +106,54 @@ public class AlchemyModuleLister {
 
     static {
         // This class is used to create injectors all over. Hence the query type
-        // handler cannot be injected here.
-        typeQueryHandler = new CachingJavaTypeQueryHandler(100000, 1000);
+        // handler cannot be injected here. Create it the way the reflection
+        // module does.
+        typeQueryHandler = CachingJavaTypeQueryHandler.fromSystemProperties();
         filterConfiguration = new AlchemyModuleFilterConfiguration();
         staticModuleConfiguration = new AlchemyStaticModuleConfiguration();
+        moduleIndex = new AlchemyModuleIndex();
+    }
+
+    /**
+     * The number of modules instantiated in parallel, see
+     * {@link #INSTANTIATION_PARALLELISM_PARAM}.
+     */
+    private final int instantiationParallelism;
+
+    /**
+     * Create a lister instantiating modules as configured with the
+     * {@link #INSTANTIATION_PARALLELISM_PARAM} system property.
+     */
+    public AlchemyModuleLister() {
+        this(Integer.getInteger(INSTANTIATION_PARALLELISM_PARAM, 1));
+    }
+
+    /**
+     * Create a lister.
+     *
+     * @param instantiationParallelism
+     *            the number of modules instantiated in parallel, see
+     *            {@link #INSTANTIATION_PARALLELISM_PARAM}.
+     */
+    public AlchemyModuleLister(final int instantiationParallelism) {
+        this.instantiationParallelism = instantiationParallelism;
+    }
+
+    /**
+     * Start looking for modules in the background, as early as possible e.g.
+     * from main or a servlet context listener. A later call to
+     * {@link #getModules(Environment, String)} with the same package regex
+     * joins the scan in flight instead of scanning again.
+     *
+     * @param packageRegex
+     *            the regex for the package to search for modules in. Use ".*" to
+     *            search for all packages.
+     * @return future done once the classpath has been scanned.
+     */
+    public Future<?> prewarm(final String packageRegex) {
+        // the index is read and the urls are found in the background too.
+        return typeQueryHandler.prewarm(() -> moduleIndex.getScanUrls(packageRegex),
+                packageRegex, Collections.singleton(AlchemyModule.class));
     }
 
     /**
@@ -67,7 +162,8 @@ public class AlchemyModuleLister {
      * @param environment
      *            the environment to get modules for. Cannot be
      *            <code>null</code>.
-     * @return modules matching the environment from all packages in the classpath.
+     * @return immutable list of modules matching the environment from all
+     *         packages in the classpath.
      */
     public Collection<Module> getModules(@NonNull final Environment environment) {
         return getModules(environment, ".*");
@@ -82,51 +178,187 @@ public class AlchemyModuleLister {
      * @param packageRegex
      *            the regex for the package to search for modules in. Use ".*" to
      *            search for all packages.
-     * @return modules matching the environment belonging to desired packages.
+     * @return immutable list of modules matching the environment belonging to
+     *         desired packages, ordered by class name.
+     * @throws RuntimeException
+     *             if any of the modules could not be instantiated, listing all
+     *             failures.
      */
     public Collection<Module> getModules(@NonNull final Environment environment,
             final String packageRegex) {
+        return instantiate(load(environment, scan(environment, packageRegex)));
+    }
 
-        final Set<Class<?>> classes = new HashSet<>();
+    /**
+     * Find the names of the module classes for an environment, either
+     * configured statically or from the module indexes and the classpath.
+     * Nothing is loaded.
+     *
+     * @param environment
+     *            the environment to get modules for.
+     * @param packageRegex
+     *            the regex for the package to search for modules in.
+     * @return the module class names.
+     */
+    ModuleNames scan(@NonNull final Environment environment, final String packageRegex) {
         final Set<String> staticModules =
                 staticModuleConfiguration.getStaticModuleConfiguration(environment);
         if (!staticModules.isEmpty()) {
-            // initialize static module list.
-            staticModules.forEach(moduleName -> {
+            // use the static module list.
+            return new ModuleNames(staticModules, true);
+        }
+
+        // get indexed classes with Alchemy module marker
+        final Set<String> classNames =
+                moduleIndex.getTypeNames(AlchemyModule.class, packageRegex, environment);
+
+        // scan classpath entries that do not have an index and are not
+        // excluded from discovery
+        final Collection<URL> scanUrls = moduleIndex.getScanUrls(packageRegex);
+        if (!scanUrls.isEmpty()) {
+            for (final TypeHandle handle : typeQueryHandler.getTypeHandlesAnnotatedWith(
+                    scanUrls, packageRegex, AlchemyModule.class)) {
+                // match against desired environment before loading.
+                if (handle.isAnnotated()
+                        && environment.isCompatible(handle.getAnnotationValue(Environment.class))) {
+                    classNames.add(handle.getClassName());
+                } else {
+                    log.debug("Ignored class {}", handle.getClassName());
+                }
+            }
+        }
+        return new ModuleNames(classNames, false);
+    }
+
+    /**
+     * Filter module class names and load the remaining classes matching the
+     * environment.
+     *
+     * @param environment
+     *            the environment to get modules for.
+     * @param moduleNames
+     *            the module class names, see {@link #scan(Environment, String)}.
+     * @return the module classes, ordered by name.
+     */
+    List<Class<?>> load(@NonNull final Environment environment, final ModuleNames moduleNames) {
+        final AlchemyModuleFilter filter = filterConfiguration.getFilter(environment);
+        // statically configured modules have to exist.
+        final boolean staticModules = moduleNames.staticModules;
+        final List<Class<?>> moduleClasses = new ArrayList<>();
+
+        log.debug("Looking for modules in Environment: {}", environment);
+        // only load modules that are not filtered out.
+        for (final String className : moduleNames.classNames) {
+            if (!filter.apply(className)) {
+                continue;
+            }
+            final Class<?> klass;
+            if (staticModules) {
                 try {
-                    classes.add(getClass().getClassLoader().loadClass(moduleName));
+                    klass = getClass().getClassLoader().loadClass(className);
                 } catch (final ClassNotFoundException e) {
                     throw new RuntimeException(e);
                 }
-            });
-        } else {
-            // get all classes with Alchemy module marker
-            classes.addAll(
-                    typeQueryHandler.getTypesAnnotatedWith(packageRegex, AlchemyModule.class));
-        }
+            } else {
+                klass = ReflectionUtils.forName(className);
+                if (klass == null) {
+                    log.warn("Could not load module class {}", className);
+                    continue;
+                }
+            }
 
-        final List<Module> modules = new ArrayList<Module>();
+            final AlchemyModule marker = klass.getAnnotation(AlchemyModule.class);
+            log.debug("Found class {}", klass);
+            // match against desired environment
+            if (marker != null && environment.isCompatible(marker.value())) {
+                log.debug("For Environment: {} using : {}", environment, klass);
+                moduleClasses.add(klass);
+            } else {
+                log.debug("Ignored class {}", klass);
+            }
+        }
 
-        log.debug("Looking for modules in Environment: {}", environment);
-        for (final Class<?> klass : classes) {
-            try {
-                final AlchemyModule marker = klass.getAnnotation(AlchemyModule.class);
+        // keep the module order independent of the classpath scan.
+        moduleClasses.sort(Comparator.comparing(Class::getName));
+        return moduleClasses;
+    }
 
-                log.debug("Found class {}", klass);
-                // match against desired environment
-                if (marker != null && environment.isCompatible(marker.value())) {
-                    log.debug("For Environment: {} using : {}", environment, klass);
+    /**
+     * Instantiate modules, concurrently if enabled with
+     * {@link #INSTANTIATION_PARALLELISM_PARAM}. All modules are attempted, the
+     * failures are reported together.
+     *
+     * @param moduleClasses
+     *            the module classes.
+     * @return the modules, in the order of their classes.
+     * @throws RuntimeException
+     *             if any of the modules could not be instantiated.
+     */
+    List<Module> instantiate(final List<Class<?>> moduleClasses) {
+        final ImmutableList.Builder<Module> modules = ImmutableList.builder();
+        final Map<String, Throwable> failures = new LinkedHashMap<>();
+        if (instantiationParallelism == 1 || moduleClasses.size() < 2) {
+            for (final Class<?> klass : moduleClasses) {
+                try {
                     modules.add((Module) klass.newInstance());
-                } else {
-                    log.debug("Ignored class {}", klass);
+                } catch (final Exception | LinkageError e) {
+                    failures.put(klass.getName(), e);
                 }
-            } catch (InstantiationException | IllegalAccessException e) {
+            }
+        } else {
+            final int threads =
+                    Math.min(moduleClasses.size(),
+                            instantiationParallelism > 0 ? instantiationParallelism : Runtime
+                                    .getRuntime().availableProcessors());
+            final ExecutorService executor =
+                    Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                            .setDaemon(true).setNameFormat("alchemy-module-instantiation-%d")
+                            .build());
+            try {
+                // module constructors may rely on the caller's context class
+                // loader.
+                final ClassLoader contextClassLoader =
+                        Thread.currentThread().getContextClassLoader();
+                final List<Future<Module>> futures = new ArrayList<>();
+                for (final Class<?> klass : moduleClasses) {
+                    futures.add(executor.submit(() -> {
+                        final Thread thread = Thread.currentThread();
+                        final ClassLoader threadClassLoader = thread.getContextClassLoader();
+                        thread.setContextClassLoader(contextClassLoader);
+                        try {
+                            return (Module) klass.newInstance();
+                        } finally {
+                            thread.setContextClassLoader(threadClassLoader);
+                        }
+                    }));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        modules.add(futures.get(i).get());
+                    } catch (final ExecutionException e) {
+                        failures.put(moduleClasses.get(i).getName(), e.getCause());
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
                 throw new RuntimeException(e);
+            } finally {
+                executor.shutdownNow();
             }
         }
 
-        // apply the filter and return the result
-        return Collections2.filter(modules,
-                new AlchemyModuleFilter(filterConfiguration.getFilterConfiguration(environment)));
+        if (!failures.isEmpty()) {
+            final StringBuilder message = new StringBuilder("Could not instantiate modules:");
+            for (final Entry<String, Throwable> failure : failures.entrySet()) {
+                message.append("\n  ").append(failure.getKey()).append(": ")
+                        .append(failure.getValue());
+            }
+            final Iterator<Throwable> causes = failures.values().iterator();
+            final RuntimeException exception =
+                    new RuntimeException(message.toString(), causes.next());
+            causes.forEachRemaining(exception::addSuppressed);
+            throw exception;
+        }
+        return modules.build();
     }
 }
@@ -0,0 +1,601 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.inject;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.inject.Singleton;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Binder;
+import com.google.inject.Binding;
+import com.google.inject.CreationException;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provider;
+import com.google.inject.ProvisionException;
+import com.google.inject.Scope;
+import com.google.inject.Scopes;
+import com.google.inject.Stage;
+import com.google.inject.TypeLiteral;
+import com.google.inject.binder.ScopedBindingBuilder;
+import com.google.inject.spi.ConstructorBinding;
+import com.google.inject.spi.DefaultBindingScopingVisitor;
+import com.google.inject.spi.DefaultBindingTargetVisitor;
+import com.google.inject.spi.Dependency;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.HasDependencies;
+import com.google.inject.spi.LinkedKeyBinding;
+import com.google.inject.spi.Message;
+import com.google.inject.spi.ProviderInstanceBinding;
+import com.google.inject.spi.ProviderKeyBinding;
+import com.google.inject.spi.UntargettedBinding;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Creates the singletons an injector would create eagerly in parallel. Guice
+ * creates singletons one at a time under a global lock, so the singleton
+ * bindings are rebound to a scope locking each binding on its own. The
+ * singletons are then created in the order of their dependencies, each as
+ * soon as the singletons it depends on have been created.
+ * <p>
+ * Warm up threads never wait for a singleton another thread is creating.
+ * Singletons can also be reached through providers, the injector or just in
+ * time singletons created under guice's global lock, which the dependency
+ * graph does not show, so waiting could deadlock. A singleton that runs into
+ * one being created by another thread is created on the calling thread once
+ * the parallel warm up is done.
+ * <p>
+ * Only top level bindings are rebound, singletons in private modules and just
+ * in time singletons are created by guice as before. The rebound bindings are
+ * no longer in {@link Scopes#SINGLETON}, so the SPI does not report them as
+ * singletons, e.g. {@link Scopes#isSingleton(Binding)} returns
+ * <code>false</code> for them.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@Slf4j
+final class SingletonWarmup {
+    /**
+     * Singleton scope locking each binding on its own. Singletons are created
+     * in parallel only during the warm up, after that they are plain reads.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class ConcurrentSingletonScope implements Scope {
+        /**
+         * Stands in for a <code>null</code> singleton.
+         */
+        private static final Object NULL = new Object();
+
+        /**
+         * Indicates the current thread is a warm up thread, which fails with a
+         * {@link ContendedException} instead of waiting for a singleton
+         * another thread is creating.
+         */
+        private final ThreadLocal<Boolean> warmingUp = ThreadLocal.withInitial(() -> false);
+
+        /*
+         * (non-Javadoc)
+         * @see com.google.inject.Scope#scope(com.google.inject.Key,
+         * com.google.inject.Provider)
+         */
+        @Override
+        public <T> Provider<T> scope(final Key<T> key, final Provider<T> unscoped) {
+            return new Provider<T>() {
+                /**
+                 * Held while creating the singleton.
+                 */
+                private final ReentrantLock lock = new ReentrantLock();
+
+                /**
+                 * The singleton, {@link ConcurrentSingletonScope#NULL} if it
+                 * is <code>null</code>.
+                 */
+                private volatile Object instance;
+
+                /*
+                 * (non-Javadoc)
+                 * @see com.google.inject.Provider#get()
+                 */
+                @Override
+                @SuppressWarnings("unchecked")
+                public T get() {
+                    if (instance == null) {
+                        if (!warmingUp.get()) {
+                            lock.lock();
+                        } else if (!lock.tryLock()) {
+                            throw new ContendedException(key);
+                        }
+                        try {
+                            if (instance == null) {
+                                final T provided = unscoped.get();
+                                final Object providedOrNull = provided == null ? NULL : provided;
+                                // as guice does, a circular dependency may
+                                // only have created the same instance.
+                                if (instance != null && instance != providedOrNull) {
+                                    throw new ProvisionException(
+                                            "Provider was reentrant while creating a singleton");
+                                }
+                                instance = providedOrNull;
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                    final Object result = instance;
+                    return result == NULL ? null : (T) result;
+                }
+
+                /*
+                 * (non-Javadoc)
+                 * @see java.lang.Object#toString()
+                 */
+                @Override
+                public String toString() {
+                    return String.format("%s[%s]", unscoped, ConcurrentSingletonScope.this);
+                }
+            };
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return "SingletonWarmup.SINGLETON";
+        }
+    }
+
+    /**
+     * The stage the injector is created in.
+     */
+    private final Stage stage;
+
+    /**
+     * The scope singletons are rebound to.
+     */
+    private final ConcurrentSingletonScope scope = new ConcurrentSingletonScope();
+
+    /**
+     * Keys of the rebound singletons.
+     */
+    private final List<Key<?>> keys = new ArrayList<>();
+
+    /**
+     * Create a warm up for an injector.
+     *
+     * @param stage
+     *            the stage the injector is created in, singletons are warmed up
+     *            if the stage would create them eagerly.
+     */
+    public SingletonWarmup(final Stage stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * Get a module replaying recorded elements, with the singletons the stage
+     * would create eagerly rebound to be warmed up instead.
+     *
+     * @param elements
+     *            the recorded elements.
+     * @return the module.
+     */
+    public Module rebind(final List<Element> elements) {
+        return binder -> {
+            for (final Element element : elements) {
+                if (!(element instanceof Binding) || !isEager((Binding<?>) element)
+                        || !rebind(binder, (Binding<?>) element)) {
+                    element.applyTo(binder);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of singletons to warm up.
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Check if a binding is a singleton the stage creates eagerly.
+     *
+     * @param binding
+     *            the binding.
+     * @return <code>true</code> if the binding is an eager singleton.
+     */
+    private boolean isEager(final Binding<?> binding) {
+        if (stage == Stage.TOOL) {
+            return false;
+        }
+        return binding.acceptScopingVisitor(new DefaultBindingScopingVisitor<Boolean>() {
+            @Override
+            public Boolean visitEagerSingleton() {
+                return true;
+            }
+
+            @Override
+            public Boolean visitScope(final Scope bindingScope) {
+                return stage == Stage.PRODUCTION && bindingScope == Scopes.SINGLETON;
+            }
+
+            @Override
+            public Boolean visitScopeAnnotation(final Class<? extends Annotation> annotation) {
+                return stage == Stage.PRODUCTION
+                        && (annotation == Singleton.class
+                        || annotation == com.google.inject.Singleton.class);
+            }
+
+            @Override
+            protected Boolean visitOther() {
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Bind the target of a binding in the warm up scope.
+     *
+     * @param binder
+     *            the binder.
+     * @param binding
+     *            the binding.
+     * @return <code>false</code> if the binding cannot be rebound and should
+     *         be applied as is.
+     */
+    private <T> boolean rebind(final Binder binder, final Binding<T> binding) {
+        final Binder sourceBinder = binder.withSource(binding.getSource());
+        final Key<T> key = binding.getKey();
+        final ScopedBindingBuilder builder =
+                binding.acceptTargetVisitor(new DefaultBindingTargetVisitor<T, ScopedBindingBuilder>() {
+                    @Override
+                    public ScopedBindingBuilder visit(
+                            final ProviderInstanceBinding<? extends T> providerBinding) {
+                        return sourceBinder.bind(key).toProvider(
+                                providerBinding.getProviderInstance());
+                    }
+
+                    @Override
+                    public ScopedBindingBuilder visit(
+                            final ProviderKeyBinding<? extends T> providerBinding) {
+                        return sourceBinder.bind(key).toProvider(providerBinding.getProviderKey());
+                    }
+
+                    @Override
+                    public ScopedBindingBuilder visit(
+                            final LinkedKeyBinding<? extends T> linkedBinding) {
+                        return sourceBinder.bind(key).to(linkedBinding.getLinkedKey());
+                    }
+
+                    @Override
+                    public ScopedBindingBuilder visit(
+                            final UntargettedBinding<? extends T> untargettedBinding) {
+                        return sourceBinder.bind(key);
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public ScopedBindingBuilder visit(
+                            final ConstructorBinding<? extends T> constructorBinding) {
+                        return sourceBinder.bind(key).toConstructor(
+                                (Constructor<T>) constructorBinding.getConstructor().getMember(),
+                                (TypeLiteral<T>) constructorBinding.getConstructor()
+                                        .getDeclaringType());
+                    }
+                });
+        if (builder == null) {
+            // instances and other targets have nothing to create.
+            return false;
+        }
+        builder.in(scope);
+        keys.add(key);
+        return true;
+    }
+
+    /**
+     * Create the rebound singletons in parallel.
+     *
+     * @param injector
+     *            the injector created with {@link #rebind(List)}.
+     * @param executor
+     *            the executor to create the singletons on.
+     * @throws CreationException
+     *             listing all singletons that could not be created.
+     */
+    public void warmUp(final Injector injector, final ExecutorService executor) {
+        // singletons each singleton waits for, and the other way round.
+        final Map<Key<?>, Set<Key<?>>> waitingFor = new LinkedHashMap<>();
+        final Map<Key<?>, List<Key<?>>> waitedForBy = new HashMap<>();
+        final Set<Key<?>> singletons = new HashSet<>(keys);
+        for (final Key<?> key : keys) {
+            final Set<Key<?>> dependencies = getSingletonDependencies(injector, key, singletons);
+            waitingFor.put(key, dependencies);
+            for (final Key<?> dependency : dependencies) {
+                waitedForBy.computeIfAbsent(dependency, k -> new ArrayList<>()).add(key);
+            }
+        }
+
+        final List<Message> errors = new ArrayList<>();
+        // singletons that ran into one being created by another thread.
+        final Queue<Key<?>> deferred = new ConcurrentLinkedQueue<>();
+        final CompletionService<Key<?>> completionService =
+                new ExecutorCompletionService<>(executor);
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        int running = 0;
+        final Deque<Key<?>> ready = new ArrayDeque<>();
+        for (final Map.Entry<Key<?>, Set<Key<?>>> entry : waitingFor.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                ready.add(entry.getKey());
+            }
+        }
+        try {
+            while (!ready.isEmpty() || running > 0) {
+                while (!ready.isEmpty()) {
+                    final Key<?> key = ready.poll();
+                    waitingFor.remove(key);
+                    completionService.submit(() -> {
+                        final Thread thread = Thread.currentThread();
+                        final ClassLoader threadClassLoader = thread.getContextClassLoader();
+                        thread.setContextClassLoader(contextClassLoader);
+                        scope.warmingUp.set(true);
+                        try {
+                            create(injector, key);
+                        } catch (final WarmupException e) {
+                            if (!isContended(e.getCause())) {
+                                throw e;
+                            }
+                            log.debug("Deferring singleton {} created by another thread", key);
+                            deferred.add(key);
+                            return null;
+                        } finally {
+                            scope.warmingUp.remove();
+                            thread.setContextClassLoader(threadClassLoader);
+                        }
+                        return key;
+                    });
+                    running++;
+                }
+                Key<?> done;
+                try {
+                    done = completionService.take().get();
+                } catch (final ExecutionException e) {
+                    // created keys are reported by the task, failed and
+                    // deferred ones are not.
+                    done = addError(errors, e.getCause());
+                }
+                running--;
+                if (done != null) {
+                    for (final Key<?> dependent : waitedForBy.getOrDefault(done,
+                            ImmutableList.<Key<?>> of())) {
+                        final Set<Key<?>> dependencies = waitingFor.get(dependent);
+                        if (dependencies != null && dependencies.remove(done)
+                                && dependencies.isEmpty()) {
+                            ready.add(dependent);
+                        }
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        // deferred singletons, singletons depending on deferred or failed
+        // ones, and singletons depending on each other are created on the
+        // calling thread.
+        final Set<Key<?>> remaining = new LinkedHashSet<>(deferred);
+        remaining.addAll(waitingFor.keySet());
+        for (final Key<?> key : remaining) {
+            try {
+                create(injector, key);
+            } catch (final WarmupException e) {
+                addError(errors, e);
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new CreationException(errors);
+        }
+    }
+
+    /**
+     * Create a singleton.
+     *
+     * @param injector
+     *            the injector.
+     * @param key
+     *            the singleton key.
+     * @throws WarmupException
+     *             if the singleton could not be created.
+     */
+    private static void create(final Injector injector, final Key<?> key) {
+        final long start = System.nanoTime();
+        try {
+            injector.getInstance(key);
+        } catch (final RuntimeException | LinkageError e) {
+            throw new WarmupException(key, e);
+        }
+        log.debug("Created singleton {} in {} ms", key, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Add the errors of a failed singleton.
+     *
+     * @param errors
+     *            the errors to add to.
+     * @param failure
+     *            the failure.
+     * @return <code>null</code> as the singleton was not created.
+     */
+    private static Key<?> addError(final List<Message> errors, final Throwable failure) {
+        if (!(failure instanceof WarmupException)) {
+            throw new IllegalStateException(failure);
+        }
+        final WarmupException warmupException = (WarmupException) failure;
+        final Throwable cause = warmupException.getCause();
+        if (cause instanceof ProvisionException) {
+            errors.addAll(((ProvisionException) cause).getErrorMessages());
+        } else {
+            errors.add(new Message(ImmutableList.<Object> of(warmupException.key),
+                    "Error creating singleton: " + cause, cause));
+        }
+        return null;
+    }
+
+    /**
+     * Check if a singleton failed because a warm up thread ran into a
+     * singleton being created by another thread.
+     *
+     * @param failure
+     *            the failure.
+     * @return <code>true</code> if the failure was caused by a
+     *         {@link ContendedException}.
+     */
+    private static boolean isContended(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ContendedException) {
+                return true;
+            }
+            if (cause instanceof ProvisionException) {
+                // guice only sets the cause if there is a single error.
+                for (final Message message : ((ProvisionException) cause).getErrorMessages()) {
+                    if (message.getCause() != null && isContended(message.getCause())) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the singletons a singleton depends on, directly or through bindings
+     * that are not singletons. Providers are not followed, they are not
+     * needed to create the singleton.
+     *
+     * @param injector
+     *            the injector.
+     * @param key
+     *            the singleton key.
+     * @param singletons
+     *            the singletons to warm up.
+     * @return the singleton dependencies.
+     */
+    private static Set<Key<?>> getSingletonDependencies(final Injector injector,
+            final Key<?> key, final Set<Key<?>> singletons) {
+        final Set<Key<?>> dependencies = new HashSet<>();
+        final Set<Key<?>> visited = new HashSet<>();
+        final Deque<Key<?>> pending = new ArrayDeque<>();
+        pending.add(key);
+        visited.add(key);
+        while (!pending.isEmpty()) {
+            final Binding<?> binding = injector.getExistingBinding(pending.poll());
+            if (!(binding instanceof HasDependencies)) {
+                continue;
+            }
+            for (final Dependency<?> dependency : ((HasDependencies) binding).getDependencies()) {
+                final Key<?> dependencyKey = dependency.getKey();
+                final Class<?> rawType = dependencyKey.getTypeLiteral().getRawType();
+                if (rawType == Provider.class || rawType == javax.inject.Provider.class
+                        || !visited.add(dependencyKey)) {
+                    continue;
+                }
+                if (singletons.contains(dependencyKey)) {
+                    dependencies.add(dependencyKey);
+                } else {
+                    pending.add(dependencyKey);
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * Failure to create a singleton.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class WarmupException extends RuntimeException {
+        /**
+         * Serial version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The singleton key.
+         */
+        private final transient Key<?> key;
+
+        /**
+         * @param key
+         *            the singleton key.
+         * @param cause
+         *            the failure.
+         */
+        public WarmupException(final Key<?> key, final Throwable cause) {
+            super(cause);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Thrown on a warm up thread instead of waiting for a singleton another
+     * thread is creating.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class ContendedException extends RuntimeException {
+        /**
+         * Serial version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param key
+         *            the singleton key.
+         */
+        public ContendedException(final Key<?> key) {
+            super("Singleton " + key + " is being created by another thread");
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+/**
+ * How cached query results of {@link CachingJavaTypeQueryHandler} are kept up
+ * to date once the cache timeout passes.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public enum CacheRefreshMode {
+    /**
+     * Results expire after the timeout. The next query blocks while the
+     * classpath is scanned again.
+     */
+    Expire,
+    /**
+     * Results are refreshed after the timeout. The stale result keeps being
+     * served while a background thread scans the classpath again.
+     */
+    Refresh,
+    /**
+     * Results never expire. Use when the classpath does not change during
+     * the life of the application.
+     */
+    Never;
+}
@@ -16,9 +16,41 @@
 
 package com.strandls.alchemy.reflect;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.Annotation;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -29,20 +61,28 @@ import lombok.RequiredArgsConstructor;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
+import org.reflections.ReflectionUtils;
 import org.reflections.Reflections;
-import org.reflections.ReflectionsException;
-import org.reflections.adapters.MetadataAdapter;
+import org.reflections.util.ClasspathHelper;
 import org.reflections.util.FilterBuilder;
-import org.reflections.vfs.Vfs.File;
 
+import com.google.common.base.Predicate;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 /**
- * Caching implementation of {@link JavaTypeQueryHandler} that uses
- * {@link Reflections} behind the scenes. {@link Reflections} does not cache
- * results making it slow. This implementation will speed up class queries
+ * Caching implementation of {@link JavaTypeQueryHandler} that scans with a
+ * {@link ScanEngine}, {@link Reflections} by default, behind the scenes.
+ * {@link Reflections} does not cache results making it slow. This implementation will speed up class queries
  * because a lot of different classes would fire similar queries.
  *
  * @author Ashish Shinde
@@ -50,7 +90,7 @@ import com.google.common.cache.LoadingCache;
  */
 @Singleton
 @Slf4j
-public class CachingJavaTypeQueryHandler implements JavaTypeQueryHandler {
+public class CachingJavaTypeQueryHandler implements JavaTypeQueryHandler, AutoCloseable {
     /**
      * Represents a query for an Annotation.
      *
@@ -59,35 +99,22 @@ public class CachingJavaTypeQueryHandler implements JavaTypeQueryHandler {
      */
     @EqualsAndHashCode
     @RequiredArgsConstructor
+    @ToString
     private static class AnnotationQuery {
         /**
-         * The annotation being searched for.
+         * Name of the annotation being searched for. Keys hold names rather
+         * than classes so that they do not pin class loaders.
          */
-        private final Class<? extends Annotation> annotation;
+        private final String annotationName;
         /**
          * The package pattern.
          */
         private final String packageRegex;
-    }
-
-    /**
-     * Filter clases objects that are not safe to load.
-     *
-     * @author Ashish Shinde
-     *
-     */
-    private static final class ClassObjectFilter {
-        public boolean isSafe(final File file, final Object classObject,
-                @SuppressWarnings("rawtypes") final MetadataAdapter metadataAdaptor) {
-            @SuppressWarnings("unchecked")
-            final String className = metadataAdaptor.getClassName(classObject);
-            final String relativePath = file.getRelativePath();
-            if (!className.replaceAll("\\.", "/").equals(relativePath.replaceAll("\\.class$", ""))) {
-                log.warn("Class path file path mismatch. Ignoring {}", file);
-                return false;
-            }
-            return true;
-        }
+        /**
+         * The classpath urls to search in, <code>null</code> to use urls for
+         * the package pattern.
+         */
+        private final Set<URL> urls;
     }
 
     /**
@@ -104,134 +131,219 @@ public class CachingJavaTypeQueryHandler implements JavaTypeQueryHandler {
          */
         private final String packageRegex;
         /**
-         * The super type.
+         * Name of the super type.
          */
-        @SuppressWarnings("rawtypes")
-        private final Class type;
+        private final String typeName;
     }
 
     /**
-     * A scanner that ignore classes that cannot be loaded by the class loader.
-     * The name has to be SubTypesScanner because reflections uses that as the
-     * cache key.
-     *
-     * @author Ashish Shinde
-     *
+     * The parameter name for the cache size.
      */
-    private static final class SubTypesScanner extends org.reflections.scanners.SubTypesScanner {
-        /**
-         * Filter for class objects.
-         */
-        private final ClassObjectFilter classObjectFilter;
+    public static final String CLASS_CACHE_SIZE_PARAM =
+            "com.strandls.alchemy.cdo.common.reflect.CachingJavaTypeQueryHandler"
+                    + ".classCacheSize";
 
-        /**
-         * Initialize the scanner.
-         */
-        public SubTypesScanner(final ClassObjectFilter classObjectFilter) {
-            super();
-            this.classObjectFilter = classObjectFilter;
-        }
+    /**
+     * The parameter name for the maximum number of classes retained across
+     * all cached class query results. A positive value bounds the cache by
+     * the size of the results instead of by {@link #CLASS_CACHE_SIZE_PARAM}.
+     */
+    public static final String CLASS_CACHE_MAX_WEIGHT_PARAM =
+            "com.strandls.alchemy.cdo.common.reflect.CachingJavaTypeQueryHandler"
+                    + ".classCacheMaxWeight";
 
-        /*
-         * (non-Javadoc)
-         * @see
-         * org.reflections.scanners.AbstractScanner#scan(org.reflections.vfs
-         * .Vfs.File, java.lang.Object)
-         */
-        @Override
-        public Object scan(final File file, Object classObject) {
-            if (classObject == null) {
-                try {
-                    classObject = getMetadataAdapter().getOfCreateClassObject(file);
-                } catch (final Exception e) {
-                    throw new ReflectionsException("could not create class object from file "
-                            + file.getRelativePath());
-                }
-            }
-            if (classObjectFilter.isSafe(file, classObject, getMetadataAdapter())) {
-                scan(classObject);
-                return classObject;
-            }
-            return null;
-        }
+    /**
+     * The parameter name for the cache timeout.
+     */
+    public static final String CLASS_CACHE_TIMEOUT_MILLIS_PARAM =
+            "com.strandls.alchemy.cdo.common.reflect.CachingJavaTypeQueryHandler"
+                    + ".classCacheTimeoutMillis";
 
-    }
+    /**
+     * The parameter name for the {@link CacheRefreshMode}.
+     */
+    public static final String CLASS_CACHE_REFRESH_MODE_PARAM =
+            "com.strandls.alchemy.cdo.common.reflect.CachingJavaTypeQueryHandler"
+                    + ".classCacheRefreshMode";
 
     /**
-     * A scanner that ignore classes that cannot be loaded by the class loader.
-     * The name has to be SubTypesScanner because reflections uses that as the
-     * cache key.
-     *
-     * @author Ashish Shinde
-     *
+     * The parameter name for the persistent scan cache file. An empty value
+     * disables the persistent cache.
      */
-    private static final class TypeAnnotationsScanner extends
-    org.reflections.scanners.TypeAnnotationsScanner {
+    public static final String SCAN_CACHE_FILE_PARAM =
+            "com.strandls.alchemy.cdo.common.reflect.CachingJavaTypeQueryHandler"
+                    + ".scanCacheFile";
 
-        /**
-         * Filter for class objects.
-         */
-        private final ClassObjectFilter classObjectFilter;
+    /**
+     * The parameter name for the {@link ScanEngine} implementation class.
+     */
+    public static final String SCAN_ENGINE_PARAM =
+            "com.strandls.alchemy.cdo.common.reflect.CachingJavaTypeQueryHandler"
+                    + ".scanEngine";
 
-        /**
-         * Initialize the scanner.
-         */
-        public TypeAnnotationsScanner(final ClassObjectFilter classObjectFilter) {
-            super();
-            this.classObjectFilter = classObjectFilter;
-        }
+    /**
+     * The parameter name for the number of classpath urls scanned in parallel.
+     * A value of one scans on the calling thread, zero scans each url on its
+     * own virtual thread when the JVM supports them and falls back to one
+     * thread per processor otherwise.
+     */
+    public static final String SCAN_PARALLELISM_PARAM =
+            "com.strandls.alchemy.cdo.common.reflect.CachingJavaTypeQueryHandler"
+                    + ".scanParallelism";
 
-        /*
-         * (non-Javadoc)
-         * @see
-         * org.reflections.scanners.AbstractScanner#scan(org.reflections.vfs
-         * .Vfs.File, java.lang.Object)
-         */
-        @Override
-        public Object scan(final File file, Object classObject) {
-            if (classObject == null) {
-                try {
-                    classObject = getMetadataAdapter().getOfCreateClassObject(file);
-                } catch (final Exception e) {
-                    throw new ReflectionsException("could not create class object from file "
-                            + file.getRelativePath());
-                }
-            }
-            if (classObjectFilter.isSafe(file, classObject, getMetadataAdapter())) {
-                scan(classObject);
-                return classObject;
-            }
-            return null;
-        }
+    /**
+     * Default for {@link #CLASS_CACHE_TIMEOUT_MILLIS_PARAM}.
+     */
+    static final int DEFAULT_CLASS_CACHE_TIMEOUT_MILLIS = 100000;
 
-    }
+    /**
+     * Default for {@link #CLASS_CACHE_SIZE_PARAM}.
+     */
+    static final int DEFAULT_CLASS_CACHE_SIZE = 1000;
 
     /**
-     * The parameter name for the cache size.
+     * Class loaders to use for the default scope, that is the context and
+     * static class loaders.
      */
-    public static final String CLASS_CACHE_SIZE_PARAM =
-            "com.strandls.alchemy.cdo.common.reflect.CachingJavaTypeQueryHandler"
-                    + ".classCacheSize";
+    private static final ClassLoader[] DEFAULT_CLASS_LOADERS = new ClassLoader[0];
 
     /**
-     * The parameter name for the cache timeout.
+     * Number of merged indexes to retain. Queries mostly differ in the package
+     * regex, not in the urls searched.
      */
-    public static final String CLASS_CACHE_TIMEOUT_MILLIS_PARAM =
-            "com.strandls.alchemy.cdo.common.reflect.CachingJavaTypeQueryHandler"
-                    + ".classCacheTimeoutMillis";
+    private static final int TYPE_INDEX_CACHE_SIZE = 8;
+
+    /**
+     * Cache for annotation and sub type queries, keyed by
+     * {@link AnnotationQuery} and {@link SubTypeQuery}. Both kinds share one
+     * cache so that a weight bound applies to all retained classes.
+     */
+    private final LoadingCache<Object, Set<Class<?>>> classQueryCache;
+
+    /**
+     * Class query caches for context class loaders that are not the class
+     * loader of this handler or one of its parents, e.g. those of redeployable
+     * web applications. Loaders are held weakly and the results, which
+     * reference classes of the loader, softly. Results survive garbage
+     * collections until memory runs low, a cache is dropped once its loader
+     * becomes unreachable.
+     */
+    private final LoadingCache<ClassLoader, LoadingCache<Object, Set<Class<?>>>> scopedClassQueryCaches;
+
+    /**
+     * Cache for annotation queries answered with type handles.
+     */
+    private final LoadingCache<AnnotationQuery, Set<TypeHandle>> annotationHandleQueryCache;
+
+    /**
+     * Type handle query caches for the same context class loaders as
+     * {@link #scopedClassQueryCaches}, for queries that find their urls
+     * through the context class loader. Type handles do not reference
+     * classes, loaders are held weakly and the results strongly.
+     */
+    private final LoadingCache<ClassLoader, LoadingCache<AnnotationQuery, Set<TypeHandle>>>
+            scopedAnnotationHandleQueryCaches;
+
+    /**
+     * Scans classpath urls.
+     */
+    private final ScanEngine scanEngine;
+
+    /**
+     * Cache of scanned classpath urls, optionally persistent.
+     */
+    private final ScanCache scanCache;
+
+    /**
+     * Merged indexes keyed by the scanned types they merge.
+     */
+    private final LoadingCache<List<ScannedTypes>, TypeIndex> typeIndexCache;
+
+    /**
+     * Executor for refreshing stale query results and for prewarming in the
+     * background, created on first use.
+     */
+    private ExecutorService refreshExecutor;
 
     /**
-     * Cache for annotation queries.
+     * Indicates if the handler has been closed.
      */
-    private final LoadingCache<AnnotationQuery, Set<Class<?>>> annotationQueryCache;
+    private boolean closed;
 
-    private final ClassObjectFilter classObjectFilter;
+    /**
+     * Executor for scanning classpath urls in parallel, <code>null</code> to
+     * scan on the calling thread.
+     */
+    private final ExecutorService scanExecutor;
 
     /**
-     * Cache for sub type queries.
+     * Create a type handler configured with the system properties named by the
+     * <code>*_PARAM</code> constants. Invalid values are logged and replaced
+     * by their defaults, so that a misconfiguration does not keep classes
+     * creating the handler statically from loading.
+     *
+     * @return the type handler.
+     */
+    public static CachingJavaTypeQueryHandler fromSystemProperties() {
+        return new CachingJavaTypeQueryHandler(Integer.getInteger(
+                CLASS_CACHE_TIMEOUT_MILLIS_PARAM, DEFAULT_CLASS_CACHE_TIMEOUT_MILLIS),
+                Integer.getInteger(CLASS_CACHE_SIZE_PARAM, DEFAULT_CLASS_CACHE_SIZE),
+                Integer.getInteger(CLASS_CACHE_MAX_WEIGHT_PARAM, 0), getRefreshMode(),
+                System.getProperty(SCAN_CACHE_FILE_PARAM, ""), Integer.getInteger(
+                        SCAN_PARALLELISM_PARAM, Runtime.getRuntime().availableProcessors()),
+                createScanEngine());
+    }
+
+    /**
+     * Get the refresh mode from the system properties.
+     *
+     * @return the refresh mode, {@link CacheRefreshMode#Expire} unless
+     *         overridden.
+     */
+    static CacheRefreshMode getRefreshMode() {
+        final String refreshMode =
+                System.getProperty(CLASS_CACHE_REFRESH_MODE_PARAM, CacheRefreshMode.Expire.name());
+        try {
+            return CacheRefreshMode.valueOf(refreshMode);
+        } catch (final IllegalArgumentException e) {
+            log.warn("Invalid class cache refresh mode {}, using {}", refreshMode,
+                    CacheRefreshMode.Expire);
+            return CacheRefreshMode.Expire;
+        }
+    }
+
+    /**
+     * Create the scan engine from the system properties.
+     *
+     * @return the scan engine, a {@link ReflectionsScanEngine} unless
+     *         overridden.
+     */
+    static ScanEngine createScanEngine() {
+        final String className =
+                System.getProperty(SCAN_ENGINE_PARAM, ReflectionsScanEngine.class.getName());
+        try {
+            return Class.forName(className).asSubclass(ScanEngine.class).newInstance();
+        } catch (final ReflectiveOperationException | ClassCastException e) {
+            log.warn("Invalid scan engine {}, using {}", className,
+                    ReflectionsScanEngine.class.getName(), e);
+            return new ReflectionsScanEngine();
+        }
+    }
+
+    /**
+     * Create a new type handler with expiring results and without a
+     * persistent scan cache.
+     *
+     * @param classQueryCacheTimeoutMillis
+     *            the timeout for classes in the cache.
+     * @param classQueryCacheSize
+     *            the number of cache items.
      */
-    @SuppressWarnings("rawtypes")
-    private final LoadingCache<SubTypeQuery, Set> subTypeQueryCache;
+    public CachingJavaTypeQueryHandler(final Integer classQueryCacheTimeoutMillis,
+            final Integer classQueryCacheSize) {
+        this(classQueryCacheTimeoutMillis, classQueryCacheSize, 0, CacheRefreshMode.Expire, "",
+                Runtime.getRuntime().availableProcessors(), new ReflectionsScanEngine());
+    }
 
     /**
      * Create a new type handler.
@@ -240,32 +352,278 @@ public class CachingJavaTypeQueryHandler implements JavaTypeQueryHandler {
      *            the timeout for classes in the cache.
      * @param classQueryCacheSize
      *            the number of cache items.
+     * @param classQueryCacheMaxWeight
+     *            the maximum number of classes retained by cached class
+     *            queries, zero or less to bound by the number of cache items.
+     * @param refreshMode
+     *            how results are kept up to date after the timeout.
+     * @param scanCacheFile
+     *            path of the persistent scan cache file, empty to disable the
+     *            persistent cache.
+     * @param scanParallelism
+     *            the number of classpath urls scanned in parallel, see
+     *            {@link #SCAN_PARALLELISM_PARAM}.
+     * @param scanEngine
+     *            scans classpath urls.
      */
     @Inject
     public CachingJavaTypeQueryHandler(
             @Named(CLASS_CACHE_TIMEOUT_MILLIS_PARAM) final Integer classQueryCacheTimeoutMillis,
-            @Named(CLASS_CACHE_SIZE_PARAM) final Integer classQueryCacheSize) {
-        subTypeQueryCache =
-                createSubTypeQueryCache(classQueryCacheTimeoutMillis, classQueryCacheSize);
-        annotationQueryCache =
-                createAnnotationQueryCache(classQueryCacheTimeoutMillis, classQueryCacheSize);
-        classObjectFilter = new ClassObjectFilter();
+            @Named(CLASS_CACHE_SIZE_PARAM) final Integer classQueryCacheSize,
+            @Named(CLASS_CACHE_MAX_WEIGHT_PARAM) final Integer classQueryCacheMaxWeight,
+            @Named(CLASS_CACHE_REFRESH_MODE_PARAM) final CacheRefreshMode refreshMode,
+            @Named(SCAN_CACHE_FILE_PARAM) final String scanCacheFile,
+            @Named(SCAN_PARALLELISM_PARAM) final Integer scanParallelism,
+            final ScanEngine scanEngine) {
+        scanExecutor = createScanExecutor(scanParallelism);
+        classQueryCache =
+                createClassQueryCache(classQueryCacheTimeoutMillis, classQueryCacheSize,
+                        classQueryCacheMaxWeight, refreshMode, null);
+        scopedClassQueryCaches =
+                CacheBuilder.newBuilder().weakKeys()
+                        .build(new CacheLoader<ClassLoader, LoadingCache<Object, Set<Class<?>>>>() {
+                            /*
+                             * (non-Javadoc)
+                             * @see
+                             * com.google.common.cache.CacheLoader#load(java.lang
+                             * .Object)
+                             */
+                            @Override
+                            public LoadingCache<Object, Set<Class<?>>> load(final ClassLoader classLoader) {
+                                log.debug("Creating class query cache for {}", classLoader);
+                                return createClassQueryCache(classQueryCacheTimeoutMillis,
+                                        classQueryCacheSize, classQueryCacheMaxWeight,
+                                        refreshMode, new WeakReference<>(classLoader));
+                            }
+                        });
+        annotationHandleQueryCache =
+                createAnnotationHandleQueryCache(classQueryCacheTimeoutMillis,
+                        classQueryCacheSize, refreshMode, null);
+        scopedAnnotationHandleQueryCaches =
+                CacheBuilder.newBuilder().weakKeys().build(
+                        new CacheLoader<ClassLoader, LoadingCache<AnnotationQuery, Set<TypeHandle>>>() {
+                            /*
+                             * (non-Javadoc)
+                             * @see
+                             * com.google.common.cache.CacheLoader#load(java.lang
+                             * .Object)
+                             */
+                            @Override
+                            public LoadingCache<AnnotationQuery, Set<TypeHandle>> load(
+                                    final ClassLoader classLoader) {
+                                log.debug("Creating type handle query cache for {}", classLoader);
+                                return createAnnotationHandleQueryCache(
+                                        classQueryCacheTimeoutMillis, classQueryCacheSize,
+                                        refreshMode, new WeakReference<>(classLoader));
+                            }
+                        });
+        this.scanEngine = scanEngine;
+        scanCache =
+                new ScanCache(scanCacheFile.isEmpty() ? null : Paths.get(scanCacheFile)
+                        .toFile());
+        typeIndexCache =
+                CacheBuilder.newBuilder().maximumSize(TYPE_INDEX_CACHE_SIZE)
+                        .build(new CacheLoader<List<ScannedTypes>, TypeIndex>() {
+                            /*
+                             * (non-Javadoc)
+                             * @see
+                             * com.google.common.cache.CacheLoader#load(java.lang
+                             * .Object)
+                             */
+                            @Override
+                            public TypeIndex load(final List<ScannedTypes> scans) {
+                                final TypeIndex index = new TypeIndex(scans);
+                                log.debug("Indexed {} types in {} bytes, sub type closures take {}"
+                                        + " bytes", index.getTypeCount(),
+                                        index.getByteSize(), index.getClosureBytes());
+                                return index;
+                            }
+                        });
+    }
+
+    /**
+     * Create the executor for scanning classpath urls.
+     *
+     * @param scanParallelism
+     *            the number of urls scanned in parallel, see
+     *            {@link #SCAN_PARALLELISM_PARAM}.
+     * @return the executor, <code>null</code> to scan on the calling thread.
+     */
+    private ExecutorService createScanExecutor(final int scanParallelism) {
+        if (scanParallelism == 1) {
+            return null;
+        }
+        if (scanParallelism <= 0) {
+            try {
+                // scanning jars is mostly io bound, virtual threads are the
+                // cheapest way to keep many jars in flight. Looked up
+                // reflectively to keep running on older JVMs.
+                return (ExecutorService) Executors.class.getMethod(
+                        "newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (final ReflectiveOperationException e) {
+                log.debug("Virtual threads not supported, using platform threads for scanning");
+            }
+        }
+        final int threads =
+                scanParallelism > 0 ? scanParallelism : Runtime.getRuntime()
+                        .availableProcessors();
+        // pool threads would otherwise inherit the context class loader of
+        // the request that happens to start them and pin it while idle.
+        final ThreadFactory threadFactory = runnable -> {
+            final Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+            thread.setContextClassLoader(null);
+            return thread;
+        };
+        final ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                                .setThreadFactory(threadFactory).setDaemon(true)
+                                .setNameFormat("alchemy-type-query-scan-%d").build());
+        // scans are bursty, do not hold on to idle threads.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Get the refresh executor, creating it on first use. Only handlers that
+     * refresh results or prewarm need the executor.
+     *
+     * @return the refresh executor.
+     * @throws RejectedExecutionException
+     *             if the handler has been closed.
+     */
+    private synchronized ExecutorService getRefreshExecutor() {
+        if (closed) {
+            throw new RejectedExecutionException("Type query handler has been closed");
+        }
+        if (refreshExecutor == null) {
+            refreshExecutor =
+                    Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("alchemy-type-query-refresh-%d").build());
+        }
+        return refreshExecutor;
+    }
+
+    /**
+     * Shut down the refresh and scan executors. Pending refreshes and
+     * prewarms are completed, later ones are rejected. Queries still work
+     * after closing, scanning classpath urls on the calling thread.
+     *
+     * Handlers shared by the whole JVM need not be closed, the executor
+     * threads are daemons and idle ones time out. Close handlers created by an
+     * application that can be undeployed.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdown();
+        }
+        if (scanExecutor != null) {
+            scanExecutor.shutdown();
+        }
     }
 
     /**
-     * Create annotation query cache.
+     * Create a cache builder honoring the refresh mode.
      *
      * @param classQueryCacheTimeoutMillis
      *            the timeout for classes in the cache.
      * @param classQueryCacheSize
      *            the number of cache items.
+     * @param refreshMode
+     *            how results are kept up to date after the timeout.
+     * @return the cache builder.
+     */
+    private CacheBuilder<Object, Object> newCacheBuilder(
+            final Integer classQueryCacheTimeoutMillis, final Integer classQueryCacheSize,
+            final CacheRefreshMode refreshMode) {
+        return withRefreshMode(CacheBuilder.newBuilder().maximumSize(classQueryCacheSize),
+                classQueryCacheTimeoutMillis, refreshMode);
+    }
+
+    /**
+     * Apply the refresh mode to a cache builder.
+     *
+     * @param builder
+     *            the cache builder.
+     * @param classQueryCacheTimeoutMillis
+     *            the timeout for classes in the cache.
+     * @param refreshMode
+     *            how results are kept up to date after the timeout.
+     * @return the cache builder.
+     */
+    private <K, V> CacheBuilder<K, V> withRefreshMode(final CacheBuilder<K, V> builder,
+            final Integer classQueryCacheTimeoutMillis, final CacheRefreshMode refreshMode) {
+        switch (refreshMode) {
+        case Expire:
+            builder.expireAfterWrite(classQueryCacheTimeoutMillis, TimeUnit.MILLISECONDS);
+            break;
+        case Refresh:
+            builder.refreshAfterWrite(classQueryCacheTimeoutMillis, TimeUnit.MILLISECONDS);
+            break;
+        case Never:
+        default:
+            break;
+        }
+        return builder;
+    }
+
+    /**
+     * Wrap a loader so that refreshes run on the refresh executor, while the
+     * stale value keeps being served.
+     *
+     * @param loader
+     *            the loader.
+     * @return loader with asynchronous reloads.
+     */
+    private <K, V> CacheLoader<K, V> asyncReloading(final CacheLoader<K, V> loader) {
+        return new CacheLoader<K, V>() {
+            /*
+             * (non-Javadoc)
+             * @see com.google.common.cache.CacheLoader#load(java.lang.Object)
+             */
+            @Override
+            public V load(final K key) throws Exception {
+                return loader.load(key);
+            }
+
+            /*
+             * (non-Javadoc)
+             * @see com.google.common.cache.CacheLoader#reload(java.lang.Object,
+             * java.lang.Object)
+             */
+            @Override
+            public ListenableFuture<V> reload(final K key, final V oldValue) {
+                final ListenableFutureTask<V> task = ListenableFutureTask.create(() -> {
+                    log.debug("Refreshing query {}", key);
+                    return loader.load(key);
+                });
+                getRefreshExecutor().execute(task);
+                return task;
+            }
+        };
+    }
+
+    /**
+     * Create annotation handle query cache.
+     *
+     * @param classQueryCacheTimeoutMillis
+     *            the timeout for classes in the cache.
+     * @param classQueryCacheSize
+     *            the number of cache items.
+     * @param refreshMode
+     *            how results are kept up to date after the timeout.
+     * @param scope
+     *            the class loader to find urls with, <code>null</code> for the
+     *            context and static class loaders.
      * @return a newly creates cache.
      */
-    private LoadingCache<AnnotationQuery, Set<Class<?>>> createAnnotationQueryCache(
-            final Integer classQueryCacheTimeoutMillis, final Integer classQueryCacheSize) {
-        return CacheBuilder.newBuilder().maximumSize(classQueryCacheSize)
-                .expireAfterWrite(classQueryCacheTimeoutMillis, TimeUnit.MILLISECONDS)
-                .build(new CacheLoader<AnnotationQuery, Set<Class<?>>>() {
+    private LoadingCache<AnnotationQuery, Set<TypeHandle>> createAnnotationHandleQueryCache(
+            final Integer classQueryCacheTimeoutMillis, final Integer classQueryCacheSize,
+            final CacheRefreshMode refreshMode, final WeakReference<ClassLoader> scope) {
+        return newCacheBuilder(classQueryCacheTimeoutMillis, classQueryCacheSize, refreshMode)
+                .build(asyncReloading(new CacheLoader<AnnotationQuery, Set<TypeHandle>>() {
                     /*
                      * (non-Javadoc)
                      * @see
@@ -273,62 +631,631 @@ public class CachingJavaTypeQueryHandler implements JavaTypeQueryHandler {
                      * )
                      */
                     @Override
-                    public Set<Class<?>> load(final AnnotationQuery query) throws Exception {
-                        log.debug("Executing annotation query {}", query);
-                        return getReflectionsObject(query.packageRegex).getTypesAnnotatedWith(
-                                query.annotation);
-
+                    public Set<TypeHandle> load(final AnnotationQuery query) throws Exception {
+                        final ClassLoader[] classLoaders;
+                        if (scope == null) {
+                            classLoaders = DEFAULT_CLASS_LOADERS;
+                        } else if (scope.get() != null) {
+                            classLoaders = new ClassLoader[] { scope.get() };
+                        } else {
+                            // only reachable by a refresh racing the unload.
+                            return Collections.emptySet();
+                        }
+                        log.debug("Executing annotation handle query {}", query);
+                        return getTypeHandlesAnnotatedWith(
+                                getTypeIndex(getScanUrls(query.packageRegex, query.urls,
+                                        classLoaders)), query.packageRegex,
+                                query.annotationName);
                     }
 
-                });
+                }));
     }
 
     /**
-     * Create subtype query cache.
+     * Create the class query cache, bounded either by the number of queries or
+     * by the number of classes in the results.
      *
      * @param classQueryCacheTimeoutMillis
      *            the timeout for classes in the cache.
      * @param classQueryCacheSize
      *            the number of cache items.
+     * @param classQueryCacheMaxWeight
+     *            the maximum number of retained classes, zero or less to bound
+     *            by the number of cache items.
+     * @param refreshMode
+     *            how results are kept up to date after the timeout.
+     * @param scope
+     *            the class loader to find and load classes with,
+     *            <code>null</code> for the context and static class loaders.
+     *            Results of a scoped cache are held softly.
      * @return a newly creates cache.
      */
-    @SuppressWarnings("rawtypes")
-    private LoadingCache<SubTypeQuery, Set> createSubTypeQueryCache(
-            final Integer classQueryCacheTimeoutMillis, final Integer classQueryCacheSize) {
-        return CacheBuilder.newBuilder().maximumSize(classQueryCacheSize)
-                .expireAfterWrite(classQueryCacheTimeoutMillis, TimeUnit.MILLISECONDS)
-                .build(new CacheLoader<SubTypeQuery, Set>() {
+    private LoadingCache<Object, Set<Class<?>>> createClassQueryCache(
+            final Integer classQueryCacheTimeoutMillis, final Integer classQueryCacheSize,
+            final Integer classQueryCacheMaxWeight, final CacheRefreshMode refreshMode,
+            final WeakReference<ClassLoader> scope) {
+        final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+        if (scope != null) {
+            // strong values would pin the weakly held loader through its
+            // classes.
+            builder.softValues();
+        }
+        if (classQueryCacheMaxWeight > 0) {
+            // a single segment, so that one large result can use the whole
+            // budget instead of the share of its segment.
+            builder.concurrencyLevel(1).maximumWeight(classQueryCacheMaxWeight).weigher(
+                    (final Object key, final Object value) -> getWeight((Set<?>) value));
+        } else {
+            builder.maximumSize(classQueryCacheSize);
+        }
+        return withRefreshMode(builder, classQueryCacheTimeoutMillis, refreshMode).build(
+                asyncReloading(new CacheLoader<Object, Set<Class<?>>>() {
                     /*
                      * (non-Javadoc)
                      * @see
                      * com.google.common.cache.CacheLoader#load(java.lang.Object
                      * )
                      */
-                    @SuppressWarnings("unchecked")
                     @Override
-                    public Set load(final SubTypeQuery query) throws Exception {
-                        log.debug("Executing sub type query {}", query);
-                        return getReflectionsObject(query.packageRegex).getSubTypesOf(query.type);
-
+                    public Set<Class<?>> load(final Object key) throws Exception {
+                        final ClassLoader[] classLoaders;
+                        if (scope == null) {
+                            classLoaders = DEFAULT_CLASS_LOADERS;
+                        } else if (scope.get() != null) {
+                            classLoaders = new ClassLoader[] { scope.get() };
+                        } else {
+                            // only reachable by a refresh racing the unload.
+                            return Collections.emptySet();
+                        }
+                        return loadClasses(key, classLoaders);
                     }
 
-                });
+                }));
+    }
+
+    /**
+     * Get the weight of a cached result. Empty results weigh as much as one
+     * class so that they are bounded as well.
+     *
+     * @param result
+     *            the result.
+     * @return the weight.
+     */
+    private static int getWeight(final Set<?> result) {
+        return Math.max(1, result.size());
+    }
+
+    /**
+     * Get the current weight of the class query cache, that is the number of
+     * classes retained across all cached annotation and sub type query results.
+     *
+     * @return the weight.
+     */
+    public long getClassCacheWeight() {
+        long weight = 0;
+        for (final Set<Class<?>> result : classQueryCache.asMap().values()) {
+            weight += getWeight(result);
+        }
+        for (final LoadingCache<Object, Set<Class<?>>> cache : scopedClassQueryCaches.asMap().values()) {
+            for (final Set<Class<?>> result : cache.asMap().values()) {
+                weight += getWeight(result);
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Get the class query cache for a scope.
+     *
+     * @param scope
+     *            the scope, see {@link #getScope()}.
+     * @return the cache.
+     */
+    private LoadingCache<Object, Set<Class<?>>> getClassQueryCache(final ClassLoader scope) {
+        return scope == null ? classQueryCache : scopedClassQueryCaches.getUnchecked(scope);
     }
 
     /**
-     * Get the reflections object to use for a package prefix.
+     * Get the result of a type handle query from the cache of the current
+     * scope. Queries with urls do not depend on the context class loader and
+     * share one cache.
+     *
+     * @param query
+     *            the query.
+     * @return the type handles.
+     */
+    private Set<TypeHandle> getTypeHandles(final AnnotationQuery query) {
+        final ClassLoader scope = query.urls == null ? getScope() : null;
+        final LoadingCache<AnnotationQuery, Set<TypeHandle>> cache =
+                scope == null ? annotationHandleQueryCache : scopedAnnotationHandleQueryCaches
+                        .getUnchecked(scope);
+        return cache.getUnchecked(query);
+    }
+
+    /**
+     * Get the class loaders to find and load classes with for a scope.
+     *
+     * @param scope
+     *            the scope, see {@link #getScope()}.
+     * @return the class loaders, none for the context and static class
+     *         loaders.
+     */
+    private static ClassLoader[] getClassLoaders(final ClassLoader scope) {
+        return scope == null ? DEFAULT_CLASS_LOADERS : new ClassLoader[] { scope };
+    }
+
+    /**
+     * Get the result of a class query from the cache of the current scope. A
+     * miss is answered from a cached result for a broader package regex if
+     * there is one, by executing the query otherwise. Concurrent misses for
+     * the same query wait for a single load.
+     *
+     * @param key
+     *            the query.
+     * @return the classes, typed for the query.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> Set<Class<? extends T>> getClasses(final Object key) {
+        final ClassLoader scope = getScope();
+        final ClassLoader[] classLoaders = getClassLoaders(scope);
+        final LoadingCache<Object, Set<Class<?>>> cache = getClassQueryCache(scope);
+        final Set<Class<?>> classes = get(cache, key, () -> {
+            final Set<Class<?>> narrowed = narrow(cache, key, classLoaders);
+            return narrowed != null ? narrowed : loadClasses(key, classLoaders);
+        });
+        // sub type queries only match sub types of the queried type.
+        return (Set<Class<? extends T>>) (Set<?>) classes;
+    }
+
+    /**
+     * Get a value from a cache, loading it with a loader on a miss. Failures
+     * are thrown the same way as by {@link LoadingCache#getUnchecked(Object)}.
+     *
+     * @param cache
+     *            the cache.
+     * @param key
+     *            the key.
+     * @param loader
+     *            loads the value.
+     * @return the value.
+     */
+    private static <K, V> V get(final LoadingCache<K, V> cache, final K key,
+            final Callable<V> loader) {
+        try {
+            return cache.get(key, loader);
+        } catch (final ExecutionException e) {
+            throw new UncheckedExecutionException(e.getCause());
+        }
+    }
+
+    /**
+     * Execute a class query against the index of its urls.
+     *
+     * @param key
+     *            the query.
+     * @param classLoaders
+     *            the class loaders to find and load classes with, none for the
+     *            context and static class loaders.
+     * @return the classes.
+     */
+    private Set<Class<?>> loadClasses(final Object key, final ClassLoader... classLoaders) {
+        if (key instanceof SubTypeQuery) {
+            final SubTypeQuery query = (SubTypeQuery) key;
+            log.debug("Executing sub type query {}", query);
+            return getSubTypesOf(
+                    getTypeIndex(getScanUrls(query.packageRegex, null, classLoaders)),
+                    query.packageRegex, query.typeName, classLoaders);
+        }
+        final AnnotationQuery query = (AnnotationQuery) key;
+        log.debug("Executing annotation query {}", query);
+        return getTypesAnnotatedWith(
+                getTypeIndex(getScanUrls(query.packageRegex, query.urls, classLoaders)),
+                query.packageRegex, query.annotationName, classLoaders);
+    }
+
+    /**
+     * Answer a class query from a cached result of the same query for a
+     * broader package regex. The cached result is filtered down to the types
+     * the query itself would find, i.e. types matching the package regex that
+     * are reachable through matching types only.
+     *
+     * @param cache
+     *            the class query cache.
+     * @param key
+     *            the query.
+     * @param classLoaders
+     *            the class loaders to load the annotation with.
+     * @return the classes, <code>null</code> if no cached result covers the
+     *         query or it cannot be narrowed.
+     */
+    private Set<Class<?>> narrow(final LoadingCache<Object, Set<Class<?>>> cache,
+            final Object key, final ClassLoader... classLoaders) {
+        for (final Map.Entry<Object, Set<Class<?>>> entry : cache.asMap().entrySet()) {
+            final Object cachedKey = entry.getKey();
+            Set<Class<?>> result = null;
+            if (key instanceof SubTypeQuery && cachedKey instanceof SubTypeQuery) {
+                final SubTypeQuery query = (SubTypeQuery) key;
+                final SubTypeQuery cachedQuery = (SubTypeQuery) cachedKey;
+                if (query.typeName.equals(cachedQuery.typeName)
+                        && covers(cachedQuery.packageRegex, query.packageRegex)) {
+                    result =
+                            addSubTypes(entry.getValue(), query.packageRegex,
+                                    Collections.singleton(query.typeName), new HashSet<>());
+                }
+            } else if (key instanceof AnnotationQuery && cachedKey instanceof AnnotationQuery) {
+                final AnnotationQuery query = (AnnotationQuery) key;
+                final AnnotationQuery cachedQuery = (AnnotationQuery) cachedKey;
+                if (query.annotationName.equals(cachedQuery.annotationName)
+                        && Objects.equals(query.urls, cachedQuery.urls)
+                        && covers(cachedQuery.packageRegex, query.packageRegex)) {
+                    result =
+                            narrowAnnotated(entry.getValue(), query.packageRegex,
+                                    query.annotationName, classLoaders);
+                }
+            }
+            if (result != null) {
+                log.debug("Answered query {} from {}", key, cachedKey);
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if a package regex matches every type another one matches. Only
+     * checked for package regexes that are a plain prefix, optionally
+     * followed by ".*", since that is what broad queries use.
+     *
+     * @param packageRegex
+     *            the package regex of a cached query.
+     * @param otherPackageRegex
+     *            the package regex of the query to answer.
+     * @return <code>true</code> if the package regex is known to cover the
+     *         other.
+     */
+    static boolean covers(final String packageRegex, final String otherPackageRegex) {
+        final String prefix = PackageTrie.getLiteralPrefix(packageRegex);
+        return (packageRegex.equals(prefix) || packageRegex.equals(prefix + ".*"))
+                && PackageTrie.getLiteralPrefix(otherPackageRegex).startsWith(prefix);
+    }
+
+    /**
+     * Add the types of a broader result that extend one of the given types
+     * or an added type, directly or through types matching the package regex.
+     *
+     * @param types
+     *            the broader result.
+     * @param packageRegex
+     *            the package regex.
+     * @param superTypeNames
+     *            names of the super types to start from.
+     * @param result
+     *            receives the sub types, types already in it are followed
+     *            as well.
+     * @return the result.
+     */
+    private static Set<Class<?>> addSubTypes(final Set<Class<?>> types,
+            final String packageRegex, final Set<String> superTypeNames,
+            final Set<Class<?>> result) {
+        final List<Class<?>> candidates = new ArrayList<>();
+        final Predicate<String> filter = getTypeFilter(packageRegex);
+        for (final Class<?> type : types) {
+            if (!result.contains(type) && filter.apply(type.getName())) {
+                candidates.add(type);
+            }
+        }
+        boolean added = true;
+        while (added) {
+            added = false;
+            for (final Iterator<Class<?>> iterator = candidates.iterator(); iterator.hasNext();) {
+                final Class<?> candidate = iterator.next();
+                if (extendsAny(candidate, superTypeNames, result)) {
+                    result.add(candidate);
+                    iterator.remove();
+                    added = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param type
+     *            a type.
+     * @param superTypeNames
+     *            names of super types.
+     * @param superTypes
+     *            super types.
+     * @return <code>true</code> if a direct super type of the type is one of
+     *         the given ones.
+     */
+    private static boolean extendsAny(final Class<?> type, final Set<String> superTypeNames,
+            final Set<Class<?>> superTypes) {
+        final List<Class<?>> directSuperTypes = new ArrayList<>(Arrays.asList(type.getInterfaces()));
+        if (type.getSuperclass() != null) {
+            directSuperTypes.add(type.getSuperclass());
+        }
+        for (final Class<?> superType : directSuperTypes) {
+            if (superTypes.contains(superType) || superTypeNames.contains(superType.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Narrow a broader annotation query result. Annotations are read from the
+     * loaded classes, so this only works for annotations, and annotations
+     * annotated with them, that are retained at runtime.
+     *
+     * @param types
+     *            the broader result.
+     * @param packageRegex
+     *            the package regex.
+     * @param annotationName
+     *            the annotation name.
+     * @param classLoaders
+     *            the class loaders to load the annotation with.
+     * @return the narrowed result, <code>null</code> if it cannot be narrowed.
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<Class<?>> narrowAnnotated(final Set<Class<?>> types,
+            final String packageRegex, final String annotationName,
+            final ClassLoader... classLoaders) {
+        final Class<?> annotation = ReflectionUtils.forName(annotationName, classLoaders);
+        if (annotation == null) {
+            return null;
+        }
+        final Predicate<String> filter = getTypeFilter(packageRegex);
+        final Set<Class<?>> result = new HashSet<>();
+        final Deque<Class<?>> pending = new ArrayDeque<>();
+        pending.add(annotation);
+        // directly annotated types, including annotations annotated with
+        // the annotation and types annotated with those.
+        while (!pending.isEmpty()) {
+            final Class<? extends Annotation> current =
+                    (Class<? extends Annotation>) pending.remove();
+            final Retention retention = current.getAnnotation(Retention.class);
+            if (retention == null || retention.value() != RetentionPolicy.RUNTIME) {
+                return null;
+            }
+            for (final Class<?> type : types) {
+                if (type.getDeclaredAnnotation(current) != null && filter.apply(type.getName())
+                        && result.add(type) && type.isAnnotation()) {
+                    pending.add(type);
+                }
+            }
+        }
+        return addSubTypes(types, packageRegex, Collections.<String> emptySet(), result);
+    }
+
+    /**
+     * Get a filter for type names matching a package regex, the same way the
+     * {@link Reflections} input filter matches class files.
+     *
+     * @param packageRegex
+     *            the package regex.
+     * @return the filter.
+     */
+    private static Predicate<String> getTypeFilter(final String packageRegex) {
+        final Pattern pattern = Pattern.compile(FilterBuilder.prefix(packageRegex));
+        return typeName -> pattern.matcher(typeName + ".class").matches();
+    }
+
+    /**
+     * Get the class loader queries of the current thread are scoped to.
+     *
+     * @return the context class loader, <code>null</code> if it cannot be
+     *         unloaded before this handler, i.e. it is missing, the class
+     *         loader of this handler or one of its parents.
+     */
+    private ClassLoader getScope() {
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        ClassLoader classLoader = CachingJavaTypeQueryHandler.class.getClassLoader();
+        while (classLoader != null) {
+            if (classLoader == contextClassLoader) {
+                return null;
+            }
+            classLoader = classLoader.getParent();
+        }
+        return contextClassLoader;
+    }
+
+    /**
+     * Get the classpath urls to search for a query. Urls whose packages
+     * cannot contain a match for the package regex are left out.
      *
      * @param packageRegex
      *            package prefix / regex.
-     * @return
+     * @param urls
+     *            the urls to search in, <code>null</code> to use the urls for
+     *            the package prefix.
+     * @param classLoaders
+     *            the class loaders to get urls from, none for the context and
+     *            static class loaders.
+     * @return the urls to scan.
      */
-    private Reflections getReflectionsObject(final String packageRegex) {
-        final Reflections object =
-                new Reflections(packageRegex, new SubTypesScanner(classObjectFilter),
-                        new TypeAnnotationsScanner(classObjectFilter),
-                        new FilterBuilder().includePackage(packageRegex));
-        object.getStore().getOrCreate(SubTypesScanner.class.getSimpleName());
-        return object;
+    private Collection<URL> getScanUrls(final String packageRegex, final Set<URL> urls,
+            final ClassLoader... classLoaders) {
+        Collection<URL> scanUrls = urls;
+        if (scanUrls == null) {
+            scanUrls = ClasspathHelper.forPackage(packageRegex, classLoaders);
+            if (scanUrls.isEmpty()) {
+                // the same fallback reflections uses.
+                scanUrls = ClasspathHelper.forClassLoader(classLoaders);
+            }
+        }
+        final String prefix = PackageTrie.getLiteralPrefix(packageRegex);
+        if (prefix.isEmpty()) {
+            return scanUrls;
+        }
+        final List<URL> matchingUrls = new ArrayList<>(scanUrls.size());
+        for (final URL url : scanUrls) {
+            final PackageTrie packages = scanCache.getPackages(url);
+            if (packages == null || packages.mayContain(prefix)) {
+                matchingUrls.add(url);
+            } else {
+                log.debug("Skipping {} without packages matching {}", url, packageRegex);
+            }
+        }
+        return matchingUrls;
+    }
+
+    /**
+     * Get the shared index over classpath urls. Each url is scanned once,
+     * unfiltered, and reused by all queries until it changes. Urls are scanned
+     * in parallel on the scan executor and merged once all are done.
+     *
+     * @param scanUrls
+     *            the urls to scan.
+     * @return the index over the urls.
+     */
+    private TypeIndex getTypeIndex(final Collection<URL> scanUrls) {
+        final List<ScannedTypes> scans = new ArrayList<>();
+        if (scanExecutor == null || scanExecutor.isShutdown() || scanUrls.size() < 2) {
+            for (final URL url : scanUrls) {
+                scans.add(scanCache.get(url, scanEngine::scan));
+            }
+        } else {
+            final List<Future<ScannedTypes>> futures = new ArrayList<>();
+            for (final URL url : scanUrls) {
+                futures.add(scanExecutor.submit(() -> scanCache.get(url, scanEngine::scan)));
+            }
+            // collect in url order so that the same scans give the same key.
+            for (final Future<ScannedTypes> future : futures) {
+                scans.add(Futures.getUnchecked(future));
+            }
+        }
+        scanCache.save();
+        // scanned types are only replaced when a url changes, so the merged
+        // index can be reused for the same scans.
+        return typeIndexCache.getUnchecked(ImmutableList.copyOf(scans));
+    }
+
+    /**
+     * Evaluate a sub type query against an index.
+     *
+     * @param index
+     *            the index.
+     * @param packageRegex
+     *            package prefix / regex.
+     * @param typeName
+     *            the super type name.
+     * @param classLoaders
+     *            the class loaders to load with, none for the context and
+     *            static class loaders.
+     * @return the sub types.
+     */
+    private Set<Class<?>> getSubTypesOf(final TypeIndex index, final String packageRegex,
+            final String typeName, final ClassLoader... classLoaders) {
+        return forNames(index.getSubTypesOf(typeName, packageRegex), classLoaders);
+    }
+
+    /**
+     * Evaluate an annotation query against an index.
+     *
+     * @param index
+     *            the index.
+     * @param packageRegex
+     *            package prefix / regex.
+     * @param annotationName
+     *            the annotation name.
+     * @param classLoaders
+     *            the class loaders to load with, none for the context and
+     *            static class loaders.
+     * @return the annotated types.
+     */
+    private Set<Class<?>> getTypesAnnotatedWith(final TypeIndex index,
+            final String packageRegex, final String annotationName,
+            final ClassLoader... classLoaders) {
+        return forNames(index.getTypesAnnotatedWith(annotationName, packageRegex), classLoaders);
+    }
+
+    /**
+     * Evaluate an annotation query against an index without loading the
+     * types.
+     *
+     * @param index
+     *            the index.
+     * @param packageRegex
+     *            package prefix / regex.
+     * @param annotationName
+     *            the annotation name.
+     * @return handles for the annotated types.
+     */
+    private Set<TypeHandle> getTypeHandlesAnnotatedWith(final TypeIndex index,
+            final String packageRegex, final String annotationName) {
+        final Set<TypeHandle> handles = new HashSet<>();
+        for (final String typeName : index.getTypesAnnotatedWith(annotationName, packageRegex)) {
+            List<String> value = null;
+            if (index.isAnnotatedWith(typeName, annotationName)) {
+                value = readAnnotationValue(typeName, annotationName);
+                if (value == null) {
+                    // same as classes that cannot be loaded.
+                    continue;
+                }
+            }
+            handles.add(new TypeHandle(typeName, value));
+        }
+        return handles;
+    }
+
+    /**
+     * Read the value of an annotation from the class file a type would be
+     * loaded from.
+     *
+     * @param typeName
+     *            the type name.
+     * @param annotationName
+     *            the annotation name.
+     * @return the enum constant names of the value, <code>null</code> if the
+     *         class file cannot be read or is not annotated.
+     */
+    private List<String> readAnnotationValue(final String typeName, final String annotationName) {
+        final String resourceName = typeName.replace('.', '/') + ".class";
+        for (final ClassLoader classLoader : ClasspathHelper.classLoaders()) {
+            final URL resource = classLoader.getResource(resourceName);
+            if (resource == null) {
+                continue;
+            }
+            try (InputStream inputStream = resource.openStream()) {
+                final List<String> value =
+                        ClassFileSummary.readAnnotationValues(
+                                ByteStreams.toByteArray(inputStream)).get(annotationName);
+                if (value == null) {
+                    log.debug("Class file for {} is not annotated with {}", typeName,
+                            annotationName);
+                }
+                return value;
+            } catch (final IOException e) {
+                log.warn("Could not read class file for {}", typeName, e);
+                return null;
+            }
+        }
+        log.debug("Class file not found for {}", typeName);
+        return null;
+    }
+
+    /**
+     * Load classes for type names, ignoring classes that cannot be loaded.
+     *
+     * @param typeNames
+     *            the type names.
+     * @param classLoaders
+     *            the class loaders to load with, none for the context and
+     *            static class loaders.
+     * @return the loaded classes.
+     */
+    private Set<Class<?>> forNames(final Set<String> typeNames,
+            final ClassLoader... classLoaders) {
+        final Set<Class<?>> result = new HashSet<>();
+        for (final String typeName : typeNames) {
+            final Class<?> type = ReflectionUtils.forName(typeName, classLoaders);
+            if (type != null) {
+                result.add(type);
+            }
+        }
+        return result;
     }
 
     /*
@@ -337,11 +1264,10 @@ public class CachingJavaTypeQueryHandler implements JavaTypeQueryHandler {
      * com.strandls.alchemy.cdo.common.model.JavaTypeQueryHandler#getSubTypesOf
      * (java.lang.String, java.lang.Class)
      */
-    @SuppressWarnings("unchecked")
     @Override
     public <T> Set<Class<? extends T>>
     getSubTypesOf(final String packageRegex, final Class<T> type) {
-        return subTypeQueryCache.getUnchecked(new SubTypeQuery(packageRegex, type));
+        return getClasses(new SubTypeQuery(packageRegex, type.getName()));
     }
 
     /*
@@ -352,7 +1278,157 @@ public class CachingJavaTypeQueryHandler implements JavaTypeQueryHandler {
     @Override
     public Set<Class<?>> getTypesAnnotatedWith(final String packageRegex,
             final Class<? extends Annotation> annotation) {
-        return annotationQueryCache.getUnchecked(new AnnotationQuery(annotation, packageRegex));
+        return getClasses(new AnnotationQuery(annotation.getName(), packageRegex, null));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.strandls.alchemy.reflect.JavaTypeQueryHandler#
+     * getTypesAnnotatedWith(java.util.Collection, java.lang.String,
+     * java.lang.Class)
+     */
+    @Override
+    public Set<Class<?>> getTypesAnnotatedWith(final Collection<URL> urls,
+            final String packageRegex, final Class<? extends Annotation> annotation) {
+        return getClasses(new AnnotationQuery(annotation.getName(), packageRegex, ImmutableSet
+                .copyOf(urls)));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.strandls.alchemy.reflect.JavaTypeQueryHandler#
+     * getTypeHandlesAnnotatedWith(java.lang.String, java.lang.Class)
+     */
+    @Override
+    public Set<TypeHandle> getTypeHandlesAnnotatedWith(final String packageRegex,
+            final Class<? extends Annotation> annotation) {
+        return getTypeHandles(new AnnotationQuery(annotation.getName(), packageRegex, null));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.strandls.alchemy.reflect.JavaTypeQueryHandler#
+     * getTypeHandlesAnnotatedWith(java.util.Collection, java.lang.String,
+     * java.lang.Class)
+     */
+    @Override
+    public Set<TypeHandle> getTypeHandlesAnnotatedWith(final Collection<URL> urls,
+            final String packageRegex, final Class<? extends Annotation> annotation) {
+        return getTypeHandles(new AnnotationQuery(annotation.getName(), packageRegex,
+                ImmutableSet.copyOf(urls)));
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see com.strandls.alchemy.reflect.JavaTypeQueryHandler#prewarm(java.lang.
+     * String, java.util.Collection)
+     */
+    @Override
+    public Future<?> prewarm(final String packageRegex,
+            final Collection<Class<? extends Annotation>> annotations) {
+        return prewarm(null, packageRegex, annotations);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see
+     * com.strandls.alchemy.reflect.JavaTypeQueryHandler#prewarm(java.util.function
+     * .Supplier, java.lang.String, java.util.Collection)
+     */
+    @Override
+    public Future<?> prewarm(final Supplier<? extends Collection<URL>> urls,
+            final String packageRegex, final Collection<Class<? extends Annotation>> annotations) {
+        final List<Class<? extends Annotation>> annotationList = ImmutableList.copyOf(annotations);
+        // urls are found through the context class loader of the caller.
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        final FutureTask<Void> task = new FutureTask<>(() -> {
+            final Thread thread = Thread.currentThread();
+            final ClassLoader threadClassLoader = thread.getContextClassLoader();
+            thread.setContextClassLoader(contextClassLoader);
+            try {
+                final Set<URL> urlSet = urls == null ? null : ImmutableSet.copyOf(urls.get());
+                for (final Class<? extends Annotation> annotation : annotationList) {
+                    log.debug("Prewarming {} in {}", annotation, packageRegex);
+                    getTypeHandles(new AnnotationQuery(annotation.getName(), packageRegex,
+                            urlSet));
+                }
+            } finally {
+                thread.setContextClassLoader(threadClassLoader);
+            }
+            return null;
+        });
+        getRefreshExecutor().execute(task);
+        return task;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see
+     * com.strandls.alchemy.reflect.JavaTypeQueryHandler#query(java.util.Collection
+     * )
+     */
+    @Override
+    public Map<TypeQuery, Set<Class<?>>> query(final Collection<TypeQuery> queries) {
+        final ClassLoader scope = getScope();
+        final ClassLoader[] classLoaders = getClassLoaders(scope);
+        final LoadingCache<Object, Set<Class<?>>> cache = getClassQueryCache(scope);
+        final Map<TypeQuery, Set<Class<?>>> results = new LinkedHashMap<>();
+        final List<TypeQuery> pending = new ArrayList<>();
+        for (final TypeQuery query : queries) {
+            final Set<Class<?>> cached = cache.getIfPresent(toCacheKey(query));
+            if (cached != null) {
+                results.put(query, cached);
+            } else if (!results.containsKey(query)) {
+                pending.add(query);
+            }
+        }
+
+        // queries with the same urls share one index and every url is scanned
+        // at most once for the whole batch. Keyed by the external forms, url
+        // equality resolves host names.
+        final Map<List<String>, TypeIndex> indexes = new HashMap<>();
+        for (final TypeQuery query : pending) {
+            if (results.containsKey(query)) {
+                continue;
+            }
+            final Object key = toCacheKey(query);
+            results.put(query, get(cache, key, () -> {
+                final Set<Class<?>> narrowed = narrow(cache, key, classLoaders);
+                if (narrowed != null) {
+                    return narrowed;
+                }
+                final Collection<URL> scanUrls =
+                        getScanUrls(query.getPackageRegex(), null, classLoaders);
+                final List<String> urlForms = new ArrayList<>(scanUrls.size());
+                for (final URL url : scanUrls) {
+                    urlForms.add(url.toExternalForm());
+                }
+                final TypeIndex index =
+                        indexes.computeIfAbsent(urlForms, forms -> getTypeIndex(scanUrls));
+                log.debug("Executing batched query {}", query);
+                if (query.getKind() == TypeQuery.Kind.SubTypes) {
+                    return getSubTypesOf(index, query.getPackageRegex(), query.getType()
+                            .getName(), classLoaders);
+                }
+                return getTypesAnnotatedWith(index, query.getPackageRegex(), query.getType()
+                        .getName(), classLoaders);
+            }));
+        }
+        return results;
+    }
+
+    /**
+     * Convert to the class query cache key.
+     *
+     * @param query
+     *            the query.
+     * @return the cache key.
+     */
+    private Object toCacheKey(final TypeQuery query) {
+        if (query.getKind() == TypeQuery.Kind.SubTypes) {
+            return new SubTypeQuery(query.getPackageRegex(), query.getType().getName());
+        }
+        return new AnnotationQuery(query.getType().getName(), query.getPackageRegex(), null);
     }
 
 }
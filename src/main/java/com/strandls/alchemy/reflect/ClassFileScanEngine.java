@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import javax.inject.Singleton;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.reflections.ReflectionsException;
+import org.reflections.vfs.Vfs;
+import org.reflections.vfs.Vfs.Dir;
+import org.reflections.vfs.Vfs.File;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Lightweight {@link ScanEngine} that reads class files directly, without
+ * building {@link org.reflections.Reflections} stores or javassist class
+ * files. Only the constant pool, the class header and the class attributes
+ * are read, fields and methods are skipped by their lengths.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@Singleton
+@Slf4j
+public class ClassFileScanEngine implements ScanEngine {
+    /**
+     * Class file extension.
+     */
+    private static final String CLASS_EXTENSION = ".class";
+
+    /**
+     * Url types to read classpath urls with, the {@link ZipIndexUrlType}s
+     * first so that jars nested in jars are scanned in place.
+     */
+    private final List<Vfs.UrlType> urlTypes = ZipIndexUrlType.withDefaults();
+
+    /*
+     * (non-Javadoc)
+     * @see com.strandls.alchemy.reflect.ScanEngine#scan(java.net.URL)
+     */
+    @Override
+    public ScannedTypes scan(final URL url) {
+        final Multimap<String, String> subTypes = HashMultimap.create();
+        final Multimap<String, String> annotatedTypes = HashMultimap.create();
+        final Dir dir;
+        try {
+            dir = Vfs.fromURL(url, urlTypes);
+        } catch (final ReflectionsException e) {
+            // same as reflections, skip urls that cannot be read.
+            log.warn("Could not create Vfs.Dir from url {}. Ignoring", url, e);
+            return new ScannedTypes(subTypes, annotatedTypes);
+        }
+        try {
+            for (final File file : dir.getFiles()) {
+                final String relativePath = file.getRelativePath();
+                if (!relativePath.endsWith(CLASS_EXTENSION)) {
+                    continue;
+                }
+                final ClassFileSummary summary;
+                try {
+                    summary = ClassFileSummary.read(readData(file), true);
+                } catch (final IOException e) {
+                    log.debug("Could not read class file {} in {}", relativePath, url, e);
+                    continue;
+                }
+                if (!ClassFileSummary.isClassPath(summary.getClassName(), relativePath)) {
+                    log.warn("Class path file path mismatch. Ignoring {}", file);
+                    continue;
+                }
+                final String className = summary.getClassName();
+                if (summary.hasSuperTypes()) {
+                    if (summary.getSuperclassName() != null
+                            && !Object.class.getName().equals(summary.getSuperclassName())) {
+                        subTypes.put(summary.getSuperclassName(), className);
+                    }
+                    for (final String interfaceName : summary.getInterfaceNames()) {
+                        subTypes.put(interfaceName, className);
+                    }
+                }
+                for (final String annotationName : summary.getAnnotationNames()) {
+                    annotatedTypes.put(annotationName, className);
+                }
+            }
+        } finally {
+            dir.close();
+        }
+        return new ScannedTypes(subTypes, annotatedTypes);
+    }
+
+    /**
+     * Read a class file. Stored class files of mapped jars are not copied.
+     *
+     * @param file
+     *            the class file.
+     * @return the class file bytes.
+     * @throws IOException
+     *             on error reading the file.
+     */
+    private static ByteBuffer readData(final File file) throws IOException {
+        if (file instanceof ZipIndexDir.ZipIndexFile) {
+            return ((ZipIndexDir.ZipIndexFile) file).getData();
+        }
+        try (InputStream inputStream = file.openInputStream()) {
+            return ByteBuffer.wrap(ByteStreams.toByteArray(inputStream));
+        }
+    }
+}
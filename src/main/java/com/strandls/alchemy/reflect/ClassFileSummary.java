@@ -0,0 +1,716 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * Summary of a class file read from the raw bytes of its constant pool and
+ * header, without parsing fields, methods or attributes. Used to skip the
+ * full parse for classes that cannot contribute to a scan. Optionally the
+ * class annotations are read as well, skipping over fields and methods by
+ * their lengths.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@Getter
+@RequiredArgsConstructor
+@ToString
+class ClassFileSummary {
+    /**
+     * Reusable buffers for {@link ClassFileSummary#readFlags(ByteBuffer, Buffers)}
+     * so that the flags of many class files can be read without allocating.
+     * Not thread safe.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    static final class Buffers {
+        /**
+         * The constant offsets, grown as needed.
+         */
+        private int[] offsets = new int[0];
+
+        /**
+         * Indexes of the runtime visible and invisible annotations attribute
+         * names.
+         */
+        private final int[] annotationIndexes = new int[2];
+
+        /**
+         * Get the constant offsets buffer.
+         *
+         * @param count
+         *            the constant count.
+         * @return a buffer holding at least count offsets.
+         */
+        private int[] getOffsets(final int count) {
+            if (offsets.length < count) {
+                offsets = new int[Math.max(count, 2 * offsets.length)];
+            }
+            return offsets;
+        }
+    }
+
+    /**
+     * Flag returned by {@link #readFlags(ByteBuffer, Buffers)}, see
+     * {@link #hasSuperTypes()}.
+     */
+    static final int HAS_SUPER_TYPES = 1;
+
+    /**
+     * Flag returned by {@link #readFlags(ByteBuffer, Buffers)}, see
+     * {@link #isAnnotated()}.
+     */
+    static final int ANNOTATED = 2;
+
+    /**
+     * Class file magic number.
+     */
+    private static final int MAGIC = 0xCAFEBABE;
+
+    /**
+     * Name of the attribute holding runtime visible annotations.
+     */
+    private static final byte[] RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Name of the attribute holding class retention annotations.
+     */
+    private static final byte[] RUNTIME_INVISIBLE_ANNOTATIONS = "RuntimeInvisibleAnnotations"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Name of the annotation element read by
+     * {@link #readAnnotationValues(byte[])}.
+     */
+    private static final byte[] VALUE = "value".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Name of {@link Object}, which is not recorded as a super type.
+     */
+    private static final String OBJECT = Object.class.getName();
+
+    /**
+     * Suffix of class file paths.
+     */
+    private static final String CLASS_SUFFIX = ".class";
+
+    /**
+     * Internal name of {@link Object}, as stored in class files.
+     */
+    private static final byte[] OBJECT_INTERNAL_NAME = "java/lang/Object"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The class name.
+     */
+    private final String className;
+
+    /**
+     * The super class name, <code>null</code> for {@link Object}.
+     */
+    private final String superclassName;
+
+    /**
+     * The implemented or extended interface names.
+     */
+    private final List<String> interfaceNames;
+
+    /**
+     * Indicates the constant pool names an annotations attribute, that is the
+     * class, or one of its members, may carry annotations. Both runtime and
+     * class retention annotations count, the same as for
+     * {@link org.reflections.adapters.JavassistAdapter}.
+     */
+    private final boolean annotated;
+
+    /**
+     * The runtime and class retention class annotation names, only read on
+     * request.
+     */
+    private final List<String> annotationNames;
+
+    /**
+     * @return <code>true</code> if the class has super types other than
+     *         {@link Object}.
+     */
+    public boolean hasSuperTypes() {
+        return superclassName != null && !OBJECT.equals(superclassName)
+                || !interfaceNames.isEmpty();
+    }
+
+    /**
+     * Read the summary from class file bytes.
+     *
+     * @param bytes
+     *            the class file.
+     * @return the summary.
+     * @throws IOException
+     *             if the bytes are not a valid class file.
+     */
+    public static ClassFileSummary read(final byte[] bytes) throws IOException {
+        return read(bytes, false);
+    }
+
+    /**
+     * Read the summary from class file bytes.
+     *
+     * @param bytes
+     *            the class file.
+     * @param readAnnotations
+     *            read the class annotation names as well, skipping over
+     *            fields and methods.
+     * @return the summary.
+     * @throws IOException
+     *             if the bytes are not a valid class file.
+     */
+    public static ClassFileSummary read(final byte[] bytes, final boolean readAnnotations)
+            throws IOException {
+        return read(ByteBuffer.wrap(bytes), readAnnotations);
+    }
+
+    /**
+     * Read the summary from class file bytes in a buffer, e.g. a slice of a
+     * mapped jar, without copying them.
+     *
+     * @param bytes
+     *            the class file, from index 0.
+     * @param readAnnotations
+     *            read the class annotation names as well, skipping over
+     *            fields and methods.
+     * @return the summary.
+     * @throws IOException
+     *             if the bytes are not a valid class file.
+     */
+    public static ClassFileSummary read(final ByteBuffer bytes, final boolean readAnnotations)
+            throws IOException {
+        return read(bytes, readAnnotations, null);
+    }
+
+    /**
+     * Read the enum constants of the value element of each class annotation,
+     * for example the environments of an
+     * {@link com.strandls.alchemy.inject.AlchemyModule}. Default values are
+     * not stored in the class file and are not included.
+     *
+     * @param bytes
+     *            the class file.
+     * @return annotation name to the enum constant names of its value
+     *         element, empty if the element is absent or not an enum.
+     * @throws IOException
+     *             if the bytes are not a valid class file.
+     */
+    public static Map<String, List<String>> readAnnotationValues(final byte[] bytes)
+            throws IOException {
+        final Map<String, List<String>> annotationValues = new LinkedHashMap<>();
+        read(ByteBuffer.wrap(bytes), true, annotationValues);
+        return annotationValues;
+    }
+
+    /**
+     * Read the summary from class file bytes.
+     *
+     * @param bytes
+     *            the class file.
+     * @param readAnnotations
+     *            read the class annotation names as well.
+     * @param annotationValues
+     *            receives the values of class annotations, <code>null</code>
+     *            to skip the values.
+     * @return the summary.
+     * @throws IOException
+     *             if the bytes are not a valid class file.
+     */
+    private static ClassFileSummary read(final ByteBuffer bytes, final boolean readAnnotations,
+            final Map<String, List<String>> annotationValues) throws IOException {
+        try {
+            final Buffers buffers = new Buffers();
+            final int[] offsets = buffers.getOffsets(getConstantCount(bytes));
+            int offset = readConstantPool(bytes, buffers);
+            final int visibleIndex = buffers.annotationIndexes[0];
+            final int invisibleIndex = buffers.annotationIndexes[1];
+
+            // access flags
+            offset += 2;
+            final String className = readClassName(bytes, offsets, readUnsignedShort(bytes, offset));
+            final int superIndex = readUnsignedShort(bytes, offset + 2);
+            final String superclassName =
+                    superIndex == 0 ? null : readClassName(bytes, offsets, superIndex);
+            final int interfaceCount = readUnsignedShort(bytes, offset + 4);
+            offset += 6;
+            List<String> interfaceNames = Collections.emptyList();
+            if (interfaceCount > 0) {
+                interfaceNames = new ArrayList<>(interfaceCount);
+                for (int i = 0; i < interfaceCount; i++) {
+                    interfaceNames.add(readClassName(bytes, offsets,
+                            readUnsignedShort(bytes, offset + 2 * i)));
+                }
+            }
+            offset += 2 * interfaceCount;
+            final boolean annotated = visibleIndex != 0 || invisibleIndex != 0;
+            List<String> annotationNames = Collections.emptyList();
+            if (readAnnotations && annotated) {
+                annotationNames =
+                        readAnnotationNames(bytes, offsets, offset, visibleIndex, invisibleIndex,
+                                annotationValues);
+            }
+            return new ClassFileSummary(className, superclassName, interfaceNames, annotated,
+                    annotationNames);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException("Truncated class file", e);
+        }
+    }
+
+    /**
+     * Check if a relative path is the path of the class file for a class
+     * name, comparing characters in place. Called by the scan engines for
+     * every scanned class.
+     *
+     * @param className
+     *            the class name.
+     * @param relativePath
+     *            the relative path of the class file.
+     * @return <code>true</code> if the path without a ".class" suffix is the
+     *         class name with dots replaced by slashes.
+     */
+    static boolean isClassPath(final String className, final String relativePath) {
+        final int length =
+                relativePath.endsWith(CLASS_SUFFIX) ? relativePath.length() - CLASS_SUFFIX.length()
+                        : relativePath.length();
+        if (className.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            final char c = className.charAt(i);
+            if (relativePath.charAt(i) != (c == '.' ? '/' : c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read whether the class has super types other than {@link Object} and
+     * whether it may carry annotations, without creating any objects.
+     *
+     * @param bytes
+     *            the class file, may be followed by unused bytes.
+     * @param buffers
+     *            buffers reused across calls.
+     * @return the {@link #HAS_SUPER_TYPES} and {@link #ANNOTATED} flags.
+     * @throws IOException
+     *             if the bytes are not a valid class file.
+     */
+    static int readFlags(final ByteBuffer bytes, final Buffers buffers) throws IOException {
+        try {
+            final int[] offsets = buffers.getOffsets(getConstantCount(bytes));
+            final int offset = readConstantPool(bytes, buffers);
+            int flags = 0;
+            // past the access flags and the class index.
+            final int superIndex = readUnsignedShort(bytes, offset + 4);
+            if (superIndex != 0) {
+                final int nameOffset = offsets[readUnsignedShort(bytes, offsets[superIndex])];
+                if (!equals(bytes, nameOffset + 2, readUnsignedShort(bytes, nameOffset),
+                        OBJECT_INTERNAL_NAME)) {
+                    flags |= HAS_SUPER_TYPES;
+                }
+            }
+            if (readUnsignedShort(bytes, offset + 6) > 0) {
+                flags |= HAS_SUPER_TYPES;
+            }
+            if (buffers.annotationIndexes[0] != 0 || buffers.annotationIndexes[1] != 0) {
+                flags |= ANNOTATED;
+            }
+            return flags;
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException("Truncated class file", e);
+        }
+    }
+
+    /**
+     * Check the magic number and get the constant pool count.
+     *
+     * @param bytes
+     *            the class file.
+     * @return the constant pool count.
+     * @throws IOException
+     *             if the bytes are not a class file.
+     */
+    private static int getConstantCount(final ByteBuffer bytes) throws IOException {
+        if (readInt(bytes, 0) != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        return readUnsignedShort(bytes, 8);
+    }
+
+    /**
+     * Record the offset of each constant and the indexes of the annotations
+     * attribute names, zero if absent.
+     *
+     * @param bytes
+     *            the class file.
+     * @param buffers
+     *            receives the offsets, each pointing past the constant tag,
+     *            and the annotations attribute name indexes.
+     * @return the offset past the constant pool.
+     * @throws IOException
+     *             if the constant pool is invalid.
+     */
+    private static int readConstantPool(final ByteBuffer bytes, final Buffers buffers)
+            throws IOException {
+        final int count = readUnsignedShort(bytes, 8);
+        final int[] offsets = buffers.offsets;
+        int visibleIndex = 0;
+        int invisibleIndex = 0;
+        int offset = 10;
+        for (int index = 1; index < count; index++) {
+            final int tag = bytes.get(offset++);
+            offsets[index] = offset;
+            switch (tag) {
+            case 1: // utf8
+                final int length = readUnsignedShort(bytes, offset);
+                if (equals(bytes, offset + 2, length, RUNTIME_VISIBLE_ANNOTATIONS)) {
+                    visibleIndex = index;
+                } else if (equals(bytes, offset + 2, length, RUNTIME_INVISIBLE_ANNOTATIONS)) {
+                    invisibleIndex = index;
+                }
+                offset += 2 + length;
+                break;
+            case 7: // class
+            case 8: // string
+            case 16: // method type
+            case 19: // module
+            case 20: // package
+                offset += 2;
+                break;
+            case 15: // method handle
+                offset += 3;
+                break;
+            case 3: // integer
+            case 4: // float
+            case 9: // field ref
+            case 10: // method ref
+            case 11: // interface method ref
+            case 12: // name and type
+            case 17: // dynamic
+            case 18: // invoke dynamic
+                offset += 4;
+                break;
+            case 5: // long
+            case 6: // double
+                offset += 8;
+                // takes two slots.
+                index++;
+                break;
+            default:
+                throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        buffers.annotationIndexes[0] = visibleIndex;
+        buffers.annotationIndexes[1] = invisibleIndex;
+        return offset;
+    }
+
+    /**
+     * Read the class annotation names.
+     *
+     * @param bytes
+     *            the class file.
+     * @param offsets
+     *            the constant offsets.
+     * @param offset
+     *            offset of the fields count.
+     * @param visibleIndex
+     *            index of the runtime visible annotations attribute name.
+     * @param invisibleIndex
+     *            index of the runtime invisible annotations attribute name.
+     * @param annotationValues
+     *            receives the values of the annotations, <code>null</code> to
+     *            skip the values.
+     * @return the annotation names.
+     * @throws IOException
+     */
+    private static List<String> readAnnotationNames(final ByteBuffer bytes, final int[] offsets,
+            final int offset, final int visibleIndex, final int invisibleIndex,
+            final Map<String, List<String>> annotationValues) throws IOException {
+        // skip fields and methods.
+        int position = skipMembers(bytes, offset);
+        position = skipMembers(bytes, position);
+        final List<String> annotationNames = new ArrayList<>();
+        final int attributeCount = readUnsignedShort(bytes, position);
+        position += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            final int nameIndex = readUnsignedShort(bytes, position);
+            final int length = readInt(bytes, position + 2);
+            position += 6;
+            if (nameIndex != 0 && (nameIndex == visibleIndex || nameIndex == invisibleIndex)) {
+                final int count = readUnsignedShort(bytes, position);
+                int annotation = position + 2;
+                for (int j = 0; j < count; j++) {
+                    // a field descriptor of the form Lpackage/Name;
+                    final String descriptor =
+                            readUtf8(bytes, offsets[readUnsignedShort(bytes, annotation)]);
+                    final String annotationName =
+                            descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+                    annotationNames.add(annotationName);
+                    if (annotationValues != null) {
+                        annotationValues.put(annotationName,
+                                readValue(bytes, offsets, annotation));
+                    }
+                    annotation = skipAnnotation(bytes, annotation);
+                }
+            }
+            position += length;
+        }
+        return annotationNames;
+    }
+
+    /**
+     * Read the enum constant names of the value element of an annotation.
+     *
+     * @param bytes
+     *            the class file.
+     * @param offsets
+     *            the constant offsets.
+     * @param offset
+     *            offset of the annotation.
+     * @return the enum constant names.
+     * @throws IOException
+     */
+    private static List<String> readValue(final ByteBuffer bytes, final int[] offsets,
+            final int offset) throws IOException {
+        final List<String> value = new ArrayList<>();
+        final int pairCount = readUnsignedShort(bytes, offset + 2);
+        int position = offset + 4;
+        for (int i = 0; i < pairCount; i++) {
+            final int nameOffset = offsets[readUnsignedShort(bytes, position)];
+            position += 2;
+            if (equals(bytes, nameOffset + 2, readUnsignedShort(bytes, nameOffset), VALUE)) {
+                if (bytes.get(position) == '[') {
+                    final int count = readUnsignedShort(bytes, position + 1);
+                    int element = position + 3;
+                    for (int j = 0; j < count; j++) {
+                        addEnumConstant(bytes, offsets, element, value);
+                        element = skipElementValue(bytes, element);
+                    }
+                } else {
+                    addEnumConstant(bytes, offsets, position, value);
+                }
+            }
+            position = skipElementValue(bytes, position);
+        }
+        return value;
+    }
+
+    /**
+     * Add the constant name of an enum element value.
+     *
+     * @param bytes
+     *            the class file.
+     * @param offsets
+     *            the constant offsets.
+     * @param offset
+     *            offset of the element value.
+     * @param value
+     *            receives the constant name, unchanged for other element
+     *            values.
+     * @throws IOException
+     */
+    private static void addEnumConstant(final ByteBuffer bytes, final int[] offsets,
+            final int offset, final List<String> value) throws IOException {
+        if (bytes.get(offset) == 'e') {
+            // type name index followed by the constant name index.
+            value.add(readUtf8(bytes, offsets[readUnsignedShort(bytes, offset + 3)]));
+        }
+    }
+
+    /**
+     * Skip a fields or methods table.
+     *
+     * @param bytes
+     *            the class file.
+     * @param offset
+     *            offset of the table count.
+     * @return the offset after the table.
+     */
+    private static int skipMembers(final ByteBuffer bytes, final int offset) {
+        final int count = readUnsignedShort(bytes, offset);
+        int position = offset + 2;
+        for (int i = 0; i < count; i++) {
+            // access flags, name and descriptor.
+            final int attributeCount = readUnsignedShort(bytes, position + 6);
+            position += 8;
+            for (int j = 0; j < attributeCount; j++) {
+                position += 6 + readInt(bytes, position + 2);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Skip an annotation structure.
+     *
+     * @param bytes
+     *            the class file.
+     * @param offset
+     *            offset of the annotation.
+     * @return the offset after the annotation.
+     * @throws IOException
+     */
+    private static int skipAnnotation(final ByteBuffer bytes, final int offset) throws IOException {
+        final int pairCount = readUnsignedShort(bytes, offset + 2);
+        int position = offset + 4;
+        for (int i = 0; i < pairCount; i++) {
+            // the element name precedes the value.
+            position = skipElementValue(bytes, position + 2);
+        }
+        return position;
+    }
+
+    /**
+     * Skip an annotation element value.
+     *
+     * @param bytes
+     *            the class file.
+     * @param offset
+     *            offset of the element value.
+     * @return the offset after the element value.
+     * @throws IOException
+     */
+    private static int skipElementValue(final ByteBuffer bytes, final int offset) throws IOException {
+        final int tag = bytes.get(offset);
+        switch (tag) {
+        case 'B':
+        case 'C':
+        case 'D':
+        case 'F':
+        case 'I':
+        case 'J':
+        case 'S':
+        case 'Z':
+        case 's':
+        case 'c':
+            return offset + 3;
+        case 'e':
+            return offset + 5;
+        case '@':
+            return skipAnnotation(bytes, offset + 1);
+        case '[':
+            final int count = readUnsignedShort(bytes, offset + 1);
+            int position = offset + 3;
+            for (int i = 0; i < count; i++) {
+                position = skipElementValue(bytes, position);
+            }
+            return position;
+        default:
+            throw new IOException("Unknown element value tag " + tag);
+        }
+    }
+
+    /**
+     * Read the dotted class name of a class constant.
+     *
+     * @param bytes
+     *            the class file.
+     * @param offsets
+     *            the constant offsets.
+     * @param classIndex
+     *            index of the class constant.
+     * @return the class name.
+     * @throws IOException
+     */
+    private static String readClassName(final ByteBuffer bytes, final int[] offsets,
+            final int classIndex) throws IOException {
+        return readUtf8(bytes, offsets[readUnsignedShort(bytes, offsets[classIndex])])
+                .replace('/', '.');
+    }
+
+    /**
+     * Read a utf8 constant.
+     *
+     * @param bytes
+     *            the class file.
+     * @param offset
+     *            offset of the constant, past its tag.
+     * @return the string.
+     * @throws IOException
+     */
+    private static String readUtf8(final ByteBuffer bytes, final int offset) throws IOException {
+        final byte[] utf8 = new byte[readUnsignedShort(bytes, offset) + 2];
+        final ByteBuffer source = bytes.duplicate();
+        source.position(offset);
+        source.get(utf8);
+        // modified utf8, as read by DataInputStream.
+        return new DataInputStream(new ByteArrayInputStream(utf8)).readUTF();
+    }
+
+    /**
+     * Compare a byte range with an ascii name without decoding it.
+     *
+     * @param bytes
+     *            the bytes.
+     * @param offset
+     *            start of the range.
+     * @param length
+     *            length of the range.
+     * @param name
+     *            the name.
+     * @return <code>true</code> if the range equals the name.
+     */
+    private static boolean equals(final ByteBuffer bytes, final int offset, final int length,
+            final byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes.get(offset + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read a big endian unsigned short.
+     */
+    private static int readUnsignedShort(final ByteBuffer bytes, final int offset) {
+        return (bytes.get(offset) & 0xFF) << 8 | bytes.get(offset + 1) & 0xFF;
+    }
+
+    /**
+     * Read a big endian int.
+     */
+    private static int readInt(final ByteBuffer bytes, final int offset) {
+        return readUnsignedShort(bytes, offset) << 16 | readUnsignedShort(bytes, offset + 2);
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.util.Arrays;
+
+/**
+ * Immutable multimap from int keys to int values, held as two arrays. The
+ * values of a key are sorted, distinct and stored contiguously, starting at
+ * {@link #start(int)} and ending before {@link #end(int)}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+final class IntMultimap {
+    /**
+     * Approximate header size of an array in bytes.
+     */
+    static final int ARRAY_HEADER_BYTES = 16;
+
+    /**
+     * Shared empty array.
+     */
+    private static final int[] NO_VALUES = new int[0];
+
+    /**
+     * Start of the values by key, with the end of the last key at index key
+     * count.
+     */
+    private final int[] starts;
+
+    /**
+     * The values of all keys.
+     */
+    private final int[] values;
+
+    /**
+     * Builds a multimap from entries in any order.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    static final class Builder {
+        /**
+         * Entry keys.
+         */
+        private int[] keys = new int[16];
+
+        /**
+         * Entry values.
+         */
+        private int[] values = new int[16];
+
+        /**
+         * Number of entries.
+         */
+        private int size;
+
+        /**
+         * Add an entry.
+         *
+         * @param key
+         *            the key, not negative.
+         * @param value
+         *            the value.
+         * @return this builder.
+         */
+        public Builder put(final int key, final int value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size++] = value;
+            return this;
+        }
+
+        /**
+         * Build the multimap, dropping duplicate entries.
+         *
+         * @param keyCount
+         *            the number of keys, larger than any key added.
+         * @return the multimap.
+         */
+        public IntMultimap build(final int keyCount) {
+            final int[] starts = new int[keyCount + 1];
+            for (int i = 0; i < size; i++) {
+                starts[keys[i] + 1]++;
+            }
+            for (int key = 0; key < keyCount; key++) {
+                starts[key + 1] += starts[key];
+            }
+            final int[] sorted = size == 0 ? NO_VALUES : new int[size];
+            final int[] next = Arrays.copyOf(starts, keyCount);
+            for (int i = 0; i < size; i++) {
+                sorted[next[keys[i]]++] = values[i];
+            }
+            // sort and compact the values of each key.
+            int distinct = 0;
+            for (int key = 0; key < keyCount; key++) {
+                final int start = starts[key];
+                final int end = starts[key + 1];
+                Arrays.sort(sorted, start, end);
+                starts[key] = distinct;
+                for (int i = start; i < end; i++) {
+                    if (i == start || sorted[i] != sorted[i - 1]) {
+                        sorted[distinct++] = sorted[i];
+                    }
+                }
+            }
+            starts[keyCount] = distinct;
+            return new IntMultimap(starts, distinct == size ? sorted : Arrays.copyOf(sorted,
+                    distinct));
+        }
+    }
+
+    /**
+     * @param starts
+     *            start of the values by key.
+     * @param values
+     *            the values.
+     */
+    private IntMultimap(final int[] starts, final int[] values) {
+        this.starts = starts;
+        this.values = values;
+    }
+
+    /**
+     * @param key
+     *            the key.
+     * @return the index of the first value of the key.
+     */
+    public int start(final int key) {
+        return starts[key];
+    }
+
+    /**
+     * @param key
+     *            the key.
+     * @return the index after the last value of the key.
+     */
+    public int end(final int key) {
+        return starts[key + 1];
+    }
+
+    /**
+     * @param index
+     *            the index, between start and end of a key.
+     * @return the value.
+     */
+    public int value(final int index) {
+        return values[index];
+    }
+
+    /**
+     * @param key
+     *            the key.
+     * @return the number of values of the key.
+     */
+    public int size(final int key) {
+        return starts[key + 1] - starts[key];
+    }
+
+    /**
+     * @return the number of keys.
+     */
+    public int keyCount() {
+        return starts.length - 1;
+    }
+
+    /**
+     * @return the total number of entries.
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Check for an entry.
+     *
+     * @param key
+     *            the key.
+     * @param value
+     *            the value.
+     * @return <code>true</code> if the key has the value.
+     */
+    public boolean containsEntry(final int key, final int value) {
+        return Arrays.binarySearch(values, starts[key], starts[key + 1], value) >= 0;
+    }
+
+    /**
+     * @return the approximate memory held by the multimap in bytes.
+     */
+    public long getByteSize() {
+        return 2 * ARRAY_HEADER_BYTES + 4L * starts.length + 4L * values.length;
+    }
+}
@@ -17,7 +17,12 @@
 package com.strandls.alchemy.reflect;
 
 import java.lang.annotation.Annotation;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import com.google.inject.ImplementedBy;
 
@@ -58,4 +63,100 @@ public interface JavaTypeQueryHandler {
      */
     Set<Class<?>> getTypesAnnotatedWith(final String packageRegex,
             final Class<? extends Annotation> annotation);
+
+    /**
+     * Get types annotated with a given annotation, restricting the search to
+     * the given classpath urls. Semantics are the same as
+     * {@link #getTypesAnnotatedWith(String, Class)}.
+     *
+     * @param urls
+     *            the classpath urls to search in.
+     * @param packageRegex
+     *            the regular expression for the packages to search for classes
+     *            in.
+     * @param annotation
+     *            the annotation.
+     * @return the annotated types.
+     */
+    Set<Class<?>> getTypesAnnotatedWith(final Collection<URL> urls, final String packageRegex,
+            final Class<? extends Annotation> annotation);
+
+    /**
+     * Get handles for types annotated with a given annotation, without loading
+     * them. Matches are the same as for
+     * {@link #getTypesAnnotatedWith(String, Class)}, each handle carries the
+     * annotation value read from the class file.
+     *
+     * @param packageRegex
+     *            the regular expression for the packages to search for classes
+     *            in.
+     * @param annotation
+     *            the annotation.
+     * @return handles for the annotated types.
+     */
+    Set<TypeHandle> getTypeHandlesAnnotatedWith(final String packageRegex,
+            final Class<? extends Annotation> annotation);
+
+    /**
+     * Get handles for types annotated with a given annotation, restricting the
+     * search to the given classpath urls. Semantics are the same as
+     * {@link #getTypeHandlesAnnotatedWith(String, Class)}.
+     *
+     * @param urls
+     *            the classpath urls to search in.
+     * @param packageRegex
+     *            the regular expression for the packages to search for classes
+     *            in.
+     * @param annotation
+     *            the annotation.
+     * @return handles for the annotated types.
+     */
+    Set<TypeHandle> getTypeHandlesAnnotatedWith(final Collection<URL> urls,
+            final String packageRegex, final Class<? extends Annotation> annotation);
+
+    /**
+     * Answer a batch of queries together. Queries not already answered are
+     * evaluated against a single scan of the classpath and their results are
+     * cached as if they were issued individually.
+     *
+     * @param queries
+     *            the queries.
+     * @return the types for each query.
+     */
+    Map<TypeQuery, Set<Class<?>>> query(final Collection<TypeQuery> queries);
+
+    /**
+     * Start answering type handle queries for annotations in the background,
+     * e.g. from main or a servlet context listener, to take scanning off the
+     * startup critical path. Later queries that need the same classpath urls
+     * join the scans in flight instead of scanning again.
+     *
+     * @param packageRegex
+     *            the regular expression for the packages to search for classes
+     *            in.
+     * @param annotations
+     *            the annotations to query for.
+     * @return future done once the queries are answered.
+     */
+    Future<?> prewarm(final String packageRegex,
+            final Collection<Class<? extends Annotation>> annotations);
+
+    /**
+     * Start answering type handle queries for annotations in the background,
+     * restricting the search to the supplied classpath urls. The urls are
+     * supplied in the background as well, with the context class loader of
+     * the caller, so that finding them stays off the critical path too.
+     * Semantics are otherwise the same as {@link #prewarm(String, Collection)}.
+     *
+     * @param urls
+     *            supplies the classpath urls to search in.
+     * @param packageRegex
+     *            the regular expression for the packages to search for classes
+     *            in.
+     * @param annotations
+     *            the annotations to query for.
+     * @return future done once the queries are answered.
+     */
+    Future<?> prewarm(final Supplier<? extends Collection<URL>> urls, final String packageRegex,
+            final Collection<Class<? extends Annotation>> annotations);
 }
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Interned type names packed into a single byte arena. Every distinct name is
+ * stored once as UTF-8 and identified by an int id, assigned in insertion
+ * order. {@link String}s are only created when a name is asked for.
+ * <p>
+ * A table is filled by one thread and only read once it is published, e.g.
+ * through a final field.
+ * </p>
+ *
+ * @author Ashish Shinde
+ *
+ */
+final class NameTable {
+    /**
+     * Initial capacity of the arena in bytes.
+     */
+    private static final int INITIAL_ARENA_SIZE = 1024;
+
+    /**
+     * Initial number of hash slots, a power of two.
+     */
+    private static final int INITIAL_SLOTS = 64;
+
+    /**
+     * UTF-8 bytes of all names, back to back.
+     */
+    private byte[] arena = new byte[INITIAL_ARENA_SIZE];
+
+    /**
+     * Number of used bytes in the arena.
+     */
+    private int arenaSize;
+
+    /**
+     * Arena offsets by id, with the end of the last name at index size.
+     */
+    private int[] offsets = new int[INITIAL_SLOTS / 2 + 1];
+
+    /**
+     * Number of names.
+     */
+    private int size;
+
+    /**
+     * Open addressing hash table of id + 1, zero for free slots.
+     */
+    private int[] slots = new int[INITIAL_SLOTS];
+
+    /**
+     * Indicates all names are ASCII, so that bytes are chars.
+     */
+    private boolean ascii = true;
+
+    /**
+     * Add a name if not present.
+     *
+     * @param name
+     *            the name.
+     * @return the id of the name.
+     */
+    public int add(final String name) {
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Add a name from another table if not present, without creating a
+     * {@link String}.
+     *
+     * @param other
+     *            the other table.
+     * @param otherId
+     *            the id of the name in the other table.
+     * @return the id of the name in this table.
+     */
+    public int add(final NameTable other, final int otherId) {
+        final int offset = other.offsets[otherId];
+        return add(other.arena, offset, other.offsets[otherId + 1] - offset);
+    }
+
+    /**
+     * Find the id of a name.
+     *
+     * @param name
+     *            the name.
+     * @return the id, -1 if the name is not present.
+     */
+    public int find(final String name) {
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        final int slot = findSlot(bytes, 0, bytes.length, hash(bytes, 0, bytes.length));
+        return slots[slot] - 1;
+    }
+
+    /**
+     * Get a name.
+     *
+     * @param id
+     *            the id.
+     * @return the name.
+     */
+    public String get(final int id) {
+        final int offset = offsets[id];
+        return new String(arena, offset, offsets[id + 1] - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check if a name followed by a suffix matches a pattern. ASCII names are
+     * matched in place.
+     *
+     * @param id
+     *            the id.
+     * @param suffix
+     *            the suffix, ASCII only.
+     * @param pattern
+     *            the pattern.
+     * @return <code>true</code> if the whole input matches.
+     */
+    public boolean matches(final int id, final String suffix, final Pattern pattern) {
+        if (!ascii) {
+            return pattern.matcher(get(id) + suffix).matches();
+        }
+        return pattern.matcher(new AsciiSequence(offsets[id], offsets[id + 1], suffix)).matches();
+    }
+
+    /**
+     * @return the number of names.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the approximate memory held by the table in bytes.
+     */
+    public long getByteSize() {
+        return 3 * IntMultimap.ARRAY_HEADER_BYTES + arena.length + 4L * offsets.length + 4L
+                * slots.length;
+    }
+
+    /**
+     * Add a name if not present.
+     *
+     * @param bytes
+     *            the buffer holding the UTF-8 name.
+     * @param offset
+     *            the offset of the name.
+     * @param length
+     *            the length of the name.
+     * @return the id of the name.
+     */
+    private int add(final byte[] bytes, final int offset, final int length) {
+        final int hash = hash(bytes, offset, length);
+        int slot = findSlot(bytes, offset, length, hash);
+        if (slots[slot] != 0) {
+            return slots[slot] - 1;
+        }
+        if (arenaSize + length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + length));
+        }
+        System.arraycopy(bytes, offset, arena, arenaSize, length);
+        for (int i = offset; i < offset + length && ascii; i++) {
+            ascii = bytes[i] >= 0;
+        }
+        arenaSize += length;
+        if (size + 1 == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[++size] = arenaSize;
+        slots[slot] = size;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * Find the slot holding a name or the free slot it would go to.
+     *
+     * @param bytes
+     *            the buffer holding the UTF-8 name.
+     * @param offset
+     *            the offset of the name.
+     * @param length
+     *            the length of the name.
+     * @param hash
+     *            the hash of the name.
+     * @return the slot.
+     */
+    private int findSlot(final byte[] bytes, final int offset, final int length, final int hash) {
+        final int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0 && !equals(slots[slot] - 1, bytes, offset, length)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Double the hash table.
+     */
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        final int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            final int offset = offsets[id];
+            int slot = hash(arena, offset, offsets[id + 1] - offset) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    /**
+     * Compare a stored name with UTF-8 bytes.
+     *
+     * @param id
+     *            the id of the stored name.
+     * @param bytes
+     *            the buffer.
+     * @param offset
+     *            the offset of the name in the buffer.
+     * @param length
+     *            the length of the name.
+     * @return <code>true</code> if equal.
+     */
+    private boolean equals(final int id, final byte[] bytes, final int offset, final int length) {
+        final int start = offsets[id];
+        if (offsets[id + 1] - start != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (arena[start + i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash UTF-8 bytes.
+     *
+     * @param bytes
+     *            the buffer.
+     * @param offset
+     *            the offset.
+     * @param length
+     *            the length.
+     * @return the hash, spread over the low bits.
+     */
+    private static int hash(final byte[] bytes, final int offset, final int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A name in the arena followed by a suffix, viewed as chars.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private final class AsciiSequence implements CharSequence {
+        /**
+         * Arena offset of the first char.
+         */
+        private final int start;
+
+        /**
+         * Arena offset after the name.
+         */
+        private final int end;
+
+        /**
+         * The suffix.
+         */
+        private final String suffix;
+
+        /**
+         * @param start
+         *            arena offset of the first char.
+         * @param end
+         *            arena offset after the name.
+         * @param suffix
+         *            the suffix.
+         */
+        private AsciiSequence(final int start, final int end, final String suffix) {
+            this.start = start;
+            this.end = end;
+            this.suffix = suffix;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.CharSequence#length()
+         */
+        @Override
+        public int length() {
+            return end - start + suffix.length();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.CharSequence#charAt(int)
+         */
+        @Override
+        public char charAt(final int index) {
+            return index < end - start ? (char) arena[start + index] : suffix.charAt(index
+                    - (end - start));
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.CharSequence#subSequence(int, int)
+         */
+        @Override
+        public CharSequence subSequence(final int from, final int to) {
+            return toString().substring(from, to);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return new String(arena, start, end - start, StandardCharsets.US_ASCII) + suffix;
+        }
+    }
+}
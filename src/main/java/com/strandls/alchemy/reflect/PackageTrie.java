@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.reflections.util.FilterBuilder;
+
+/**
+ * Trie of the packages contained in a classpath url, with one node per
+ * package name segment. Used to rule out urls for a package regex without
+ * scanning them.
+ *
+ * @author Ashish Shinde
+ *
+ */
+class PackageTrie {
+    /**
+     * Characters with a special meaning in a package regex. Dots are literal,
+     * they are escaped by {@link FilterBuilder#includePackage(String...)}.
+     */
+    private static final String REGEX_CHARACTERS = "\\[](){}*+?^$|";
+
+    /**
+     * Characters that make the preceding character optional.
+     */
+    private static final String OPTIONAL_QUANTIFIERS = "*?{";
+
+    /**
+     * Child nodes keyed by the package name segment.
+     */
+    private final Map<String, PackageTrie> children = new HashMap<>(4);
+
+    /**
+     * Indicates the package of this node contains classes.
+     */
+    private boolean hasClasses;
+
+    /**
+     * Create a trie for package names.
+     *
+     * @param packageNames
+     *            the names of packages containing classes, the empty string
+     *            for the default package.
+     * @return the trie.
+     */
+    public static PackageTrie of(final Collection<String> packageNames) {
+        final PackageTrie root = new PackageTrie();
+        for (final String packageName : packageNames) {
+            PackageTrie node = root;
+            if (!packageName.isEmpty()) {
+                for (final String segment : packageName.split("\\.")) {
+                    node = node.children.computeIfAbsent(segment, key -> new PackageTrie());
+                }
+            }
+            node.hasClasses = true;
+        }
+        return root;
+    }
+
+    /**
+     * Get the literal prefix every class name matched by a package regex
+     * starts with, as used by {@link FilterBuilder#includePackage(String...)}.
+     *
+     * @param packageRegex
+     *            the package regex.
+     * @return the literal prefix, empty if the regex has none.
+     */
+    public static String getLiteralPrefix(final String packageRegex) {
+        if (packageRegex.indexOf('|') >= 0) {
+            // alternatives need not share a prefix.
+            return "";
+        }
+        for (int i = 0; i < packageRegex.length(); i++) {
+            final char c = packageRegex.charAt(i);
+            if (REGEX_CHARACTERS.indexOf(c) >= 0) {
+                final int end = OPTIONAL_QUANTIFIERS.indexOf(c) >= 0 ? Math.max(i - 1, 0) : i;
+                return packageRegex.substring(0, end);
+            }
+        }
+        return packageRegex;
+    }
+
+    /**
+     * Check if the packages may contain a class whose name starts with the
+     * prefix.
+     *
+     * @param classNamePrefix
+     *            the class name prefix.
+     * @return <code>false</code> if no class can match.
+     */
+    public boolean mayContain(final String classNamePrefix) {
+        PackageTrie node = this;
+        int start = 0;
+        int dot;
+        while ((dot = classNamePrefix.indexOf('.', start)) >= 0) {
+            // a complete segment has to be a package, class names have no dots.
+            node = node.children.get(classNamePrefix.substring(start, dot));
+            if (node == null) {
+                return false;
+            }
+            start = dot + 1;
+        }
+        final String partial = classNamePrefix.substring(start);
+        if (node.hasClasses) {
+            // a class name in this package may start with the partial segment.
+            return true;
+        }
+        for (final String segment : node.children.keySet()) {
+            if (segment.startsWith(partial)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -38,10 +38,34 @@ public class ReflectionModule extends AbstractModule {
     @Override
     protected void configure() {
         bind(JavaTypeQueryHandler.class).to(CachingJavaTypeQueryHandler.class);
+        bind(ScanEngine.class).toProvider(CachingJavaTypeQueryHandler::createScanEngine);
+        // defaults can be overridden via system properties, invalid values
+        // fall back to the defaults as in
+        // CachingJavaTypeQueryHandler.fromSystemProperties().
         bind(Integer.class).annotatedWith(
                 Names.named(CachingJavaTypeQueryHandler.CLASS_CACHE_TIMEOUT_MILLIS_PARAM))
-                .toInstance(100000);
+                .toInstance(
+                        Integer.getInteger(
+                                CachingJavaTypeQueryHandler.CLASS_CACHE_TIMEOUT_MILLIS_PARAM,
+                                CachingJavaTypeQueryHandler.DEFAULT_CLASS_CACHE_TIMEOUT_MILLIS));
         bind(Integer.class).annotatedWith(
-                Names.named(CachingJavaTypeQueryHandler.CLASS_CACHE_SIZE_PARAM)).toInstance(1000);
+                Names.named(CachingJavaTypeQueryHandler.CLASS_CACHE_SIZE_PARAM)).toInstance(
+                Integer.getInteger(CachingJavaTypeQueryHandler.CLASS_CACHE_SIZE_PARAM,
+                        CachingJavaTypeQueryHandler.DEFAULT_CLASS_CACHE_SIZE));
+        bind(Integer.class).annotatedWith(
+                Names.named(CachingJavaTypeQueryHandler.CLASS_CACHE_MAX_WEIGHT_PARAM))
+                .toInstance(
+                        Integer.getInteger(
+                                CachingJavaTypeQueryHandler.CLASS_CACHE_MAX_WEIGHT_PARAM, 0));
+        bind(CacheRefreshMode.class).annotatedWith(
+                Names.named(CachingJavaTypeQueryHandler.CLASS_CACHE_REFRESH_MODE_PARAM))
+                .toInstance(CachingJavaTypeQueryHandler.getRefreshMode());
+        bind(String.class).annotatedWith(
+                Names.named(CachingJavaTypeQueryHandler.SCAN_CACHE_FILE_PARAM)).toInstance(
+                System.getProperty(CachingJavaTypeQueryHandler.SCAN_CACHE_FILE_PARAM, ""));
+        bind(Integer.class).annotatedWith(
+                Names.named(CachingJavaTypeQueryHandler.SCAN_PARALLELISM_PARAM)).toInstance(
+                Integer.getInteger(CachingJavaTypeQueryHandler.SCAN_PARALLELISM_PARAM, Runtime
+                        .getRuntime().availableProcessors()));
     }
 }
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Singleton;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.reflections.Configuration;
+import org.reflections.Reflections;
+import org.reflections.ReflectionsException;
+import org.reflections.adapters.MetadataAdapter;
+import org.reflections.scanners.Scanner;
+import org.reflections.util.ConfigurationBuilder;
+import org.reflections.vfs.Vfs;
+import org.reflections.vfs.Vfs.File;
+
+import com.google.common.collect.HashMultimap;
+
+/**
+ * {@link ScanEngine} that scans with {@link Reflections}. This is the default
+ * engine.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@Singleton
+@Slf4j
+public class ReflectionsScanEngine implements ScanEngine {
+    /**
+     * Filter clases objects that are not safe to load.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static final class ClassObjectFilter {
+        public boolean isSafe(final File file, final Object classObject,
+                @SuppressWarnings("rawtypes") final MetadataAdapter metadataAdaptor) {
+            @SuppressWarnings("unchecked")
+            final String className = metadataAdaptor.getClassName(classObject);
+            if (!ClassFileSummary.isClassPath(className, file.getRelativePath())) {
+                log.warn("Class path file path mismatch. Ignoring {}", file);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * {@link Reflections} that reads urls with the given url types instead of
+     * the default ones of {@link Vfs}.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static final class UrlTypesReflections extends Reflections {
+        /**
+         * The url types, static since urls are scanned by the super
+         * constructor.
+         */
+        private static final List<Vfs.UrlType> URL_TYPES = ZipIndexUrlType.withDefaults();
+
+        /**
+         * @param configuration
+         *            the configuration.
+         */
+        public UrlTypesReflections(final Configuration configuration) {
+            super(configuration);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.Reflections#scan(java.net.URL)
+         */
+        @Override
+        public void scan(final URL url) {
+            final Vfs.Dir dir = Vfs.fromURL(url, URL_TYPES);
+            try {
+                for (final File file : dir.getFiles()) {
+                    final String path = file.getRelativePath();
+                    Object classObject = null;
+                    for (final Scanner scanner : configuration.getScanners()) {
+                        try {
+                            if (scanner.acceptsInput(path)) {
+                                classObject = scanner.scan(file, classObject);
+                            }
+                        } catch (final Exception e) {
+                            // same as reflections, skip files that cannot be
+                            // scanned.
+                            log.debug("Could not scan file {} in url {} with scanner {}", path,
+                                    url, scanner.getClass().getSimpleName(), e);
+                        }
+                    }
+                }
+            } finally {
+                dir.close();
+            }
+        }
+    }
+
+    /**
+     * A class file being scanned. Shared by the scanners so that the file is
+     * read once, summarized from its constant pool and only fully parsed when
+     * a scanner needs it. One instance per thread is reused for every file
+     * the thread scans, along with its buffers, and is handed to the
+     * metadata adapter as the file to parse.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static final class ScanInput implements File {
+        /**
+         * The scan input of each thread.
+         */
+        private static final ThreadLocal<ScanInput> CURRENT = ThreadLocal
+                .withInitial(ScanInput::new);
+
+        /**
+         * The class file being scanned.
+         */
+        private File file;
+
+        /**
+         * Buffer to read class files that are not in a mapped jar into, grown
+         * as needed.
+         */
+        private byte[] bytes = new byte[8192];
+
+        /**
+         * Wraps {@link #bytes}.
+         */
+        private ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        /**
+         * The class file bytes, either the read part of {@link #buffer} or a
+         * slice of a mapped jar.
+         */
+        private ByteBuffer data;
+
+        /**
+         * Buffers to read the flags with.
+         */
+        private final ClassFileSummary.Buffers buffers = new ClassFileSummary.Buffers();
+
+        /**
+         * The flags read from the constant pool, see
+         * {@link ClassFileSummary#readFlags(ByteBuffer, ClassFileSummary.Buffers)}.
+         */
+        private int flags;
+
+        /**
+         * The fully parsed class object, created on demand.
+         */
+        private Object classObject;
+
+        /**
+         * Read a class file. Files of mapped jars are read in place, others
+         * into the buffer.
+         *
+         * @param file
+         *            the class file.
+         */
+        private void read(final File file) {
+            this.file = file;
+            classObject = null;
+            try {
+                if (file instanceof ZipIndexDir.ZipIndexFile) {
+                    data = ((ZipIndexDir.ZipIndexFile) file).getData();
+                } else {
+                    data = readBuffer(file);
+                }
+                flags = ClassFileSummary.readFlags(data, buffers);
+            } catch (final IOException e) {
+                throw new ReflectionsException("could not create class object from file "
+                        + file.getRelativePath(), e);
+            }
+        }
+
+        /**
+         * Read a class file into the buffer.
+         *
+         * @param file
+         *            the class file.
+         * @return the read part of the buffer.
+         * @throws IOException
+         */
+        private ByteBuffer readBuffer(final File file) throws IOException {
+            try (InputStream inputStream = file.openInputStream()) {
+                int length = 0;
+                int read;
+                while ((read = inputStream.read(bytes, length, bytes.length - length)) >= 0) {
+                    length += read;
+                    if (length == bytes.length) {
+                        bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+                        buffer = ByteBuffer.wrap(bytes);
+                    }
+                }
+                buffer.clear();
+                buffer.limit(length);
+                return buffer;
+            }
+        }
+
+        /**
+         * Get the scan input passed on by the previous scanner or read it.
+         *
+         * @param file
+         *            the class file.
+         * @param classObject
+         *            the object returned by the previous scanner.
+         * @return the scan input.
+         */
+        public static ScanInput of(final File file, final Object classObject) {
+            if (classObject instanceof ScanInput) {
+                return (ScanInput) classObject;
+            }
+            final ScanInput input = CURRENT.get();
+            input.read(file);
+            return input;
+        }
+
+        /**
+         * Drop the references to the last scanned file of the current thread,
+         * keeping the buffers.
+         */
+        public static void release() {
+            final ScanInput input = CURRENT.get();
+            input.file = null;
+            input.data = null;
+            input.classObject = null;
+        }
+
+        /**
+         * @param flag
+         *            a {@link ClassFileSummary} flag.
+         * @return <code>true</code> if the flag is set for the class file.
+         */
+        public boolean is(final int flag) {
+            return (flags & flag) != 0;
+        }
+
+        /**
+         * Get the fully parsed class object, parsing the bytes already read.
+         *
+         * @param metadataAdapter
+         *            the metadata adapter.
+         * @return the class object.
+         */
+        @SuppressWarnings("rawtypes")
+        public Object getClassObject(final MetadataAdapter metadataAdapter) {
+            if (classObject == null) {
+                try {
+                    classObject = metadataAdapter.getOfCreateClassObject(this);
+                } catch (final Exception e) {
+                    throw new ReflectionsException("could not create class object from file "
+                            + file.getRelativePath(), e);
+                }
+            }
+            return classObject;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.vfs.Vfs.File#getName()
+         */
+        @Override
+        public String getName() {
+            return file.getName();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.vfs.Vfs.File#getRelativePath()
+         */
+        @Override
+        public String getRelativePath() {
+            return file.getRelativePath();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.vfs.Vfs.File#openInputStream()
+         */
+        @Override
+        public InputStream openInputStream() {
+            return new ZipIndex.BufferInputStream(data);
+        }
+    }
+
+    /**
+     * A scanner that ignore classes that cannot be loaded by the class loader.
+     * The name has to be SubTypesScanner because reflections uses that as the
+     * cache key. Classes without super types other than {@link Object} are
+     * skipped without a full parse.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static final class SubTypesScanner extends org.reflections.scanners.SubTypesScanner {
+        /**
+         * Filter for class objects.
+         */
+        private final ClassObjectFilter classObjectFilter;
+
+        /**
+         * Initialize the scanner.
+         */
+        public SubTypesScanner(final ClassObjectFilter classObjectFilter) {
+            super();
+            this.classObjectFilter = classObjectFilter;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see
+         * org.reflections.scanners.AbstractScanner#scan(org.reflections.vfs
+         * .Vfs.File, java.lang.Object)
+         */
+        @Override
+        public Object scan(final File file, final Object classObject) {
+            final ScanInput input = ScanInput.of(file, classObject);
+            if (input.is(ClassFileSummary.HAS_SUPER_TYPES)) {
+                final Object parsed = input.getClassObject(getMetadataAdapter());
+                if (classObjectFilter.isSafe(file, parsed, getMetadataAdapter())) {
+                    scan(parsed);
+                }
+            }
+            return input;
+        }
+
+    }
+
+    /**
+     * A scanner that ignore classes that cannot be loaded by the class loader.
+     * The name has to be SubTypesScanner because reflections uses that as the
+     * cache key. Classes whose constant pool does not name an annotations
+     * attribute are skipped without a full parse.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static final class TypeAnnotationsScanner extends
+    org.reflections.scanners.TypeAnnotationsScanner {
+
+        /**
+         * Filter for class objects.
+         */
+        private final ClassObjectFilter classObjectFilter;
+
+        /**
+         * Initialize the scanner.
+         */
+        public TypeAnnotationsScanner(final ClassObjectFilter classObjectFilter) {
+            super();
+            this.classObjectFilter = classObjectFilter;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see
+         * org.reflections.scanners.AbstractScanner#scan(org.reflections.vfs
+         * .Vfs.File, java.lang.Object)
+         */
+        @Override
+        public Object scan(final File file, final Object classObject) {
+            final ScanInput input = ScanInput.of(file, classObject);
+            if (input.is(ClassFileSummary.ANNOTATED)) {
+                final Object parsed = input.getClassObject(getMetadataAdapter());
+                if (classObjectFilter.isSafe(file, parsed, getMetadataAdapter())) {
+                    scan(parsed);
+                }
+            }
+            return input;
+        }
+
+    }
+
+    /**
+     * Filter for class objects.
+     */
+    private final ClassObjectFilter classObjectFilter = new ClassObjectFilter();
+
+    /*
+     * (non-Javadoc)
+     * @see com.strandls.alchemy.reflect.ScanEngine#scan(java.net.URL)
+     */
+    @Override
+    public ScannedTypes scan(final URL url) {
+        try {
+            // reads urls with the zip index url types first, so that jars
+            // nested in jars are scanned in place.
+            final Reflections object =
+                    new UrlTypesReflections(new ConfigurationBuilder().setUrls(url).setScanners(
+                            new SubTypesScanner(classObjectFilter),
+                            new TypeAnnotationsScanner(classObjectFilter)));
+            return new ScannedTypes(HashMultimap.create(object.getStore().getOrCreate(
+                    SubTypesScanner.class.getSimpleName())), HashMultimap.create(object
+                    .getStore().getOrCreate(TypeAnnotationsScanner.class.getSimpleName())));
+        } finally {
+            // reflections scans on the calling thread.
+            ScanInput.release();
+        }
+    }
+}
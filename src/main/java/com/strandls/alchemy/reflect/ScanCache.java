@@ -0,0 +1,744 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Cache of {@link ScannedTypes} per classpath url, optionally persisted to a
+ * file. Each url is stored with a cheap fingerprint, the path, size,
+ * modification time and for jars the crc of the central directory. A url
+ * whose fingerprint matches is served from the cache, a url that changed is
+ * rescanned on its own.
+ * <p>
+ * The file uses a compact binary format with a shared string table. It is
+ * written to a temporary file first and moved in place so that concurrent
+ * JVMs never read a partial file.
+ * </p>
+ * <p>
+ * The cache also keeps the packages contained in each url so that urls that
+ * cannot match a query are not scanned at all.
+ * </p>
+ *
+ * @author Ashish Shinde
+ *
+ */
+@Slf4j
+public class ScanCache {
+    /**
+     * Fingerprint of a classpath url.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    @ToString
+    static class Fingerprint {
+        /**
+         * Size of the jar, or total size of files in a directory.
+         */
+        private final long size;
+
+        /**
+         * Modification time of the jar, or the latest modification time in a
+         * directory.
+         */
+        private final long lastModified;
+
+        /**
+         * Crc of the jar central directory, or of the file names in a
+         * directory.
+         */
+        private final long crc;
+    }
+
+    /**
+     * A cached scan.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    @RequiredArgsConstructor
+    private static class Entry {
+        /**
+         * Fingerprint of the url when scanned.
+         */
+        private final Fingerprint fingerprint;
+
+        /**
+         * The scanned types.
+         */
+        private final ScannedTypes scannedTypes;
+    }
+
+    /**
+     * Packages of a jar.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    @RequiredArgsConstructor
+    private static class PackageSummary {
+        /**
+         * Size of the jar when summarized.
+         */
+        private final long size;
+
+        /**
+         * Modification time of the jar when summarized.
+         */
+        private final long lastModified;
+
+        /**
+         * The packages.
+         */
+        private final PackageTrie packages;
+    }
+
+    /**
+     * Fingerprint and packages of a directory, listed in one walk.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    @RequiredArgsConstructor
+    private static class DirectorySummary {
+        /**
+         * Fingerprint of the directory.
+         */
+        private final Fingerprint fingerprint;
+
+        /**
+         * The packages.
+         */
+        private final PackageTrie packages;
+    }
+
+    /**
+     * Identifies the file format.
+     */
+    private static final int MAGIC = 0xA1C4E31D;
+
+    /**
+     * The file format version.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * End of central directory signature.
+     */
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    /**
+     * Size of the end of central directory record without the comment.
+     */
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    /**
+     * Class file extension.
+     */
+    private static final String CLASS_EXTENSION = ".class";
+
+    /**
+     * The cache file, <code>null</code> for an in memory cache.
+     */
+    private final File file;
+
+    /**
+     * Cached entries keyed by the normalized url.
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * Package summaries of jars keyed by the absolute path. Kept in memory
+     * only.
+     */
+    private final Map<String, PackageSummary> packageSummaries = new HashMap<>();
+
+    /**
+     * Summaries of directories listed for their packages and not yet used to
+     * fingerprint the directory, keyed by the absolute path. Lets a query
+     * that lists the packages of a directory and then scans it walk the
+     * directory once.
+     */
+    private final Map<String, DirectorySummary> pendingDirectorySummaries = new HashMap<>();
+
+    /**
+     * Scans in progress keyed by the normalized url, joined by concurrent
+     * requests for the same url.
+     */
+    private final Map<String, SettableFuture<ScannedTypes>> inFlightScans = new HashMap<>();
+
+    /**
+     * Indicates the entries have changed since the last save.
+     */
+    private boolean dirty;
+
+    /**
+     * Create a cache backed by a file, loading the file if it exists.
+     *
+     * @param file
+     *            the cache file, <code>null</code> to keep the cache in memory
+     *            only.
+     */
+    public ScanCache(final File file) {
+        this.file = file;
+        entries = new LinkedHashMap<>();
+        if (file != null && file.isFile()) {
+            load();
+        }
+    }
+
+    /**
+     * Get the scanned types for a url, from the cache if the url has not
+     * changed or by scanning it otherwise. Safe to call concurrently, urls are
+     * fingerprinted and scanned outside the lock. A url is scanned by one
+     * caller at a time, concurrent callers wait for and share its result.
+     *
+     * @param url
+     *            the classpath url.
+     * @param scanner
+     *            scans the url on a cache miss.
+     * @return the scanned types.
+     */
+    public ScannedTypes get(final URL url, final Function<URL, ScannedTypes> scanner) {
+        final File urlFile = toFile(url);
+        final Fingerprint fingerprint = urlFile == null ? null : getFingerprint(urlFile);
+        if (fingerprint == null) {
+            // not a local file, cannot be cached.
+            return scanner.apply(url);
+        }
+        final String key = urlFile.getAbsolutePath();
+        final SettableFuture<ScannedTypes> inFlightScan;
+        final SettableFuture<ScannedTypes> scan = SettableFuture.create();
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry != null && entry.fingerprint.equals(fingerprint)) {
+                return entry.scannedTypes;
+            }
+            inFlightScan = inFlightScans.get(key);
+            if (inFlightScan == null) {
+                inFlightScans.put(key, scan);
+            }
+        }
+        if (inFlightScan != null) {
+            log.debug("Joining scan of classpath entry {}", url);
+            return Futures.getUnchecked(inFlightScan);
+        }
+        log.debug("Scanning new or changed classpath entry {}", url);
+        try {
+            final ScannedTypes scannedTypes = scanner.apply(url);
+            synchronized (this) {
+                entries.put(key, new Entry(fingerprint, scannedTypes));
+                dirty = true;
+                inFlightScans.remove(key);
+            }
+            scan.set(scannedTypes);
+            return scannedTypes;
+        } catch (final RuntimeException | Error e) {
+            synchronized (this) {
+                inFlightScans.remove(key);
+            }
+            scan.setException(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the packages contained in a url. Jars are summarized once from
+     * their entry names, directories are listed on every call since they
+     * change during development. The walk listing a directory also
+     * fingerprints it for the next {@link #get(URL, Function)} of the url.
+     *
+     * @param url
+     *            the classpath url.
+     * @return the packages, <code>null</code> if the url is not local or
+     *         cannot be read.
+     */
+    public PackageTrie getPackages(final URL url) {
+        final File urlFile = toFile(url);
+        if (urlFile == null) {
+            return null;
+        }
+        try {
+            if (urlFile.isDirectory()) {
+                final DirectorySummary summary = summarizeDirectory(urlFile.toPath());
+                synchronized (this) {
+                    pendingDirectorySummaries.put(urlFile.getAbsolutePath(), summary);
+                }
+                return summary.packages;
+            } else if (!urlFile.isFile()) {
+                return null;
+            }
+            final String key = urlFile.getAbsolutePath();
+            final long size = urlFile.length();
+            final long lastModified = urlFile.lastModified();
+            synchronized (this) {
+                final PackageSummary summary = packageSummaries.get(key);
+                if (summary != null && summary.size == size
+                        && summary.lastModified == lastModified) {
+                    return summary.packages;
+                }
+            }
+            final PackageTrie packages = PackageTrie.of(jarPackages(urlFile));
+            synchronized (this) {
+                packageSummaries.put(key, new PackageSummary(size, lastModified, packages));
+            }
+            return packages;
+        } catch (final IOException e) {
+            log.debug("Cannot list packages of {}", url, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the cache file if anything changed. The entries are copied under
+     * the lock and written outside it, entries for files that no longer
+     * exist are dropped.
+     */
+    public void save() {
+        final Map<String, Entry> snapshot;
+        synchronized (this) {
+            if (file == null || !dirty) {
+                return;
+            }
+            snapshot = new LinkedHashMap<>(entries);
+            dirty = false;
+        }
+        final Iterator<String> keys = snapshot.keySet().iterator();
+        while (keys.hasNext()) {
+            if (!new File(keys.next()).exists()) {
+                keys.remove();
+            }
+        }
+        try {
+            final File parent = file.getAbsoluteFile().getParentFile();
+            parent.mkdirs();
+            final Path temp = Files.createTempFile(parent.toPath(), file.getName(), ".tmp");
+            try {
+                try (DataOutputStream out =
+                        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    write(out, snapshot);
+                }
+                try {
+                    Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (final AtomicMoveNotSupportedException e) {
+                    Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (final IOException e) {
+            log.warn("Error saving scan cache {}", file, e);
+            synchronized (this) {
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Convert a classpath url to a local file.
+     *
+     * @param url
+     *            the url, either a file url or a jar url for a local jar.
+     * @return the file or <code>null</code> if the url is not local.
+     */
+    static File toFile(final URL url) {
+        String externalForm = url.toExternalForm();
+        if (externalForm.startsWith("jar:")) {
+            externalForm = externalForm.substring("jar:".length());
+            final int separator = externalForm.indexOf("!/");
+            if (separator != -1) {
+                if (separator + "!/".length() != externalForm.length()) {
+                    // an entry within the jar.
+                    return null;
+                }
+                externalForm = externalForm.substring(0, separator);
+            }
+        }
+        if (!externalForm.startsWith("file:")) {
+            return null;
+        }
+        try {
+            return new File(new URI(externalForm));
+        } catch (final URISyntaxException | IllegalArgumentException e) {
+            return new File(externalForm.substring("file:".length()));
+        }
+    }
+
+    /**
+     * Get the fingerprint of a local classpath entry, reusing the walk of a
+     * directory whose packages were just listed.
+     *
+     * @param file
+     *            the jar or directory.
+     * @return the fingerprint or <code>null</code> if the file does not exist.
+     */
+    private Fingerprint getFingerprint(final File file) {
+        synchronized (this) {
+            final DirectorySummary summary =
+                    pendingDirectorySummaries.remove(file.getAbsolutePath());
+            if (summary != null) {
+                return summary.fingerprint;
+            }
+        }
+        return fingerprint(file);
+    }
+
+    /**
+     * Compute the fingerprint of a local classpath entry.
+     *
+     * @param file
+     *            the jar or directory.
+     * @return the fingerprint or <code>null</code> if the file does not exist.
+     */
+    static Fingerprint fingerprint(final File file) {
+        try {
+            if (file.isDirectory()) {
+                return summarizeDirectory(file.toPath()).fingerprint;
+            } else if (file.isFile()) {
+                return new Fingerprint(file.length(), file.lastModified(),
+                        centralDirectoryCrc(file));
+            }
+        } catch (final IOException e) {
+            log.debug("Cannot fingerprint {}", file, e);
+        }
+        return null;
+    }
+
+    /**
+     * List the packages of class files in a jar, reading only the central
+     * directory.
+     *
+     * @param jar
+     *            the jar.
+     * @return the package names.
+     * @throws IOException
+     *             on error reading the jar.
+     */
+    private static Set<String> jarPackages(final File jar) throws IOException {
+        final Set<String> packages = new HashSet<>();
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            final Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                final String name = zipEntries.nextElement().getName();
+                if (name.endsWith(CLASS_EXTENSION)) {
+                    final int separator = name.lastIndexOf('/');
+                    packages.add(separator < 0 ? "" : name.substring(0, separator).replace('/',
+                            '.'));
+                }
+            }
+        }
+        return packages;
+    }
+
+    /**
+     * Summarize a directory in one walk. The directory is fingerprinted by the
+     * count, sizes and modification times of its files and its packages are
+     * those of its class files.
+     *
+     * @param directory
+     *            the directory.
+     * @return the summary.
+     * @throws IOException
+     *             on error walking the directory.
+     */
+    private static DirectorySummary summarizeDirectory(final Path directory) throws IOException {
+        long size = 0;
+        long lastModified = 0;
+        long crc = 0;
+        final Set<String> packages = new HashSet<>();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (final Path path : (Iterable<Path>) paths::iterator) {
+                final File file = path.toFile();
+                if (file.isFile()) {
+                    final Path relativePath = directory.relativize(path);
+                    size += file.length();
+                    lastModified = Math.max(lastModified, file.lastModified());
+                    // order independent combination of the file names.
+                    final CRC32 nameCrc = new CRC32();
+                    nameCrc.update(relativePath.toString().getBytes("UTF-8"));
+                    crc += nameCrc.getValue();
+                    if (path.getFileName().toString().endsWith(CLASS_EXTENSION)) {
+                        final Path parent = relativePath.getParent();
+                        packages.add(parent == null ? "" : parent.toString().replace(
+                                File.separatorChar, '.'));
+                    }
+                }
+            }
+        }
+        return new DirectorySummary(new Fingerprint(size, lastModified, crc),
+                PackageTrie.of(packages));
+    }
+
+    /**
+     * Compute the crc of the central directory of a jar. The central
+     * directory holds the crc, size and name of every entry so this detects
+     * any change in content without reading the entries.
+     *
+     * @param jar
+     *            the jar file.
+     * @return the crc, or zero if the file is not a zip file.
+     * @throws IOException
+     *             on error reading the file.
+     */
+    private static long centralDirectoryCrc(final File jar) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(jar, "r")) {
+            final long length = in.length();
+            if (length < END_OF_CENTRAL_DIRECTORY_SIZE) {
+                return 0;
+            }
+            // the end record is followed by a comment of at most 64k.
+            final int tailLength =
+                    (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+            final byte[] tail = new byte[tailLength];
+            in.seek(length - tailLength);
+            in.readFully(tail);
+            for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+                if (readInt(tail, i) == END_OF_CENTRAL_DIRECTORY) {
+                    final long directorySize = readInt(tail, i + 12) & 0xFFFFFFFFL;
+                    final long directoryOffset = readInt(tail, i + 16) & 0xFFFFFFFFL;
+                    if (directoryOffset + directorySize > length) {
+                        return 0;
+                    }
+                    final byte[] directory = new byte[(int) directorySize];
+                    in.seek(directoryOffset);
+                    in.readFully(directory);
+                    final CRC32 crc = new CRC32();
+                    crc.update(directory);
+                    return crc.getValue();
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Read a little endian int.
+     *
+     * @param bytes
+     *            the bytes.
+     * @param offset
+     *            the offset to read at.
+     * @return the int.
+     */
+    private static int readInt(final byte[] bytes, final int offset) {
+        return bytes[offset] & 0xFF | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Load the cache file. A file that cannot be read is ignored, it will be
+     * overwritten on the next save. Entries for files that no longer exist
+     * are skipped.
+     */
+    private void load() {
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Ignoring scan cache {} with unknown format", file);
+                return;
+            }
+            final String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            final int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                final String key = strings[in.readInt()];
+                final Fingerprint fingerprint =
+                        new Fingerprint(in.readLong(), in.readLong(), in.readLong());
+                final Multimap<String, String> subTypes = readMultimap(in, strings);
+                final Multimap<String, String> annotatedTypes = readMultimap(in, strings);
+                if (new File(key).exists()) {
+                    entries.put(key, new Entry(fingerprint, new ScannedTypes(subTypes,
+                            annotatedTypes)));
+                } else {
+                    // the url is gone, pruned on the next save.
+                    dirty = true;
+                }
+            }
+            log.debug("Loaded scan cache {} with {} entries", file, entries.size());
+        } catch (final IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable scan cache {}", file, e);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Read a multimap of string ids.
+     *
+     * @param in
+     *            the input.
+     * @param strings
+     *            the string table.
+     * @return the multimap.
+     * @throws IOException
+     *             on error reading.
+     */
+    private Multimap<String, String> readMultimap(final DataInputStream in,
+            final String[] strings) throws IOException {
+        final Multimap<String, String> multimap = HashMultimap.create();
+        final int keyCount = in.readInt();
+        for (int i = 0; i < keyCount; i++) {
+            final String key = strings[in.readInt()];
+            final int valueCount = in.readInt();
+            for (int j = 0; j < valueCount; j++) {
+                multimap.put(key, strings[in.readInt()]);
+            }
+        }
+        return multimap;
+    }
+
+    /**
+     * Write entries.
+     *
+     * @param out
+     *            the output.
+     * @param entries
+     *            the entries to write.
+     * @throws IOException
+     *             on error writing.
+     */
+    private void write(final DataOutputStream out, final Map<String, Entry> entries)
+            throws IOException {
+        final Map<String, Integer> stringIds = new HashMap<>();
+        final List<String> strings = new ArrayList<>();
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            addString(entry.getKey(), stringIds, strings);
+            addStrings(entry.getValue().scannedTypes.getSubTypes(), stringIds, strings);
+            addStrings(entry.getValue().scannedTypes.getAnnotatedTypes(), stringIds, strings);
+        }
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(strings.size());
+        for (final String string : strings) {
+            out.writeUTF(string);
+        }
+        out.writeInt(entries.size());
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            final Fingerprint fingerprint = entry.getValue().fingerprint;
+            out.writeInt(stringIds.get(entry.getKey()));
+            out.writeLong(fingerprint.size);
+            out.writeLong(fingerprint.lastModified);
+            out.writeLong(fingerprint.crc);
+            writeMultimap(out, entry.getValue().scannedTypes.getSubTypes(), stringIds);
+            writeMultimap(out, entry.getValue().scannedTypes.getAnnotatedTypes(), stringIds);
+        }
+    }
+
+    /**
+     * Write a multimap as string ids.
+     *
+     * @param out
+     *            the output.
+     * @param multimap
+     *            the multimap.
+     * @param stringIds
+     *            the string table ids.
+     * @throws IOException
+     *             on error writing.
+     */
+    private void writeMultimap(final DataOutputStream out,
+            final Multimap<String, String> multimap, final Map<String, Integer> stringIds)
+                    throws IOException {
+        out.writeInt(multimap.keySet().size());
+        for (final Map.Entry<String, Collection<String>> entry : multimap.asMap().entrySet()) {
+            out.writeInt(stringIds.get(entry.getKey()));
+            out.writeInt(entry.getValue().size());
+            for (final String value : entry.getValue()) {
+                out.writeInt(stringIds.get(value));
+            }
+        }
+    }
+
+    /**
+     * Add all keys and values of a multimap to the string table.
+     *
+     * @param multimap
+     *            the multimap.
+     * @param stringIds
+     *            the string table ids.
+     * @param strings
+     *            the string table.
+     */
+    private void addStrings(final Multimap<String, String> multimap,
+            final Map<String, Integer> stringIds, final List<String> strings) {
+        for (final Map.Entry<String, String> entry : multimap.entries()) {
+            addString(entry.getKey(), stringIds, strings);
+            addString(entry.getValue(), stringIds, strings);
+        }
+    }
+
+    /**
+     * Add a string to the string table.
+     *
+     * @param string
+     *            the string.
+     * @param stringIds
+     *            the string table ids.
+     * @param strings
+     *            the string table.
+     */
+    private void addString(final String string, final Map<String, Integer> stringIds,
+            final List<String> strings) {
+        if (!stringIds.containsKey(string)) {
+            stringIds.put(string, strings.size());
+            strings.add(string);
+        }
+    }
+}
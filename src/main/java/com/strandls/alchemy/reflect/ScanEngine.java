@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.net.URL;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * Scans classpath urls for {@link CachingJavaTypeQueryHandler}. Engines must
+ * be thread safe, urls are scanned in parallel.
+ * <p>
+ * Each class file in the url is recorded unfiltered, with its super class
+ * other than {@link Object}, its interfaces and its class annotations, both
+ * runtime and class retention. Class files whose name does not match their path are ignored
+ * because they cannot be loaded.
+ * </p>
+ *
+ * @author Ashish Shinde
+ *
+ */
+@ImplementedBy(ReflectionsScanEngine.class)
+public interface ScanEngine {
+    /**
+     * Scan all types in a single classpath url.
+     *
+     * @param url
+     *            the url.
+     * @return the scanned types.
+     */
+    ScannedTypes scan(final URL url);
+}
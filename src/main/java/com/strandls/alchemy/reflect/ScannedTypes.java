@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.util.Map;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+
+import org.reflections.Reflections;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Types found by scanning a single classpath url. The relations are held in
+ * the same form as the {@link Reflections} store, that is from a super type or
+ * annotation to the types directly extending or annotated with it.
+ * <p>
+ * Scanned types are retained for every classpath url, so names are interned
+ * into a {@link NameTable} and the relations are kept as {@link IntMultimap}s
+ * of name ids. The {@link Multimap} views are created on demand.
+ * </p>
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class ScannedTypes {
+    /**
+     * Names of all types and annotations.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final NameTable names;
+
+    /**
+     * Super type id to ids of direct sub types.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final IntMultimap subTypeIds;
+
+    /**
+     * Annotation id to ids of directly annotated types.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final IntMultimap annotatedTypeIds;
+
+    /**
+     * @param subTypes
+     *            super type name to names of direct sub types.
+     * @param annotatedTypes
+     *            annotation name to names of directly annotated types.
+     */
+    public ScannedTypes(@NonNull final Multimap<String, String> subTypes,
+            @NonNull final Multimap<String, String> annotatedTypes) {
+        names = new NameTable();
+        final IntMultimap.Builder subTypeBuilder = add(subTypes);
+        final IntMultimap.Builder annotatedTypeBuilder = add(annotatedTypes);
+        subTypeIds = subTypeBuilder.build(names.size());
+        annotatedTypeIds = annotatedTypeBuilder.build(names.size());
+    }
+
+    /**
+     * @return super type name to names of direct sub types.
+     */
+    public Multimap<String, String> getSubTypes() {
+        return toMultimap(subTypeIds);
+    }
+
+    /**
+     * @return annotation name to names of directly annotated types.
+     */
+    public Multimap<String, String> getAnnotatedTypes() {
+        return toMultimap(annotatedTypeIds);
+    }
+
+    /**
+     * Intern the names of a relation.
+     *
+     * @param relation
+     *            the relation.
+     * @return a builder for the relation over name ids.
+     */
+    private IntMultimap.Builder add(final Multimap<String, String> relation) {
+        final IntMultimap.Builder builder = new IntMultimap.Builder();
+        for (final Map.Entry<String, String> entry : relation.entries()) {
+            builder.put(names.add(entry.getKey()), names.add(entry.getValue()));
+        }
+        return builder;
+    }
+
+    /**
+     * Create a multimap of names from a relation.
+     *
+     * @param relation
+     *            the relation over name ids.
+     * @return the multimap.
+     */
+    private Multimap<String, String> toMultimap(final IntMultimap relation) {
+        final Multimap<String, String> multimap = HashMultimap.create();
+        for (int key = 0; key < relation.keyCount(); key++) {
+            if (relation.size(key) > 0) {
+                final String keyName = names.get(key);
+                for (int i = relation.start(key); i < relation.end(key); i++) {
+                    multimap.put(keyName, names.get(relation.value(i)));
+                }
+            }
+        }
+        return multimap;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.lang.reflect.Array;
+import java.util.List;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import org.reflections.ReflectionUtils;
+
+/**
+ * A type found by a query, identified by name and not yet loaded. Carries the
+ * value of the queried annotation read from the class file, so that callers
+ * can decide whether they need the class before loading it.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@EqualsAndHashCode
+@Getter
+@RequiredArgsConstructor
+@ToString
+public class TypeHandle {
+    /**
+     * The class name.
+     */
+    @NonNull
+    private final String className;
+
+    /**
+     * The enum constant names of the value element of the queried annotation,
+     * <code>null</code> if the type is not annotated directly, that is it
+     * only matched as a sub type of an annotated type.
+     */
+    private final List<String> annotationValue;
+
+    /**
+     * @return <code>true</code> if the type carries the queried annotation
+     *         itself.
+     */
+    public boolean isAnnotated() {
+        return annotationValue != null;
+    }
+
+    /**
+     * Get the value of the queried annotation as enum constants.
+     *
+     * @param enumType
+     *            the enum type of the value element.
+     * @return the enum constants, empty if the type is not annotated directly.
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Enum<E>> E[] getAnnotationValue(final Class<E> enumType) {
+        final int size = annotationValue == null ? 0 : annotationValue.size();
+        final E[] value = (E[]) Array.newInstance(enumType, size);
+        for (int i = 0; i < size; i++) {
+            value[i] = Enum.valueOf(enumType, annotationValue.get(i));
+        }
+        return value;
+    }
+
+    /**
+     * Load the type.
+     *
+     * @return the class, <code>null</code> if it cannot be loaded.
+     */
+    public Class<?> load() {
+        return ReflectionUtils.forName(className);
+    }
+}
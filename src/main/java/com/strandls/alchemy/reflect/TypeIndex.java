@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.IntConsumer;
+import java.util.regex.Pattern;
+
+import org.reflections.Reflections;
+import org.reflections.util.FilterBuilder;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Answers type queries from {@link ScannedTypes} of one or more classpath
+ * urls. Queries follow the semantics of {@link Reflections}, with the package
+ * regex playing the role of the scan time input filter. Only types accepted by
+ * the filter are returned or traversed.
+ * <p>
+ * Names are interned once into a {@link NameTable} and every type is referred
+ * to by its int id. Relations are held as {@link IntMultimap}s and the
+ * transitive sub type closure of every type is computed up front, so that a
+ * sub type query is a closure lookup whenever the whole closure passes the
+ * package filter. Otherwise the closure is walked again, restricted to passing
+ * types, as {@link Reflections} would. Names are only turned into
+ * {@link String}s for the results.
+ * </p>
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class TypeIndex {
+    /**
+     * Number of package filters to retain.
+     */
+    private static final int FILTER_CACHE_SIZE = 32;
+
+    /**
+     * Suffix the {@link Reflections} input filter sees after a type name.
+     */
+    private static final String CLASS_SUFFIX = ".class";
+
+    /**
+     * Names of all types and annotations.
+     */
+    private final NameTable names;
+
+    /**
+     * Ids of direct sub types by super type id.
+     */
+    private final IntMultimap subTypes;
+
+    /**
+     * Ids of directly annotated types by annotation id.
+     */
+    private final IntMultimap annotatedTypes;
+
+    /**
+     * Ids of all direct and indirect sub types by super type id.
+     */
+    private final IntMultimap subTypeClosures;
+
+    /**
+     * Ids of types accepted by a package regex.
+     */
+    private final LoadingCache<String, BitSet> packageFilters;
+
+    /**
+     * Create an index merging scanned types.
+     *
+     * @param scans
+     *            the scanned types for the classpath urls.
+     */
+    public TypeIndex(final Collection<ScannedTypes> scans) {
+        names = new NameTable();
+        final IntMultimap.Builder subTypeBuilder = new IntMultimap.Builder();
+        final IntMultimap.Builder annotatedTypeBuilder = new IntMultimap.Builder();
+        for (final ScannedTypes scan : scans) {
+            final NameTable scanNames = scan.getNames();
+            final int[] ids = new int[scanNames.size()];
+            for (int scanId = 0; scanId < ids.length; scanId++) {
+                ids[scanId] = names.add(scanNames, scanId);
+            }
+            add(scan.getSubTypeIds(), ids, subTypeBuilder);
+            add(scan.getAnnotatedTypeIds(), ids, annotatedTypeBuilder);
+        }
+        subTypes = subTypeBuilder.build(names.size());
+        annotatedTypes = annotatedTypeBuilder.build(names.size());
+
+        final IntMultimap.Builder closureBuilder = new IntMultimap.Builder();
+        // one visited set for all types, each walk clears the bits it set.
+        final BitSet visited = new BitSet(names.size());
+        final int[] start = new int[1];
+        for (int id = 0; id < names.size(); id++) {
+            if (subTypes.size(id) > 0) {
+                final int superType = id;
+                start[0] = id;
+                reach(subTypes, start, null, visited,
+                        subType -> closureBuilder.put(superType, subType));
+            }
+        }
+        subTypeClosures = closureBuilder.build(names.size());
+
+        packageFilters =
+                CacheBuilder.newBuilder().maximumSize(FILTER_CACHE_SIZE)
+                        .build(new CacheLoader<String, BitSet>() {
+                            /*
+                             * (non-Javadoc)
+                             * @see
+                             * com.google.common.cache.CacheLoader#load(java.lang
+                             * .Object)
+                             */
+                            @Override
+                            public BitSet load(final String packageRegex) {
+                                return createPackageFilter(packageRegex);
+                            }
+                        });
+    }
+
+    /**
+     * Get the names of all direct and indirect sub types of a type.
+     *
+     * @param typeName
+     *            the super type name.
+     * @param packageRegex
+     *            the package regex types have to match.
+     * @return the sub type names.
+     */
+    public Set<String> getSubTypesOf(final String typeName, final String packageRegex) {
+        final int id = names.find(typeName);
+        if (id < 0) {
+            return Collections.emptySet();
+        }
+        final BitSet accepted = packageFilters.getUnchecked(packageRegex);
+        if (isClosureAccepted(id, accepted)) {
+            final Set<String> result = new HashSet<>(subTypeClosures.size(id) * 2);
+            for (int i = subTypeClosures.start(id); i < subTypeClosures.end(id); i++) {
+                result.add(names.get(subTypeClosures.value(i)));
+            }
+            return result;
+        }
+        final BitSet result = new BitSet(names.size());
+        reach(subTypes, new int[] { id }, accepted, new BitSet(names.size()), result::set);
+        return toNames(result);
+    }
+
+    /**
+     * Get the names of types annotated with the annotation, including types
+     * annotated with annotations that are annotated with it and all sub types
+     * of these. {@link java.lang.annotation.Inherited} is not honored, same as
+     * {@link Reflections#getTypesAnnotatedWith(Class)}.
+     *
+     * @param annotationName
+     *            the annotation name.
+     * @param packageRegex
+     *            the package regex types have to match.
+     * @return the annotated type names.
+     */
+    public Set<String> getTypesAnnotatedWith(final String annotationName,
+            final String packageRegex) {
+        final int id = names.find(annotationName);
+        if (id < 0) {
+            return Collections.emptySet();
+        }
+        final BitSet accepted = packageFilters.getUnchecked(packageRegex);
+        final BitSet annotated = new BitSet(names.size());
+        for (int i = annotatedTypes.start(id); i < annotatedTypes.end(id); i++) {
+            if (accepted.get(annotatedTypes.value(i))) {
+                annotated.set(annotatedTypes.value(i));
+            }
+        }
+        final BitSet result = (BitSet) annotated.clone();
+        final BitSet visited = new BitSet(names.size());
+        reach(annotatedTypes, annotated.stream().toArray(), accepted, visited, result::set);
+        for (final int start : result.stream().toArray()) {
+            if (isClosureAccepted(start, accepted)) {
+                for (int i = subTypeClosures.start(start); i < subTypeClosures.end(start); i++) {
+                    result.set(subTypeClosures.value(i));
+                }
+            } else {
+                reach(subTypes, new int[] { start }, accepted, visited, result::set);
+            }
+        }
+        return toNames(result);
+    }
+
+    /**
+     * Check if a type is annotated directly with an annotation.
+     *
+     * @param typeName
+     *            the type name.
+     * @param annotationName
+     *            the annotation name.
+     * @return <code>true</code> if the type carries the annotation itself.
+     */
+    public boolean isAnnotatedWith(final String typeName, final String annotationName) {
+        final int annotationId = names.find(annotationName);
+        final int typeId = names.find(typeName);
+        return annotationId >= 0 && typeId >= 0
+                && annotatedTypes.containsEntry(annotationId, typeId);
+    }
+
+    /**
+     * @return the number of types in the index.
+     */
+    public int getTypeCount() {
+        return names.size();
+    }
+
+    /**
+     * Measure the memory held by the sub type closures.
+     *
+     * @return the size in bytes.
+     */
+    public long getClosureBytes() {
+        return subTypeClosures.getByteSize();
+    }
+
+    /**
+     * Measure the memory held by the index, without cached package filters.
+     *
+     * @return the size in bytes.
+     */
+    public long getByteSize() {
+        return names.getByteSize() + subTypes.getByteSize() + annotatedTypes.getByteSize()
+                + subTypeClosures.getByteSize();
+    }
+
+    /**
+     * Compute the ids of types matching a package regex, the same way the
+     * {@link Reflections} input filter matches class files.
+     *
+     * @param packageRegex
+     *            the package regex.
+     * @return the ids of matching types.
+     */
+    private BitSet createPackageFilter(final String packageRegex) {
+        final Pattern pattern = Pattern.compile(FilterBuilder.prefix(packageRegex));
+        final BitSet accepted = new BitSet(names.size());
+        for (int id = 0; id < names.size(); id++) {
+            if (names.matches(id, CLASS_SUFFIX, pattern)) {
+                accepted.set(id);
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Add a relation of one scan, mapping its ids to index ids.
+     *
+     * @param relation
+     *            the relation over scan ids.
+     * @param ids
+     *            the index ids by scan id.
+     * @param builder
+     *            receives the relation over index ids.
+     */
+    private static void add(final IntMultimap relation, final int[] ids,
+            final IntMultimap.Builder builder) {
+        for (int key = 0; key < relation.keyCount(); key++) {
+            for (int i = relation.start(key); i < relation.end(key); i++) {
+                builder.put(ids[key], ids[relation.value(i)]);
+            }
+        }
+    }
+
+    /**
+     * @param id
+     *            a type id.
+     * @param accepted
+     *            ids accepted by the package filter.
+     * @return <code>true</code> if all sub types of the type are accepted.
+     */
+    private boolean isClosureAccepted(final int id, final BitSet accepted) {
+        for (int i = subTypeClosures.start(id); i < subTypeClosures.end(id); i++) {
+            if (!accepted.get(subTypeClosures.value(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Transitively collect ids reachable from the start ids, not including
+     * the start ids themselves unless reachable. Each reachable id is passed
+     * to the result once.
+     *
+     * @param relation
+     *            the relation to follow.
+     * @param starts
+     *            the start ids.
+     * @param accepted
+     *            ids that may be visited, <code>null</code> to visit all.
+     * @param visited
+     *            scratch set of visited ids, clear on entry. Only the bits set
+     *            by the walk are cleared again before returning, so that one
+     *            set can be reused across walks.
+     * @param result
+     *            receives the reachable ids.
+     */
+    private static void reach(final IntMultimap relation, final int[] starts,
+            final BitSet accepted, final BitSet visited, final IntConsumer result) {
+        // a queue that keeps the visited ids behind the start ids.
+        int[] queue = Arrays.copyOf(starts, Math.max(16, starts.length));
+        int size = starts.length;
+        for (int head = 0; head < size; head++) {
+            final int id = queue[head];
+            for (int i = relation.start(id); i < relation.end(id); i++) {
+                final int value = relation.value(i);
+                if ((accepted == null || accepted.get(value)) && !visited.get(value)) {
+                    visited.set(value);
+                    result.accept(value);
+                    if (size == queue.length) {
+                        queue = Arrays.copyOf(queue, size * 2);
+                    }
+                    queue[size++] = value;
+                }
+            }
+        }
+        for (int i = starts.length; i < size; i++) {
+            visited.clear(queue[i]);
+        }
+    }
+
+    /**
+     * @param ids
+     *            the ids.
+     * @return the names for the ids.
+     */
+    private Set<String> toNames(final BitSet ids) {
+        final Set<String> result = new HashSet<>(ids.cardinality() * 2);
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            result.add(names.get(id));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.lang.annotation.Annotation;
+
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+/**
+ * A query for {@link JavaTypeQueryHandler#query(java.util.Collection)}. Either
+ * for sub types of a type or for types annotated with an annotation.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@EqualsAndHashCode
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+@ToString
+public final class TypeQuery {
+    /**
+     * The kind of query.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    public static enum Kind {
+        /**
+         * Query for sub types, see
+         * {@link JavaTypeQueryHandler#getSubTypesOf(String, Class)}.
+         */
+        SubTypes,
+        /**
+         * Query for annotated types, see
+         * {@link JavaTypeQueryHandler#getTypesAnnotatedWith(String, Class)}.
+         */
+        AnnotatedTypes;
+    }
+
+    /**
+     * The kind of query.
+     */
+    @NonNull
+    private final Kind kind;
+
+    /**
+     * The package pattern.
+     */
+    @NonNull
+    private final String packageRegex;
+
+    /**
+     * The super type or the annotation.
+     */
+    @NonNull
+    private final Class<?> type;
+
+    /**
+     * Create a query for sub types.
+     *
+     * @param packageRegex
+     *            the package pattern.
+     * @param type
+     *            the super type.
+     * @return the query.
+     */
+    public static TypeQuery subTypesOf(final String packageRegex, final Class<?> type) {
+        return new TypeQuery(Kind.SubTypes, packageRegex, type);
+    }
+
+    /**
+     * Create a query for annotated types.
+     *
+     * @param packageRegex
+     *            the package pattern.
+     * @param annotation
+     *            the annotation.
+     * @return the query.
+     */
+    public static TypeQuery annotatedWith(final String packageRegex,
+            final Class<? extends Annotation> annotation) {
+        return new TypeQuery(Kind.AnnotatedTypes, packageRegex, annotation);
+    }
+}
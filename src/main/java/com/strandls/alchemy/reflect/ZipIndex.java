@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.ToString;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Index of the entries of a zip file read from its central directory, over a
+ * buffer holding the whole zip, usually a memory mapped jar. Entries are read
+ * in place, without extracting them, stored entries are slices of the buffer.
+ * Zips stored within the zip, like the libraries of an executable jar, are
+ * indexed the same way. Zip files of up to 2 GB are supported.
+ *
+ * @author Ashish Shinde
+ *
+ */
+final class ZipIndex {
+    /**
+     * An entry of the zip.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    @Getter
+    @RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+    @ToString
+    static final class Entry {
+        /**
+         * The entry name, directories end with a slash.
+         */
+        private final String name;
+
+        /**
+         * The compression method.
+         */
+        private final int method;
+
+        /**
+         * The compressed size.
+         */
+        private final int compressedSize;
+
+        /**
+         * The uncompressed size.
+         */
+        private final int size;
+
+        /**
+         * Offset of the local header in the buffer.
+         */
+        private final int headerOffset;
+
+        /**
+         * @return <code>true</code> if the entry is a directory.
+         */
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    /**
+     * Reads a buffer from its position to its limit.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    static final class BufferInputStream extends InputStream {
+        /**
+         * The buffer.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * @param buffer
+         *            the buffer, read without changing it.
+         */
+        BufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.io.InputStream#read()
+         */
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.io.InputStream#available()
+         */
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Signature of the end of central directory record.
+     */
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+
+    /**
+     * Size of the end of central directory record without the comment.
+     */
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    /**
+     * Signature of the zip64 end of central directory locator.
+     */
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+
+    /**
+     * Size of the zip64 end of central directory locator.
+     */
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+
+    /**
+     * Signature of the zip64 end of central directory record.
+     */
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+
+    /**
+     * Signature of a central directory file header.
+     */
+    private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+
+    /**
+     * Size of a central directory file header without the variable fields.
+     */
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+
+    /**
+     * Signature of a local file header.
+     */
+    private static final int LOCAL_HEADER = 0x04034b50;
+
+    /**
+     * Size of a local file header without the variable fields.
+     */
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    /**
+     * Marks 32 bit values stored in zip64 extra fields.
+     */
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    /**
+     * Compression method of stored entries.
+     */
+    static final int STORED = 0;
+
+    /**
+     * Compression method of deflated entries.
+     */
+    static final int DEFLATED = 8;
+
+    /**
+     * The zip, little endian.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The entries in central directory order.
+     */
+    @Getter
+    private final List<Entry> entries;
+
+    /**
+     * Index a zip held in a buffer.
+     *
+     * @param buffer
+     *            the zip from the buffer position to its limit.
+     * @throws IOException
+     *             if the buffer does not hold a valid zip.
+     */
+    ZipIndex(final ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            entries = Collections.unmodifiableList(readCentralDirectory());
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException("Truncated zip file", e);
+        }
+    }
+
+    /**
+     * Index a zip file, memory mapping it.
+     *
+     * @param file
+     *            the zip file.
+     * @return the index.
+     * @throws IOException
+     *             on error reading the file.
+     */
+    static ZipIndex map(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Zip file larger than 2 GB " + file);
+            }
+            // the mapping stays valid after the channel is closed.
+            return new ZipIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Get an entry by name.
+     *
+     * @param name
+     *            the entry name.
+     * @return the entry, <code>null</code> if there is none.
+     */
+    Entry getEntry(final String name) {
+        for (final Entry entry : entries) {
+            if (entry.name.equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Open an entry, reading stored entries in place and inflating deflated
+     * entries as they are read.
+     *
+     * @param entry
+     *            the entry.
+     * @return the entry contents.
+     * @throws IOException
+     *             if the entry is invalid or uses an unsupported compression
+     *             method.
+     */
+    InputStream openInputStream(final Entry entry) throws IOException {
+        final InputStream in = new BufferInputStream(getRawData(entry));
+        switch (entry.method) {
+        case STORED:
+            return in;
+        case DEFLATED:
+            final Inflater inflater = new Inflater(true);
+            return new InflaterInputStream(in, inflater) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    inflater.end();
+                }
+            };
+        default:
+            throw new IOException("Unsupported compression method " + entry.method + " for "
+                    + entry.name);
+        }
+    }
+
+    /**
+     * Get the contents of an entry. Stored entries are slices of the zip
+     * buffer, deflated entries are inflated to the heap.
+     *
+     * @param entry
+     *            the entry.
+     * @return the contents.
+     * @throws IOException
+     *             if the entry cannot be read.
+     */
+    ByteBuffer getData(final Entry entry) throws IOException {
+        if (entry.method == STORED) {
+            return getRawData(entry);
+        }
+        final byte[] bytes = new byte[entry.size];
+        try (InputStream in = openInputStream(entry)) {
+            ByteStreams.readFully(in, bytes);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Index a zip nested in this zip without extracting it.
+     *
+     * @param entry
+     *            the entry holding the zip.
+     * @return the index of the nested zip.
+     * @throws IOException
+     *             if the entry cannot be read or is not a valid zip.
+     */
+    ZipIndex getNested(final Entry entry) throws IOException {
+        return new ZipIndex(getData(entry));
+    }
+
+    /**
+     * Get the data of an entry as stored in the zip.
+     *
+     * @param entry
+     *            the entry.
+     * @return a slice of the buffer.
+     * @throws IOException
+     *             if the local header is invalid.
+     */
+    private ByteBuffer getRawData(final Entry entry) throws IOException {
+        final int header = entry.headerOffset;
+        if (buffer.getInt(header) != LOCAL_HEADER) {
+            throw new IOException("Invalid local header for " + entry.name);
+        }
+        final int start =
+                header + LOCAL_HEADER_SIZE + getUnsignedShort(header + 26)
+                + getUnsignedShort(header + 28);
+        if (start + (long) entry.compressedSize > buffer.limit()) {
+            throw new IOException("Truncated entry " + entry.name);
+        }
+        final ByteBuffer data = buffer.duplicate();
+        data.position(start).limit(start + entry.compressedSize);
+        return data.slice();
+    }
+
+    /**
+     * Read the entries from the central directory.
+     *
+     * @return the entries.
+     * @throws IOException
+     *             if the zip is invalid.
+     */
+    private List<Entry> readCentralDirectory() throws IOException {
+        final int end = findEndOfCentralDirectory();
+        long entryCount = getUnsignedShort(end + 10);
+        long directorySize = buffer.getInt(end + 12) & ZIP64_MAGIC;
+        long directoryOffset = buffer.getInt(end + 16) & ZIP64_MAGIC;
+        int directoryEnd = end;
+        final int locator = end - ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE;
+        if (locator >= 0 && buffer.getInt(locator) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR) {
+            // the zip64 record precedes the locator, its offset is
+            // relative to the zip start which may differ from the buffer
+            // start, so it is found backwards from the locator.
+            final int zip64End = findZip64EndOfCentralDirectory(locator);
+            entryCount = buffer.getLong(zip64End + 32);
+            directorySize = buffer.getLong(zip64End + 40);
+            directoryOffset = buffer.getLong(zip64End + 48);
+            directoryEnd = zip64End;
+        }
+        // data prepended to the zip, e.g. a launch script, shifts all offsets.
+        final long base = directoryEnd - directorySize - directoryOffset;
+        if (base < 0 || entryCount > Integer.MAX_VALUE) {
+            throw new IOException("Invalid central directory");
+        }
+        final List<Entry> result = new ArrayList<>((int) entryCount);
+        int offset = (int) (base + directoryOffset);
+        for (long i = 0; i < entryCount; i++) {
+            if (buffer.getInt(offset) != CENTRAL_DIRECTORY_HEADER) {
+                throw new IOException("Invalid central directory header");
+            }
+            final int method = getUnsignedShort(offset + 10);
+            final long compressedSize = buffer.getInt(offset + 20) & ZIP64_MAGIC;
+            final long size = buffer.getInt(offset + 24) & ZIP64_MAGIC;
+            final int nameLength = getUnsignedShort(offset + 28);
+            final int extraLength = getUnsignedShort(offset + 30);
+            final int commentLength = getUnsignedShort(offset + 32);
+            final long headerOffset = buffer.getInt(offset + 42) & ZIP64_MAGIC;
+            if (compressedSize == ZIP64_MAGIC || size == ZIP64_MAGIC
+                    || headerOffset == ZIP64_MAGIC) {
+                throw new IOException("Zip64 entries are not supported");
+            }
+            final byte[] name = new byte[nameLength];
+            final ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(offset + CENTRAL_DIRECTORY_HEADER_SIZE);
+            nameBuffer.get(name);
+            result.add(new Entry(new String(name, StandardCharsets.UTF_8), method,
+                    (int) compressedSize, (int) size, (int) (base + headerOffset)));
+            offset += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return result;
+    }
+
+    /**
+     * Find the end of central directory record, which is followed by a
+     * comment of at most 64k.
+     *
+     * @return the record offset.
+     * @throws IOException
+     *             if there is no record.
+     */
+    private int findEndOfCentralDirectory() throws IOException {
+        final int last = buffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+        for (int i = last; i >= 0 && i >= last - 0xFFFF; i--) {
+            if (buffer.getInt(i) == END_OF_CENTRAL_DIRECTORY
+                    && i + END_OF_CENTRAL_DIRECTORY_SIZE + getUnsignedShort(i + 20) == buffer
+                    .limit()) {
+                return i;
+            }
+        }
+        throw new IOException("Not a zip file");
+    }
+
+    /**
+     * Find the zip64 end of central directory record before its locator.
+     *
+     * @param locator
+     *            the locator offset.
+     * @return the record offset.
+     * @throws IOException
+     *             if there is no record.
+     */
+    private int findZip64EndOfCentralDirectory(final int locator) throws IOException {
+        // the record is variable sized, its size excludes the leading 12 bytes.
+        for (int i = locator - 56; i >= 0; i--) {
+            if (buffer.getInt(i) == ZIP64_END_OF_CENTRAL_DIRECTORY
+                    && i + 12 + buffer.getLong(i + 4) == locator) {
+                return i;
+            }
+        }
+        throw new IOException("Invalid zip64 end of central directory");
+    }
+
+    /**
+     * Read a little endian unsigned short.
+     *
+     * @param offset
+     *            the offset in the buffer.
+     * @return the value.
+     */
+    private int getUnsignedShort(final int offset) {
+        return buffer.getShort(offset) & 0xFFFF;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import lombok.RequiredArgsConstructor;
+
+import org.reflections.vfs.Vfs;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * {@link Vfs.Dir} over the entries of a {@link ZipIndex} under a path
+ * prefix, for example the classes directory of an executable jar. Entries
+ * are read in place from the index.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@RequiredArgsConstructor
+final class ZipIndexDir implements Vfs.Dir {
+    /**
+     * A file of the directory.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    @RequiredArgsConstructor
+    final class ZipIndexFile implements Vfs.File {
+        /**
+         * The zip entry.
+         */
+        private final ZipIndex.Entry entry;
+
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.vfs.Vfs.File#getName()
+         */
+        @Override
+        public String getName() {
+            final String name = entry.getName();
+            return name.substring(name.lastIndexOf('/') + 1);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.vfs.Vfs.File#getRelativePath()
+         */
+        @Override
+        public String getRelativePath() {
+            return entry.getName().substring(prefix.length());
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.vfs.Vfs.File#openInputStream()
+         */
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return index.openInputStream(entry);
+        }
+
+        /**
+         * Get the file contents without copying stored entries, see
+         * {@link ZipIndex#getData(ZipIndex.Entry)}.
+         *
+         * @return the contents.
+         * @throws IOException
+         *             if the entry cannot be read.
+         */
+        public ByteBuffer getData() throws IOException {
+            return index.getData(entry);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return path + entry.getName().substring(prefix.length());
+        }
+    }
+
+    /**
+     * The path of the directory, the url it was created for.
+     */
+    private final String path;
+
+    /**
+     * The zip.
+     */
+    private final ZipIndex index;
+
+    /**
+     * Prefix of the entries in the directory, empty or ending with a slash.
+     */
+    private final String prefix;
+
+    /*
+     * (non-Javadoc)
+     * @see org.reflections.vfs.Vfs.Dir#getPath()
+     */
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.reflections.vfs.Vfs.Dir#getFiles()
+     */
+    @Override
+    public Iterable<Vfs.File> getFiles() {
+        return () -> new AbstractIterator<Vfs.File>() {
+            private final Iterator<ZipIndex.Entry> entries = index.getEntries().iterator();
+
+            @Override
+            protected Vfs.File computeNext() {
+                while (entries.hasNext()) {
+                    final ZipIndex.Entry entry = entries.next();
+                    if (!entry.isDirectory() && entry.getName().startsWith(prefix)) {
+                        return new ZipIndexFile(entry);
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.reflections.vfs.Vfs.Dir#close()
+     */
+    @Override
+    public void close() {
+        // nothing to release, the mapping is released with the index.
+    }
+}
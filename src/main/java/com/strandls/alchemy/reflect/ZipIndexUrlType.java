@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.reflections.vfs.Vfs;
+
+/**
+ * {@link Vfs.UrlType}s that read jars through a {@link ZipIndex}, memory
+ * mapping them instead of streaming them through the heap, and without
+ * extracting anything to temporary files.
+ *
+ * @author Ashish Shinde
+ *
+ */
+enum ZipIndexUrlType implements Vfs.UrlType {
+    /**
+     * Jars and directories nested in a local jar, like the libraries and
+     * classes of an executable jar, e.g.
+     * <code>jar:file:/app.jar!/BOOT-INF/lib/lib.jar!/</code> or
+     * <code>jar:file:/app.jar!/BOOT-INF/classes!/</code>. Stored nested jars
+     * are read in place from the mapped outer jar, compressed ones are
+     * inflated to the heap.
+     */
+    NestedJar {
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.vfs.Vfs.UrlType#matches(java.net.URL)
+         */
+        @Override
+        public boolean matches(final URL url) {
+            final String externalForm = url.toExternalForm();
+            final int separator = externalForm.indexOf(SEPARATOR);
+            return "jar".equals(url.getProtocol()) && externalForm.startsWith("jar:file:")
+                    && separator != -1
+                    && separator + SEPARATOR.length() < externalForm.length();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.vfs.Vfs.UrlType#createDir(java.net.URL)
+         */
+        @Override
+        public Vfs.Dir createDir(final URL url) throws Exception {
+            final String externalForm = url.toExternalForm();
+            final int separator = externalForm.indexOf(SEPARATOR);
+            final File file = ScanCache.toFile(new URL(externalForm.substring(0, separator
+                    + SEPARATOR.length())));
+            if (file == null || !file.isFile()) {
+                return null;
+            }
+            ZipIndex index = ZipIndex.map(file);
+            String prefix = "";
+            for (final String segment : externalForm.substring(separator + SEPARATOR.length())
+                    .split(SEPARATOR)) {
+                final String name = prefix + decode(segment);
+                final ZipIndex.Entry entry = index.getEntry(name);
+                if (entry != null && !entry.isDirectory()) {
+                    index = index.getNested(entry);
+                    prefix = "";
+                } else {
+                    prefix = name.endsWith("/") ? name : name + "/";
+                }
+            }
+            return new ZipIndexDir(externalForm, index, prefix);
+        }
+    },
+
+    /**
+     * Local jars, e.g. <code>file:/lib.jar</code> or
+     * <code>jar:file:/lib.jar!/</code>. The jar is memory mapped and its
+     * entries are read in place, stored class files are not copied at all.
+     */
+    Jar {
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.vfs.Vfs.UrlType#matches(java.net.URL)
+         */
+        @Override
+        public boolean matches(final URL url) {
+            final File file = ScanCache.toFile(url);
+            return file != null && file.isFile();
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see org.reflections.vfs.Vfs.UrlType#createDir(java.net.URL)
+         */
+        @Override
+        public Vfs.Dir createDir(final URL url) throws Exception {
+            return new ZipIndexDir(url.toExternalForm(), ZipIndex.map(ScanCache.toFile(url)), "");
+        }
+    };
+
+    /**
+     * Separates the jar from the path within it in jar urls.
+     */
+    private static final String SEPARATOR = "!/";
+
+    /**
+     * Get the url types to read classpath urls with, these url types followed
+     * by the default ones of {@link Vfs}. The defaults of {@link Vfs} are left
+     * unchanged, so that other users of {@link org.reflections.Reflections}
+     * are not affected.
+     *
+     * @return the url types, to pass to {@link Vfs#fromURL(URL, List)}.
+     */
+    static List<Vfs.UrlType> withDefaults() {
+        final List<Vfs.UrlType> urlTypes = new ArrayList<>(Arrays.asList(values()));
+        for (final Vfs.UrlType urlType : Vfs.getDefaultUrlTypes()) {
+            if (!urlTypes.contains(urlType)) {
+                urlTypes.add(urlType);
+            }
+        }
+        return Collections.unmodifiableList(urlTypes);
+    }
+
+    /**
+     * Decode a path segment of a jar url.
+     *
+     * @param segment
+     *            the segment.
+     * @return the zip entry name.
+     * @throws UnsupportedEncodingException
+     */
+    private static String decode(final String segment) throws UnsupportedEncodingException {
+        return URLDecoder.decode(segment.replace("+", "%2B"), "UTF-8");
+    }
+}
@@ -0,0 +1,676 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.inject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import lombok.EqualsAndHashCode;
+
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Provides;
+import com.google.inject.Stage;
+import com.google.inject.name.Names;
+import com.strandls.alchemy.inject.AlchemyInjectorFactory.Phase;
+import com.strandls.alchemy.inject.AlchemyInjectorFactory.Timings;
+import com.strandls.alchemy.inject.AlchemyModule.Environment;
+
+/**
+ * Unit tests for {@link AlchemyInjectorFactory}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class AlchemyInjectorFactoryTest {
+    /**
+     * Module binding a named string.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class NamedModule extends AbstractModule {
+        /**
+         * The name.
+         */
+        private final String name;
+
+        /**
+         * The value.
+         */
+        private final String value;
+
+        /**
+         * @param name
+         *            the name, also the value.
+         */
+        public NamedModule(final String name) {
+            this(name, name);
+        }
+
+        /**
+         * @param name
+         *            the name.
+         * @param value
+         *            the value.
+         */
+        public NamedModule(final String name, final String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see com.google.inject.AbstractModule#configure()
+         */
+        @Override
+        protected void configure() {
+            bindConstant().annotatedWith(Names.named(name)).to(value);
+        }
+    }
+
+    /**
+     * Module failing in configure.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class FailingModule extends AbstractModule {
+
+        /*
+         * (non-Javadoc)
+         * @see com.google.inject.AbstractModule#configure()
+         */
+        @Override
+        protected void configure() {
+            throw new IllegalStateException("Failing module");
+        }
+    }
+
+    /**
+     * Module binding a new named string builder, which guice rejects when
+     * bound twice unlike equal constants. Equal to other instances for the
+     * same name the way multibinders are equal for the same set.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    @EqualsAndHashCode(callSuper = false)
+    private static class EqualModule extends AbstractModule {
+        /**
+         * The name, also the value.
+         */
+        private final String name;
+
+        /**
+         * @param name
+         *            the name, also the value.
+         */
+        public EqualModule(final String name) {
+            this.name = name;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see com.google.inject.AbstractModule#configure()
+         */
+        @Override
+        protected void configure() {
+            bind(StringBuilder.class).annotatedWith(Names.named(name)).toInstance(
+                    new StringBuilder(name));
+        }
+    }
+
+    /**
+     * Module installing other modules.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class InstallingModule extends AbstractModule {
+        /**
+         * The modules to install.
+         */
+        private final Module[] modules;
+
+        /**
+         * @param modules
+         *            the modules to install.
+         */
+        public InstallingModule(final Module... modules) {
+            this.modules = modules;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see com.google.inject.AbstractModule#configure()
+         */
+        @Override
+        protected void configure() {
+            for (final Module module : modules) {
+                install(module);
+            }
+        }
+    }
+
+    /**
+     * Singleton taking a while to create.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class Slow {
+        /**
+         * Number of singletons being created.
+         */
+        private static final AtomicInteger creating = new AtomicInteger();
+
+        /**
+         * Most singletons created at the same time.
+         */
+        private static final AtomicInteger maxCreating = new AtomicInteger();
+
+        /**
+         * Number of singletons created.
+         */
+        private static final AtomicInteger created = new AtomicInteger();
+
+        /**
+         * Take a while.
+         */
+        public Slow() {
+            maxCreating.accumulateAndGet(creating.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            creating.decrementAndGet();
+            created.incrementAndGet();
+        }
+    }
+
+    /**
+     * Singleton depending on slow singletons.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class Dependent {
+        /**
+         * The first dependency.
+         */
+        private final Slow first;
+
+        /**
+         * The second dependency.
+         */
+        private final Slow second;
+
+        /**
+         * @param first
+         *            the first dependency.
+         * @param second
+         *            the second dependency.
+         */
+        @Inject
+        public Dependent(@Named("slow0") final Slow first, @Named("slow1") final Slow second) {
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    /**
+     * Module binding slow singletons.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class SlowModule extends AbstractModule {
+        /**
+         * Indicates the provided singleton should fail.
+         */
+        private final boolean fail;
+
+        /**
+         * @param fail
+         *            indicates the provided singleton should fail.
+         */
+        public SlowModule(final boolean fail) {
+            this.fail = fail;
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see com.google.inject.AbstractModule#configure()
+         */
+        @Override
+        protected void configure() {
+            for (int i = 0; i < 8; i++) {
+                bind(Slow.class).annotatedWith(Names.named("slow" + i)).to(Slow.class)
+                        .in(Singleton.class);
+            }
+            bind(Dependent.class).in(Singleton.class);
+        }
+
+        /**
+         * @return a provided singleton.
+         */
+        @Provides
+        @Singleton
+        @Named("provided")
+        public String getProvided() {
+            if (fail) {
+                throw new IllegalStateException("Failing singleton");
+            }
+            return "provided";
+        }
+    }
+
+    /**
+     * Lock taken by the locking singletons, the way just in time singletons
+     * take guice's lock.
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * Counted down once the first locking singleton is being created.
+     */
+    private static final CountDownLatch firstCreating = new CountDownLatch(1);
+
+    /**
+     * Counted down once the second locking singleton holds the lock.
+     */
+    private static final CountDownLatch secondLocked = new CountDownLatch(1);
+
+    /**
+     * Singleton taking the lock while it is being created.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class LockingFirst {
+        /**
+         * Indicates the lock was taken.
+         */
+        private final boolean locked;
+
+        /**
+         * Take the lock once the second singleton holds it.
+         */
+        public LockingFirst() {
+            firstCreating.countDown();
+            try {
+                secondLocked.await(5, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (LOCK) {
+                locked = true;
+            }
+        }
+    }
+
+    /**
+     * Singleton getting the first locking singleton through a provider while
+     * holding the lock, so that the dependency does not show in the
+     * dependency graph.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class LockingSecond {
+        /**
+         * The first singleton.
+         */
+        private final LockingFirst first;
+
+        /**
+         * @param first
+         *            provides the first singleton.
+         */
+        @Inject
+        public LockingSecond(final Provider<LockingFirst> first) {
+            synchronized (LOCK) {
+                secondLocked.countDown();
+                try {
+                    firstCreating.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                this.first = first.get();
+            }
+        }
+    }
+
+    /**
+     * Environment binding.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class EnvironmentModule extends AbstractModule {
+
+        /*
+         * (non-Javadoc)
+         * @see com.google.inject.AbstractModule#configure()
+         */
+        @Override
+        protected void configure() {
+            bind(Environment.class).toInstance(Environment.Test);
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link com.strandls.alchemy.inject.AlchemyInjectorFactory#create(Environment, Module...)}
+     * .
+     */
+    @Test
+    public void testCreate() {
+        final AlchemyModuleLister lister = new AlchemyModuleLister();
+        final List<Module> modules = new ArrayList<>(lister.getModules(Environment.Test));
+        modules.add(new EnvironmentModule());
+        final Injector expected = Guice.createInjector(modules);
+        for (final int parallelism : new int[] { 0, 1, 4 }) {
+            final Injector injector =
+                    new AlchemyInjectorFactory(lister, parallelism).create(Environment.Test,
+                            new EnvironmentModule());
+            assertEquals(expected.getBindings().keySet(), injector.getBindings().keySet());
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link com.strandls.alchemy.inject.AlchemyInjectorFactory#createAsync(Environment, String, java.util.concurrent.Executor, Timings, Module...)}
+     * .
+     *
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    @Test
+    public void testCreateAsync() throws InterruptedException, ExecutionException {
+        final AlchemyModuleLister lister = new AlchemyModuleLister();
+        final List<Module> modules = new ArrayList<>(lister.getModules(Environment.Test));
+        modules.add(new EnvironmentModule());
+        final Injector expected = Guice.createInjector(modules);
+        final AlchemyInjectorFactory factory = new AlchemyInjectorFactory(lister, 2);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Timings timings = new Timings();
+            final Injector injector =
+                    factory.createAsync(Environment.Test, ".*", executor, timings,
+                            new EnvironmentModule()).get();
+            assertEquals(expected.getBindings().keySet(), injector.getBindings().keySet());
+            for (final Phase phase : Phase.values()) {
+                assertTrue(timings.getMillis(phase) >= 0);
+                assertTrue(timings.toString().contains(phase.name()));
+            }
+            assertEquals(expected.getBindings().keySet(),
+                    factory.createAsync(Environment.Test, ".*", executor, new EnvironmentModule())
+                            .get().getBindings().keySet());
+
+            // failures complete the future, later phases do not run.
+            final Timings failedTimings = new Timings();
+            try {
+                factory.createAsync(Environment.Test, ".*", executor, failedTimings,
+                        new FailingModule()).get();
+                fail("Expected creation errors");
+            } catch (final ExecutionException e) {
+                assertEquals(CreationException.class, e.getCause().getClass());
+            }
+            assertTrue(failedTimings.getMillis(Phase.Instantiate) >= 0);
+            assertEquals(-1, failedTimings.getMillis(Phase.Create));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Asynchronous creation should run with the context class loader of the
+     * caller, not that of the executor threads.
+     *
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    @Test
+    public void testCreateAsyncContextClassLoader() throws InterruptedException,
+            ExecutionException {
+        final AlchemyInjectorFactory factory = new AlchemyInjectorFactory();
+        final Injector expected = factory.create(Environment.Test, new EnvironmentModule());
+        // sees none of the classpath.
+        final ClassLoader emptyClassLoader = new URLClassLoader(new URL[0], null);
+        final ExecutorService executor = Executors.newFixedThreadPool(2, runnable -> {
+            final Thread thread = new Thread(runnable);
+            thread.setContextClassLoader(emptyClassLoader);
+            return thread;
+        });
+        final List<ClassLoader> configuredWith = new ArrayList<>();
+        try {
+            final Injector injector =
+                    factory.createAsync(Environment.Test, ".*", executor,
+                            new EnvironmentModule(), binder -> configuredWith.add(Thread
+                                    .currentThread().getContextClassLoader())).get();
+            assertEquals(expected.getBindings().keySet(), injector.getBindings().keySet());
+            assertEquals(Arrays.asList(Thread.currentThread().getContextClassLoader()),
+                    configuredWith);
+            // the executor threads get their context class loader back.
+            assertSame(emptyClassLoader,
+                    executor.submit(() -> Thread.currentThread().getContextClassLoader()).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test recording many modules in parallel.
+     */
+    @Test
+    public void testRecord() {
+        final List<Module> modules = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            modules.add(new NamedModule("module" + i));
+        }
+        final Injector injector =
+                new AlchemyInjectorFactory(new AlchemyModuleLister(), 4).create(
+                        Stage.DEVELOPMENT, modules);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("module" + i,
+                    injector.getInstance(Key.get(String.class, Names.named("module" + i))));
+        }
+    }
+
+    /**
+     * A module installed by several modules should be installed once, as by
+     * guice, both when recording together and in parallel.
+     */
+    @Test
+    public void testSharedModules() {
+        final Module shared = new EqualModule("shared");
+        for (final int parallelism : new int[] { 1, 4 }) {
+            final List<Module> modules = new ArrayList<>();
+            modules.add(new InstallingModule(shared, new EqualModule("equal"), new NamedModule(
+                    "first")));
+            modules.add(new NamedModule("unrelated"));
+            modules.add(new InstallingModule(shared, new EqualModule("equal"), new NamedModule(
+                    "second")));
+            final Injector injector =
+                    new AlchemyInjectorFactory(new AlchemyModuleLister(), parallelism).create(
+                            Stage.DEVELOPMENT, modules);
+            for (final String name : new String[] { "shared", "equal" }) {
+                assertEquals(name, injector.getInstance(
+                        Key.get(StringBuilder.class, Names.named(name))).toString());
+            }
+            for (final String name : new String[] { "first", "unrelated", "second" }) {
+                assertEquals(name, injector.getInstance(Key.get(String.class, Names.named(name))));
+            }
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link com.strandls.alchemy.inject.AlchemyInjectorFactory#getStage(Environment)}
+     * .
+     */
+    @Test
+    public void testGetStage() {
+        assertEquals(Stage.PRODUCTION, AlchemyInjectorFactory.getStage(Environment.Prod));
+        assertEquals(Stage.DEVELOPMENT, AlchemyInjectorFactory.getStage(Environment.Test));
+        assertEquals(Stage.DEVELOPMENT, AlchemyInjectorFactory.getStage(Environment.All));
+    }
+
+    /**
+     * Eager singletons should be created in parallel, once, in the order of
+     * their dependencies, with all failures reported together.
+     */
+    @Test
+    public void testWarmUp() {
+        final AlchemyInjectorFactory factory =
+                new AlchemyInjectorFactory(new AlchemyModuleLister(), 1, 4);
+        final Module failingToo = new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Integer.class).annotatedWith(Names.named("failingToo")).toProvider(() -> {
+                    throw new IllegalArgumentException("Failing singleton too");
+                }).in(Singleton.class);
+            }
+        };
+        try {
+            factory.create(Stage.PRODUCTION, Arrays.asList(new SlowModule(true), failingToo));
+            fail("Expected creation errors");
+        } catch (final CreationException e) {
+            assertEquals(2, e.getErrorMessages().size());
+            assertTrue(e.getMessage().contains("Failing singleton"));
+            assertTrue(e.getMessage().contains("Failing singleton too"));
+        }
+
+        Slow.created.set(0);
+        Slow.maxCreating.set(0);
+        final Injector injector =
+                factory.create(Stage.PRODUCTION, Arrays.<Module> asList(new SlowModule(false)));
+        // created before create returned, in parallel.
+        assertEquals(8, Slow.created.get());
+        assertTrue(Slow.maxCreating.get() > 1);
+        final Dependent dependent = injector.getInstance(Dependent.class);
+        assertSame(dependent, injector.getInstance(Dependent.class));
+        assertSame(dependent.first,
+                injector.getInstance(Key.get(Slow.class, Names.named("slow0"))));
+        assertSame(dependent.second,
+                injector.getInstance(Key.get(Slow.class, Names.named("slow1"))));
+        assertEquals("provided", injector.getInstance(Key.get(String.class,
+                Names.named("provided"))));
+        assertEquals(8, Slow.created.get());
+
+        // only eager singletons are created in development.
+        Slow.created.set(0);
+        factory.create(Stage.DEVELOPMENT, Arrays.asList(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(Slow.class).annotatedWith(Names.named("lazy")).to(Slow.class).in(
+                        Singleton.class);
+                bind(Slow.class).annotatedWith(Names.named("eager")).to(Slow.class)
+                        .asEagerSingleton();
+            }
+        }));
+        assertEquals(1, Slow.created.get());
+    }
+
+    /**
+     * Singletons reaching each other outside the dependency graph, while
+     * holding other locks, should not deadlock the warm up.
+     */
+    @Test(timeout = 30000)
+    public void testWarmUpContention() {
+        final Injector injector =
+                new AlchemyInjectorFactory(new AlchemyModuleLister(), 1, 2).create(
+                        Stage.PRODUCTION, Arrays.<Module> asList(new AbstractModule() {
+                            @Override
+                            protected void configure() {
+                                bind(LockingFirst.class).asEagerSingleton();
+                                bind(LockingSecond.class).asEagerSingleton();
+                            }
+                        }));
+        assertTrue(injector.getInstance(LockingFirst.class).locked);
+        assertSame(injector.getInstance(LockingFirst.class),
+                injector.getInstance(LockingSecond.class).first);
+    }
+
+    /**
+     * Errors thrown from configure should point back to the module.
+     */
+    @Test
+    public void testErrors() {
+        final List<Module> modules = new ArrayList<>();
+        modules.add(new NamedModule("first"));
+        modules.add(new FailingModule());
+        modules.add(new NamedModule("second"));
+        for (final int parallelism : new int[] { 1, 4 }) {
+            try {
+                new AlchemyInjectorFactory(new AlchemyModuleLister(), parallelism).create(
+                        Stage.DEVELOPMENT, modules);
+                fail("Expected creation errors");
+            } catch (final CreationException e) {
+                assertEquals(1, e.getErrorMessages().size());
+                assertTrue(e.getMessage().contains(FailingModule.class.getName()));
+            }
+        }
+    }
+
+    /**
+     * Binding errors should point back to the binding in the module.
+     */
+    @Test
+    public void testBindingErrors() {
+        final List<Module> modules = new ArrayList<>();
+        modules.add(new NamedModule("duplicate", "one"));
+        modules.add(new NamedModule("unique"));
+        modules.add(new NamedModule("duplicate", "other"));
+        try {
+            new AlchemyInjectorFactory(new AlchemyModuleLister(), 4).create(Stage.DEVELOPMENT,
+                    modules);
+            fail("Expected creation errors");
+        } catch (final CreationException e) {
+            assertEquals(1, e.getErrorMessages().size());
+            assertTrue(e.getMessage().contains(NamedModule.class.getName() + ".configure"));
+        }
+    }
+}
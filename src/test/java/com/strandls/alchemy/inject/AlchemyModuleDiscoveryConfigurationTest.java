@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.inject;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link AlchemyModuleDiscoveryConfiguration}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class AlchemyModuleDiscoveryConfigurationTest {
+    /**
+     * Test reading the configuration.
+     */
+    @Test
+    public void testConfiguration() {
+        // the test configuration file has no discovery section.
+        final AlchemyModuleDiscoveryConfiguration defaults =
+                new AlchemyModuleDiscoveryConfiguration();
+        assertFalse(defaults.isOptIn());
+        assertFalse(defaults.isAllowed("guava-15.0.jar"));
+        assertFalse(defaults.isDenied("guava-15.0.jar"));
+
+        final BaseConfiguration configuration = new BaseConfiguration();
+        configuration.setProperty("Discovery.optIn", "true");
+        configuration.setProperty("Discovery.allow", "myapp-.*\\.jar");
+        configuration.setProperty("Discovery.deny", Arrays.asList("guava-.*", "netty-.*"));
+        final AlchemyModuleDiscoveryConfiguration discovery =
+                new AlchemyModuleDiscoveryConfiguration(configuration);
+        assertTrue(discovery.isOptIn());
+        assertTrue(discovery.isAllowed("myapp-core-1.0.jar"));
+        assertFalse(discovery.isAllowed("myapp-core-1.0.war"));
+        assertTrue(discovery.isDenied("guava-15.0.jar"));
+        assertTrue(discovery.isDenied("netty-all-4.0.jar"));
+        assertFalse(discovery.isDenied("jackson-core-2.4.jar"));
+    }
+}
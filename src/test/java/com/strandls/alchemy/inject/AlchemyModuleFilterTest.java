@@ -82,6 +82,41 @@ public class AlchemyModuleFilterTest {
                 new AlchemyModuleFilter(new HashSet<>(Arrays.asList("(?i).*tofilter.*")));
         assertFalse(filter.apply(new ToFilter()));
         assertTrue(filter.apply(new ToRetain()));
+        // class names can be checked before loading.
+        assertFalse(filter.apply(ToFilter.class.getName()));
+        assertTrue(filter.apply(ToRetain.class.getName()));
+    }
+
+    /**
+     * Test method for
+     * {@link com.strandls.alchemy.inject.AlchemyModuleFilter#apply(String)}
+     * with class names, prefixes and regexes combined.
+     */
+    @Test
+    public void testApplyCompiled() {
+        final AlchemyModuleFilter filter =
+                new AlchemyModuleFilter(Arrays.asList("com.example.Literal", "com.example.sub.*",
+                        "com.example.pre.*", "(?i).*dummy.*", "org\\.example\\.Regex\\d",
+                        "com.strandls.alchemy.inject.AlchemyModuleFilterTest.ToFilter"));
+        // class names.
+        assertFalse(filter.apply("com.example.Literal"));
+        assertTrue(filter.apply("com.example.Literal2"));
+        // nested classes match their canonical name.
+        assertFalse(filter.apply(new ToFilter()));
+        assertTrue(filter.apply(new ToRetain()));
+        // prefixes.
+        assertFalse(filter.apply("com.example.sub.A"));
+        assertFalse(filter.apply("com.example.sub.deep.B"));
+        assertFalse(filter.apply("com.example.previous.C"));
+        assertTrue(filter.apply("com.example.su"));
+        assertTrue(filter.apply("com.example.Other"));
+        // regexes, with their inline flags kept to themselves.
+        assertFalse(filter.apply("com.example.DUMMYModule"));
+        assertFalse(filter.apply("org.example.Regex1"));
+        assertTrue(filter.apply("org.example.RegexA"));
+        assertTrue(filter.apply("ORG.example.Regex1"));
+        // no filters retain everything.
+        assertTrue(new AlchemyModuleFilter(new HashSet<String>()).apply("com.example.Literal"));
     }
 
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.inject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.strandls.alchemy.inject.AlchemyModule.Environment;
+
+/**
+ * Unit tests for {@link AlchemyModuleIndex}. The index for the test classes is
+ * written by the {@link AlchemyModuleIndexProcessor} while compiling the
+ * tests.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class AlchemyModuleIndexTest {
+    /**
+     * Temporary folder for jars.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test method for
+     * {@link com.strandls.alchemy.inject.AlchemyModuleIndex#getTypes(Class, String, Environment)}
+     * .
+     */
+    @Test
+    public void testGetTypes() {
+        final AlchemyModuleIndex index = new AlchemyModuleIndex();
+        assertEquals(
+                ImmutableSet.<Class<?>> of(DummyProdModule.class, DummyAllEnvModule.class),
+                index.getTypes(AlchemyModule.class, "com.strandls.alchemy.inject",
+                        Environment.Prod));
+        assertEquals(
+                ImmutableSet.<Class<?>> of(DummyTestModule.class, DummyAllEnvModule.class),
+                index.getTypes(AlchemyModule.class, "com.strandls.alchemy.inject",
+                        Environment.Test));
+        assertTrue(index.getTypes(AlchemyModule.class, "com.strandls.alchemy.reflect",
+                Environment.All).isEmpty());
+    }
+
+    /**
+     * Test method for
+     * {@link com.strandls.alchemy.inject.AlchemyModuleIndex#getUnindexedUrls(String)}
+     * .
+     */
+    @Test
+    public void testGetUnindexedUrls() {
+        final AlchemyModuleIndex index = new AlchemyModuleIndex();
+        final URL testClasses =
+                AlchemyModuleIndexTest.class.getProtectionDomain().getCodeSource()
+                .getLocation();
+        final List<String> unindexed = new ArrayList<>();
+        for (final URL url : index.getUnindexedUrls(".*")) {
+            unindexed.add(AlchemyModuleIndex.normalize(url.toExternalForm()));
+        }
+        assertFalse(unindexed.isEmpty());
+        assertFalse(unindexed.contains(testClasses.toExternalForm()));
+    }
+
+    /**
+     * Create a jar with a class in the optin package.
+     *
+     * @param name
+     *            the jar name.
+     * @param manifest
+     *            the manifest.
+     * @param resources
+     *            extra resources to add.
+     * @return the jar url.
+     * @throws IOException
+     */
+    private URL createJar(final String name, final Manifest manifest, final String... resources)
+            throws IOException {
+        final File jar = folder.newFile(name);
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest)) {
+            for (final String resource : Lists.asList("optin/", "optin/A.class", resources)) {
+                out.putNextEntry(new JarEntry(resource));
+                out.closeEntry();
+            }
+        }
+        return jar.toURI().toURL();
+    }
+
+    /**
+     * Test method for
+     * {@link com.strandls.alchemy.inject.AlchemyModuleIndex#getScanUrls(String)}
+     * .
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testGetScanUrls() throws IOException {
+        final Manifest optedIn = new Manifest();
+        optedIn.getMainAttributes().putValue(AlchemyModuleIndex.MANIFEST_ATTRIBUTE, "true");
+        final URL manifestJar = createJar("manifest.jar", optedIn);
+        final URL markerJar =
+                createJar("marker.jar", new Manifest(), AlchemyModuleIndex.MARKER_RESOURCE);
+        final URL plainJar = createJar("plain.jar", new Manifest());
+        final URL allowedJar = createJar("allowed.jar", new Manifest());
+        final URL deniedJar = createJar("denied.jar", optedIn);
+
+        final BaseConfiguration configuration = new BaseConfiguration();
+        configuration.setProperty("Discovery.optIn", "true");
+        configuration.setProperty("Discovery.allow", "allowed\\.jar");
+        configuration.setProperty("Discovery.deny", "denied\\.jar");
+        try (URLClassLoader classLoader =
+                new URLClassLoader(new URL[] { manifestJar, markerJar, plainJar, allowedJar,
+                        deniedJar }, null)) {
+            final AlchemyModuleIndex index =
+                    new AlchemyModuleIndex(classLoader, new AlchemyModuleDiscoveryConfiguration(
+                            configuration));
+            final Thread thread = Thread.currentThread();
+            final ClassLoader contextClassLoader = thread.getContextClassLoader();
+            thread.setContextClassLoader(classLoader);
+            final Set<String> scanned = new HashSet<>();
+            try {
+                for (final URL url : index.getScanUrls("optin")) {
+                    scanned.add(AlchemyModuleIndex.normalize(url.toExternalForm()));
+                }
+            } finally {
+                thread.setContextClassLoader(contextClassLoader);
+            }
+            assertEquals(Sets.newHashSet(manifestJar.toExternalForm(),
+                    markerJar.toExternalForm(), allowedJar.toExternalForm()), scanned);
+
+            // without opt in only denied entries are skipped.
+            configuration.setProperty("Discovery.optIn", "false");
+            final AlchemyModuleIndex all =
+                    new AlchemyModuleIndex(classLoader, new AlchemyModuleDiscoveryConfiguration(
+                            configuration));
+            assertTrue(all.isScanned(plainJar.toExternalForm()));
+            assertFalse(all.isScanned(deniedJar.toExternalForm()));
+        }
+    }
+
+    /**
+     * Indexes visible only to the context class loader should be read, for
+     * libraries shared by several web applications.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testContextClassLoader() throws IOException {
+        final File jar = folder.newFile("indexed.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new JarEntry(AlchemyModuleIndex.INDEX_RESOURCE));
+            out.write((AlchemyModuleIndex.HEADER + "\n" + AlchemyModuleIndex.ALCHEMY_MODULE
+                    + "\tcom.example.indexed.IndexedModule\tProd\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        final URL indexJar = jar.toURI().toURL();
+
+        final AlchemyModuleIndex index = new AlchemyModuleIndex();
+        assertTrue(index.getTypeNames(AlchemyModule.class, "com.example.indexed",
+                Environment.Prod).isEmpty());
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[] { indexJar }, null)) {
+            final Thread thread = Thread.currentThread();
+            final ClassLoader contextClassLoader = thread.getContextClassLoader();
+            thread.setContextClassLoader(classLoader);
+            try {
+                assertEquals(Sets.newHashSet("com.example.indexed.IndexedModule"),
+                        index.getTypeNames(AlchemyModule.class, "com.example.indexed",
+                                Environment.Prod));
+            } finally {
+                thread.setContextClassLoader(contextClassLoader);
+            }
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link com.strandls.alchemy.inject.AlchemyModuleIndex#getName(String)}.
+     */
+    @Test
+    public void testGetName() {
+        assertEquals("guava-15.0.jar", AlchemyModuleIndex.getName("file:/lib/guava-15.0.jar"));
+        assertEquals("classes", AlchemyModuleIndex.getName("file:/build/classes/"));
+        assertEquals("lib.jar", AlchemyModuleIndex.getName("file:/app.jar!/BOOT-INF/lib/lib.jar"));
+    }
+
+    /**
+     * Test method for
+     * {@link com.strandls.alchemy.inject.AlchemyModuleIndex#read(java.io.Reader)}
+     * .
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRead() throws IOException {
+        final List<AlchemyModuleIndex.Entry> entries =
+                AlchemyModuleIndex.read(new StringReader(AlchemyModuleIndex.HEADER + "\n"
+                        + "a.Marker\ta.b.Module\tProd,Test\n"));
+        assertEquals(1, entries.size());
+        assertEquals("a.Marker", entries.get(0).getAnnotationName());
+        assertEquals("a.b.Module", entries.get(0).getClassName());
+        assertEquals(new HashSet<>(Arrays.asList("Prod", "Test")), new HashSet<>(entries.get(0)
+                .getEnvironments()));
+    }
+
+    /**
+     * Malformed index should fail to read.
+     *
+     * @throws IOException
+     */
+    @Test(expected = IOException.class)
+    public void testReadMalformed() throws IOException {
+        AlchemyModuleIndex.read(new StringReader("a.Marker a.b.Module\n"));
+    }
+}
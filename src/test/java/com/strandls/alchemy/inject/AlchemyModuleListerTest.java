@@ -17,8 +17,15 @@
 package com.strandls.alchemy.inject;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.junit.Test;
 
@@ -32,6 +39,38 @@ import com.strandls.alchemy.inject.AlchemyModule.Environment;
  *
  */
 public class AlchemyModuleListerTest {
+    /**
+     * Module failing in its constructor.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    public static class FailingModule extends AbstractModule {
+        /**
+         * Fail.
+         */
+        public FailingModule() {
+            throw new IllegalStateException("Failing module");
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see com.google.inject.AbstractModule#configure()
+         */
+        @Override
+        protected void configure() {
+
+        }
+    }
+
+    /**
+     * Another module failing in its constructor.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    public static class OtherFailingModule extends FailingModule {
+    }
 
     /**
      * Test method for
@@ -46,6 +85,78 @@ public class AlchemyModuleListerTest {
         test(lister, Environment.All, 2);
     }
 
+    /**
+     * The returned modules should be materialized and immutable.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        final Collection<Module> modules = new AlchemyModuleLister().getModules(Environment.Test);
+        assertEquals(3, modules.size());
+        modules.clear();
+    }
+
+    /**
+     * Modules instantiated in parallel should be the same, in the same order.
+     */
+    @Test
+    public void testParallelInstantiation() {
+        final List<String> expected = getClassNames(new AlchemyModuleLister(1), Environment.Test);
+        final List<String> sorted = new ArrayList<>(expected);
+        Collections.sort(sorted);
+        assertEquals(sorted, expected);
+        assertEquals(expected, getClassNames(new AlchemyModuleLister(4), Environment.Test));
+        assertEquals(expected, getClassNames(new AlchemyModuleLister(0), Environment.Test));
+    }
+
+    /**
+     * All failures should be reported together.
+     */
+    @Test
+    public void testInstantiationFailures() {
+        for (final int parallelism : new int[] { 1, 4 }) {
+            try {
+                new AlchemyModuleLister(parallelism).instantiate(Arrays.<Class<?>> asList(
+                        FailingModule.class, DummyTestModule.class, OtherFailingModule.class));
+                fail("Expected failures");
+            } catch (final RuntimeException e) {
+                assertTrue(e.getMessage().contains(FailingModule.class.getName()));
+                assertTrue(e.getMessage().contains(OtherFailingModule.class.getName()));
+                assertEquals(IllegalStateException.class, e.getCause().getClass());
+                assertEquals(1, e.getSuppressed().length);
+            }
+        }
+    }
+
+    /**
+     * Get the class names of the modules for an environment.
+     *
+     * @param lister
+     *            the lister.
+     * @param env
+     *            the environment.
+     * @return the module class names in order.
+     */
+    private List<String> getClassNames(final AlchemyModuleLister lister, final Environment env) {
+        final List<String> classNames = new ArrayList<>();
+        for (final Module module : lister.getModules(env)) {
+            classNames.add(module.getClass().getName());
+        }
+        return classNames;
+    }
+
+    /**
+     * Modules should be the same after prewarming.
+     *
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    @Test
+    public void testPrewarm() throws InterruptedException, ExecutionException {
+        final AlchemyModuleLister lister = new AlchemyModuleLister();
+        lister.prewarm(".*").get();
+        test(lister, Environment.Prod, 2);
+    }
+
     /**
      * Test modules for given environment.
      *
@@ -58,7 +169,7 @@ public class AlchemyModuleListerTest {
      */
     private void test(final AlchemyModuleLister lister, final Environment env,
             final int expectedCount) {
-        final Collection<Module> modules = lister.getModules(env);
+        final Collection<Module> modules = new ArrayList<>(lister.getModules(env));
 
         // add environment binding
         modules.add(new AbstractModule() {
@@ -16,21 +16,52 @@
 
 package com.strandls.alchemy.reflect;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
+import org.reflections.util.ClasspathHelper;
 
+import com.google.common.io.ByteStreams;
 import com.google.guiceberry.junit4.GuiceBerryRule;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
 import com.strandls.alchemy.inject.AlchemyModule;
+import com.strandls.alchemy.inject.AlchemyModule.Environment;
+import com.strandls.alchemy.inject.DummyProdModule;
 
 /**
  * Unit tests for {@link CachingJavaTypeQueryHandler}.
@@ -39,6 +70,53 @@ import com.strandls.alchemy.inject.AlchemyModule;
  *
  */
 public class CachingJavaTypeQueryHandlerTest {
+    /**
+     * Defines its own copy of the dummy modules, the way a redeployed web
+     * application defines its own classes.
+     *
+     * @author Ashish Shinde
+     *
+     */
+    private static class RedeployClassLoader extends ClassLoader {
+        /**
+         * Prefix of the classes to define.
+         */
+        private static final String PREFIX = "com.strandls.alchemy.inject.Dummy";
+
+        /**
+         * @param parent
+         *            the parent class loader.
+         */
+        public RedeployClassLoader(final ClassLoader parent) {
+            super(parent);
+        }
+
+        /*
+         * (non-Javadoc)
+         * @see java.lang.ClassLoader#loadClass(java.lang.String, boolean)
+         */
+        @Override
+        protected Class<?> loadClass(final String name, final boolean resolve)
+                throws ClassNotFoundException {
+            if (!name.startsWith(PREFIX)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> klass = findLoadedClass(name);
+                if (klass == null) {
+                    try (InputStream in =
+                            getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                        final byte[] bytes = ByteStreams.toByteArray(in);
+                        klass = defineClass(name, bytes, 0, bytes.length);
+                    } catch (final IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                }
+                return klass;
+            }
+        }
+    }
+
     /**
      * Setup guice berry.
      */
@@ -86,4 +164,465 @@ public class CachingJavaTypeQueryHandlerTest {
         Assert.assertTrue(queryHandler.getTypesAnnotatedWith(UUID.randomUUID().toString(),
                 AlchemyModule.class).isEmpty());
     }
+
+    /**
+     * Queries with different package regexes are answered from the same index
+     * and only return types from the queried packages.
+     */
+    @Test
+    public void testPackageFiltering() {
+        final Set<Class<? extends AbstractModule>> injectModules =
+                queryHandler.getSubTypesOf("com.strandls.alchemy.inject", AbstractModule.class);
+        assertTrue(injectModules.contains(DummyProdModule.class));
+        assertFalse(injectModules.contains(ReflectionModule.class));
+
+        final Set<Class<? extends AbstractModule>> reflectModules =
+                queryHandler.getSubTypesOf("com.strandls.alchemy.reflect", AbstractModule.class);
+        assertTrue(reflectModules.contains(ReflectionModule.class));
+        assertFalse(reflectModules.contains(DummyProdModule.class));
+    }
+
+    /**
+     * Named parameter bindings overridden by a module should configure the
+     * injected handler, which should stay a singleton.
+     */
+    @Test
+    public void testOverrideNamedBindings() {
+        final Injector injector =
+                Guice.createInjector(Modules.override(new ReflectionModule()).with(
+                        new AbstractModule() {
+                            @Override
+                            protected void configure() {
+                                bind(Integer.class).annotatedWith(
+                                        Names.named(CachingJavaTypeQueryHandler.SCAN_PARALLELISM_PARAM))
+                                        .toInstance(1);
+                            }
+                        }));
+        final JavaTypeQueryHandler handler = injector.getInstance(JavaTypeQueryHandler.class);
+        assertSame(handler, injector.getInstance(CachingJavaTypeQueryHandler.class));
+        assertFalse(handler.getTypesAnnotatedWith("com.strandls.alchemy.inject",
+                AlchemyModule.class).isEmpty());
+    }
+
+    /**
+     * Invalid system properties should fall back to the defaults instead of
+     * failing.
+     */
+    @Test
+    public void testFromSystemProperties() {
+        System.setProperty(CachingJavaTypeQueryHandler.CLASS_CACHE_REFRESH_MODE_PARAM, "Bogus");
+        System.setProperty(CachingJavaTypeQueryHandler.SCAN_ENGINE_PARAM, "com.example.NoEngine");
+        try {
+            assertTrue(CachingJavaTypeQueryHandler.createScanEngine() instanceof ReflectionsScanEngine);
+            final CachingJavaTypeQueryHandler handler =
+                    CachingJavaTypeQueryHandler.fromSystemProperties();
+            assertFalse(handler.getTypesAnnotatedWith("com.strandls.alchemy.inject",
+                    AlchemyModule.class).isEmpty());
+        } finally {
+            System.clearProperty(CachingJavaTypeQueryHandler.CLASS_CACHE_REFRESH_MODE_PARAM);
+            System.clearProperty(CachingJavaTypeQueryHandler.SCAN_ENGINE_PARAM);
+        }
+        System.setProperty(CachingJavaTypeQueryHandler.SCAN_ENGINE_PARAM,
+                ClassFileScanEngine.class.getName());
+        try {
+            assertTrue(CachingJavaTypeQueryHandler.createScanEngine() instanceof ClassFileScanEngine);
+        } finally {
+            System.clearProperty(CachingJavaTypeQueryHandler.SCAN_ENGINE_PARAM);
+        }
+    }
+
+    /**
+     * Stale results should be replaced by a background refresh.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRefreshMode() throws InterruptedException {
+        final CachingJavaTypeQueryHandler handler =
+                new CachingJavaTypeQueryHandler(1, 1000, 0, CacheRefreshMode.Refresh, "", 2,
+                        new ReflectionsScanEngine());
+        final Set<Class<?>> first =
+                handler.getTypesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class);
+        Set<Class<?>> refreshed = first;
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (refreshed == first && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            refreshed = handler.getTypesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class);
+        }
+        assertNotSame(first, refreshed);
+        assertEquals(first, refreshed);
+    }
+
+    /**
+     * Results should not expire in never mode.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testNeverMode() throws InterruptedException {
+        final CachingJavaTypeQueryHandler handler =
+                new CachingJavaTypeQueryHandler(1, 1000, 0, CacheRefreshMode.Never, "", 2,
+                        new ReflectionsScanEngine());
+        final Set<Class<?>> first =
+                handler.getTypesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class);
+        Thread.sleep(20);
+        assertSame(first,
+                handler.getTypesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class));
+    }
+
+    /**
+     * Batched queries should match individual queries and populate the
+     * caches.
+     */
+    @Test
+    public void testQuery() {
+        final CachingJavaTypeQueryHandler handler =
+                new CachingJavaTypeQueryHandler(100000, 1000, 0, CacheRefreshMode.Never, "", 2,
+                        new ReflectionsScanEngine());
+        final CachingJavaTypeQueryHandler reference = new CachingJavaTypeQueryHandler(100000, 1000);
+        final TypeQuery modules = TypeQuery.annotatedWith("com.strandls.alchemy", AlchemyModule.class);
+        final TypeQuery subTypes = TypeQuery.subTypesOf("com.strandls", AbstractModule.class);
+        final TypeQuery lists = TypeQuery.subTypesOf(".*", List.class);
+
+        final Map<TypeQuery, Set<Class<?>>> results =
+                handler.query(Arrays.asList(modules, subTypes, lists, modules));
+        assertEquals(3, results.size());
+        assertEquals(reference.getTypesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class),
+                results.get(modules));
+        assertTrue(results.get(subTypes).contains(DummyProdModule.class));
+        assertEquals(reference.getSubTypesOf("com.strandls", AbstractModule.class),
+                results.get(subTypes));
+        assertFalse(results.get(lists).isEmpty());
+
+        // results are cached for individual queries.
+        assertSame(results.get(modules),
+                handler.getTypesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class));
+        assertSame(results.get(subTypes),
+                handler.getSubTypesOf("com.strandls", AbstractModule.class));
+        assertSame(results.get(lists), handler.query(Arrays.asList(lists)).get(lists));
+    }
+
+    /**
+     * Parallel scans should give the same results as sequential scans.
+     */
+    @Test
+    public void testParallelScan() {
+        final CachingJavaTypeQueryHandler sequential =
+                new CachingJavaTypeQueryHandler(100000, 1000, 0, CacheRefreshMode.Expire, "", 1,
+                        new ReflectionsScanEngine());
+        for (final int parallelism : new int[] { 0, 4 }) {
+            final CachingJavaTypeQueryHandler parallel =
+                    new CachingJavaTypeQueryHandler(100000, 1000, 0, CacheRefreshMode.Expire, "",
+                            parallelism, new ReflectionsScanEngine());
+            assertEquals(sequential.getSubTypesOf(".*", List.class),
+                    parallel.getSubTypesOf(".*", List.class));
+            assertEquals(sequential.getTypesAnnotatedWith(".*", AlchemyModule.class),
+                    parallel.getTypesAnnotatedWith(".*", AlchemyModule.class));
+        }
+    }
+
+    /**
+     * Closed handlers should reject prewarming and keep answering queries.
+     */
+    @Test
+    public void testClose() {
+        final CachingJavaTypeQueryHandler handler =
+                new CachingJavaTypeQueryHandler(100000, 1000, 0, CacheRefreshMode.Expire, "", 4,
+                        new ReflectionsScanEngine());
+        handler.close();
+        try {
+            handler.prewarm("com.strandls.alchemy", Collections.singleton(AlchemyModule.class));
+            Assert.fail("Prewarming a closed handler should fail");
+        } catch (final RejectedExecutionException e) {
+            // expected.
+        }
+        assertEquals(queryHandler.getSubTypesOf(".*", List.class),
+                handler.getSubTypesOf(".*", List.class));
+        // closing again is harmless.
+        handler.close();
+    }
+
+    /**
+     * Handles should match the annotated classes and carry the annotation
+     * values.
+     */
+    @Test
+    public void testGetTypeHandlesAnnotatedWith() {
+        final Set<TypeHandle> handles =
+                queryHandler.getTypeHandlesAnnotatedWith("com.strandls.alchemy",
+                        AlchemyModule.class);
+        final Set<Class<?>> classes =
+                queryHandler.getTypesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class);
+        assertEquals(classes.size(), handles.size());
+        for (final TypeHandle handle : handles) {
+            assertTrue(classes.contains(handle.load()));
+        }
+        assertTrue(handles.contains(new TypeHandle(DummyProdModule.class.getName(), Arrays
+                .asList(Environment.Prod.name()))));
+        assertArrayEquals(new Environment[] { Environment.Prod }, new TypeHandle(
+                DummyProdModule.class.getName(), Arrays.asList(Environment.Prod.name()))
+                .getAnnotationValue(Environment.class));
+    }
+
+    /**
+     * Handles found through the context class loader should not be shared
+     * with another context class loader.
+     */
+    @Test
+    public void testGetTypeHandlesPerClassLoader() {
+        final CachingJavaTypeQueryHandler handler = new CachingJavaTypeQueryHandler(100000, 1000);
+        assertFalse(handler.getTypeHandlesAnnotatedWith("com.strandls.alchemy",
+                AlchemyModule.class).isEmpty());
+
+        // a web application that does not see the classpath of this one.
+        final Thread thread = Thread.currentThread();
+        final ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(new URLClassLoader(new URL[0], null));
+        try {
+            assertTrue(handler.getTypeHandlesAnnotatedWith("com.strandls.alchemy",
+                    AlchemyModule.class).isEmpty());
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    /**
+     * A weight bound should limit the number of classes retained across all
+     * cached queries.
+     */
+    @Test
+    public void testMaxWeight() {
+        final int listCount = queryHandler.getSubTypesOf(".*", List.class).size();
+        final int moduleCount =
+                queryHandler.getSubTypesOf("com.strandls", AbstractModule.class).size();
+        // one class short of holding all results.
+        final int maxWeight = moduleCount + 1 + listCount - 1;
+        final CachingJavaTypeQueryHandler handler =
+                new CachingJavaTypeQueryHandler(100000, 1000, maxWeight, CacheRefreshMode.Never,
+                        "", 1, new ReflectionsScanEngine());
+        handler.getSubTypesOf("com.strandls", AbstractModule.class);
+        assertEquals(moduleCount, handler.getClassCacheWeight());
+        // empty results weigh one.
+        handler.getTypesAnnotatedWith(UUID.randomUUID().toString(), AlchemyModule.class);
+        assertEquals(moduleCount + 1, handler.getClassCacheWeight());
+
+        assertEquals(listCount, handler.getSubTypesOf(".*", List.class).size());
+        assertTrue(handler.getClassCacheWeight() > 0);
+        assertTrue(handler.getClassCacheWeight() <= maxWeight);
+    }
+
+    /**
+     * Queries issued while prewarming should join the prewarm scan.
+     *
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    @Test
+    public void testPrewarm() throws InterruptedException, ExecutionException {
+        final ConcurrentMap<String, Integer> scans = new ConcurrentHashMap<>();
+        final ScanEngine scanEngine = new ReflectionsScanEngine();
+        final CachingJavaTypeQueryHandler handler =
+                new CachingJavaTypeQueryHandler(100000, 1000, 0, CacheRefreshMode.Expire, "", 1,
+                        url -> {
+                            scans.merge(url.toString(), 1, Integer::sum);
+                            return scanEngine.scan(url);
+                        });
+        final Future<?> prewarm =
+                handler.prewarm("com.strandls.alchemy", Collections.singleton(AlchemyModule.class));
+        final Set<TypeHandle> handles =
+                handler.getTypeHandlesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class);
+        final Set<Class<?>> classes =
+                handler.getTypesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class);
+        prewarm.get();
+
+        assertSame(handles,
+                handler.getTypeHandlesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class));
+        assertEquals(classes.size(), handles.size());
+        assertFalse(scans.isEmpty());
+        for (final Map.Entry<String, Integer> scan : scans.entrySet()) {
+            assertEquals(scan.getKey(), Integer.valueOf(1), scan.getValue());
+        }
+
+        // urls are supplied in the background.
+        final List<URL> urls = new ArrayList<>(ClasspathHelper.forPackage("com.strandls.alchemy"));
+        final Thread caller = Thread.currentThread();
+        final List<Thread> suppliers = Collections.synchronizedList(new ArrayList<Thread>());
+        handler.prewarm(() -> {
+            suppliers.add(Thread.currentThread());
+            return urls;
+        }, "com.strandls.alchemy", Collections.singleton(AlchemyModule.class)).get();
+        assertEquals(1, suppliers.size());
+        assertNotSame(caller, suppliers.get(0));
+        assertEquals(handles,
+                handler.getTypeHandlesAnnotatedWith(urls, "com.strandls.alchemy",
+                        AlchemyModule.class));
+    }
+
+    /**
+     * Queries for narrower packages should be answered from broader cached
+     * results without scanning, with the results of a fresh query.
+     */
+    @Test
+    public void testNarrow() {
+        final ConcurrentMap<String, Integer> scans = new ConcurrentHashMap<>();
+        final ScanEngine scanEngine = new ReflectionsScanEngine();
+        final CachingJavaTypeQueryHandler handler =
+                new CachingJavaTypeQueryHandler(100000, 1000, 0, CacheRefreshMode.Never, "", 1,
+                        url -> {
+                            scans.merge(url.toString(), 1, Integer::sum);
+                            return scanEngine.scan(url);
+                        });
+        handler.getSubTypesOf("com.strandls", AbstractModule.class);
+        handler.getTypesAnnotatedWith("com.strandls", AlchemyModule.class);
+        final int scanCount = scans.size();
+
+        for (final String packageRegex : Arrays.asList("com.strandls.alchemy",
+                "com.strandls.alchemy.inject", "com.strandls.alchemy.inject.Dummy.*",
+                "com.strandls.alchemy.reflect")) {
+            // fresh handlers, so that reference results are not narrowed.
+            final CachingJavaTypeQueryHandler reference =
+                    new CachingJavaTypeQueryHandler(100000, 1000, 0, CacheRefreshMode.Never, "",
+                            1, scanEngine);
+            assertEquals(packageRegex, reference.getSubTypesOf(packageRegex, AbstractModule.class),
+                    handler.getSubTypesOf(packageRegex, AbstractModule.class));
+            assertEquals(packageRegex,
+                    reference.getTypesAnnotatedWith(packageRegex, AlchemyModule.class),
+                    handler.getTypesAnnotatedWith(packageRegex, AlchemyModule.class));
+        }
+        assertEquals(scanCount, scans.size());
+
+        assertTrue(CachingJavaTypeQueryHandler.covers(".*", "com.strandls"));
+        assertTrue(CachingJavaTypeQueryHandler.covers("com.strandls", "com.strandls.alchemy"));
+        assertTrue(CachingJavaTypeQueryHandler.covers("com.strandls.*", "com.strandls.a.*"));
+        assertFalse(CachingJavaTypeQueryHandler.covers("com.strandls.alchemy", "com.strandls"));
+        assertFalse(CachingJavaTypeQueryHandler.covers("com.strandls", "org.strandls"));
+        assertFalse(CachingJavaTypeQueryHandler.covers("com.strandls.*Module", "com.strandls.a"));
+    }
+
+    /**
+     * Results for live class loaders should survive garbage collections,
+     * results for redeployed class loaders should not pin the class loaders.
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testRedeploy() throws InterruptedException {
+        // scans in parallel so that pool threads are started by redeployed
+        // context class loaders.
+        final CachingJavaTypeQueryHandler handler =
+                new CachingJavaTypeQueryHandler(100000, 1000, 0, CacheRefreshMode.Never, "", 4,
+                        new ReflectionsScanEngine());
+        MemoryPoolMXBean metaspace = null;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                metaspace = pool;
+            }
+        }
+
+        final ClassLoader live = new RedeployClassLoader(getClass().getClassLoader());
+        final WeakReference<Set<Class<? extends AbstractModule>>> liveModules =
+                new WeakReference<>(getModules(handler, live));
+        System.gc();
+        assertSame(liveModules.get(), getModules(handler, live));
+
+        final List<WeakReference<ClassLoader>> classLoaders = new ArrayList<>();
+        long baseline = 0;
+        for (int i = 0; i < 200; i++) {
+            classLoaders.add(redeploy(handler));
+            if (i == 10 && metaspace != null) {
+                System.gc();
+                baseline = metaspace.getUsage().getUsed();
+            }
+        }
+
+        // results are held softly, they go once memory runs low.
+        exhaustHeap();
+        final long deadline = System.currentTimeMillis() + 10000;
+        boolean collected = false;
+        while (!collected && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+            collected = true;
+            for (final WeakReference<ClassLoader> classLoader : classLoaders) {
+                collected &= classLoader.get() == null;
+            }
+        }
+        for (final WeakReference<ClassLoader> classLoader : classLoaders) {
+            assertNull(classLoader.get());
+        }
+        if (metaspace != null) {
+            // 190 leaked copies of the modules and their loaders would take
+            // a few megabytes.
+            assertTrue(metaspace.getUsage().getUsed() - baseline < 1024 * 1024);
+        }
+        // also keeps the handler and the live loader reachable up to here.
+        assertEquals(0, handler.getClassCacheWeight());
+        assertNotNull(live);
+    }
+
+    /**
+     * Allocate until the heap is exhausted, which clears all soft references.
+     */
+    private static void exhaustHeap() {
+        final List<long[]> blocks = new ArrayList<>();
+        try {
+            while (true) {
+                blocks.add(new long[1 << 21]);
+            }
+        } catch (final OutOfMemoryError e) {
+            blocks.clear();
+        }
+    }
+
+    /**
+     * Query for modules with a class loader as the context class loader.
+     *
+     * @param handler
+     *            the query handler.
+     * @param classLoader
+     *            the context class loader.
+     * @return the modules.
+     */
+    private static Set<Class<? extends AbstractModule>> getModules(
+            final CachingJavaTypeQueryHandler handler, final ClassLoader classLoader) {
+        final Thread thread = Thread.currentThread();
+        final ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader);
+        try {
+            return handler.getSubTypesOf("com.strandls.alchemy.inject", AbstractModule.class);
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    /**
+     * Query for modules with a new class loader as the context class loader.
+     *
+     * @param handler
+     *            the query handler.
+     * @return reference to the class loader.
+     */
+    private WeakReference<ClassLoader> redeploy(final CachingJavaTypeQueryHandler handler) {
+        final ClassLoader classLoader = new RedeployClassLoader(getClass().getClassLoader());
+        final Thread thread = Thread.currentThread();
+        final ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(classLoader);
+        try {
+            final Set<Class<? extends AbstractModule>> modules =
+                    handler.getSubTypesOf("com.strandls.alchemy.inject", AbstractModule.class);
+            Class<?> module = null;
+            for (final Class<?> klass : modules) {
+                if (klass.getName().equals(DummyProdModule.class.getName())) {
+                    module = klass;
+                }
+            }
+            assertNotNull(module);
+            assertSame(classLoader, module.getClassLoader());
+            assertSame(modules,
+                    handler.getSubTypesOf("com.strandls.alchemy.inject", AbstractModule.class));
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+        }
+        return new WeakReference<>(classLoader);
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.Collection;
+
+import lombok.extern.slf4j.Slf4j;
+
+import org.junit.Test;
+import org.reflections.util.ClasspathHelper;
+
+import com.google.common.collect.HashMultimap;
+import com.google.inject.AbstractModule;
+import com.strandls.alchemy.inject.AlchemyModule;
+import com.strandls.alchemy.inject.DummyProdModule;
+
+/**
+ * Unit tests for {@link ClassFileScanEngine}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+@Slf4j
+public class ClassFileScanEngineTest {
+    /**
+     * The engine should record the same types as {@link ReflectionsScanEngine}
+     * for every url on the classpath. Also logs the time taken by both.
+     */
+    @Test
+    public void testScan() {
+        final Collection<URL> urls = ClasspathHelper.forClassLoader();
+        final ScanEngine reflectionsEngine = new ReflectionsScanEngine();
+        final ScanEngine classFileEngine = new ClassFileScanEngine();
+        long reflectionsTime = 0;
+        long classFileTime = 0;
+        for (final URL url : urls) {
+            long start = System.nanoTime();
+            final ScannedTypes expected = reflectionsEngine.scan(url);
+            reflectionsTime += System.nanoTime() - start;
+            start = System.nanoTime();
+            final ScannedTypes actual = classFileEngine.scan(url);
+            classFileTime += System.nanoTime() - start;
+
+            assertEquals(url.toString(), HashMultimap.create(expected.getSubTypes()),
+                    HashMultimap.create(actual.getSubTypes()));
+            assertEquals(url.toString(), HashMultimap.create(expected.getAnnotatedTypes()),
+                    HashMultimap.create(actual.getAnnotatedTypes()));
+        }
+        log.info("Scanned {} urls, reflections {} ms, class file {} ms", urls.size(),
+                reflectionsTime / 1000000, classFileTime / 1000000);
+    }
+
+    /**
+     * Queries through the engine should find modules.
+     */
+    @Test
+    public void testQueryHandler() {
+        final CachingJavaTypeQueryHandler handler =
+                new CachingJavaTypeQueryHandler(100000, 1000, 0, CacheRefreshMode.Expire, "", 2,
+                        new ClassFileScanEngine());
+        assertTrue(handler.getTypesAnnotatedWith("com.strandls.alchemy", AlchemyModule.class)
+                .contains(DummyProdModule.class));
+        assertTrue(handler.getSubTypesOf("com.strandls", AbstractModule.class).contains(
+                DummyProdModule.class));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.sun.management.ThreadMXBean;
+import com.google.inject.AbstractModule;
+import com.strandls.alchemy.inject.AlchemyModule;
+import com.strandls.alchemy.inject.AlchemyModule.Environment;
+import com.strandls.alchemy.inject.DummyProdModule;
+
+/**
+ * Unit tests for {@link ClassFileSummary}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class ClassFileSummaryTest {
+    /**
+     * A class without super types or annotations.
+     */
+    private static class Plain {
+        @SuppressWarnings("unused")
+        private final long value = 1L;
+    }
+
+    /**
+     * A class with interfaces and a runtime visible annotation.
+     */
+    @Deprecated
+    private static class WithInterfaces implements Runnable, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void run() {
+        }
+    }
+
+    /**
+     * Read the bytes of a class file.
+     *
+     * @param type
+     *            the class.
+     * @return the class file bytes.
+     * @throws IOException
+     */
+    private byte[] getBytes(final Class<?> type) throws IOException {
+        try (InputStream inputStream =
+                type.getResourceAsStream("/" + type.getName().replace('.', '/') + ".class")) {
+            return ByteStreams.toByteArray(inputStream);
+        }
+    }
+
+    /**
+     * Test reading summaries.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testRead() throws IOException {
+        final ClassFileSummary module = ClassFileSummary.read(getBytes(DummyProdModule.class));
+        assertEquals(DummyProdModule.class.getName(), module.getClassName());
+        assertEquals(AbstractModule.class.getName(), module.getSuperclassName());
+        assertTrue(module.hasSuperTypes());
+        assertTrue(module.isAnnotated());
+
+        final ClassFileSummary plain = ClassFileSummary.read(getBytes(Plain.class));
+        assertEquals(Plain.class.getName(), plain.getClassName());
+        assertFalse(plain.hasSuperTypes());
+        assertFalse(plain.isAnnotated());
+
+        final ClassFileSummary withInterfaces =
+                ClassFileSummary.read(getBytes(WithInterfaces.class));
+        assertEquals(Arrays.asList(Runnable.class.getName(), Serializable.class.getName()),
+                withInterfaces.getInterfaceNames());
+        assertTrue(withInterfaces.hasSuperTypes());
+        assertTrue(withInterfaces.isAnnotated());
+
+        assertNull(ClassFileSummary.read(getBytes(Object.class)).getSuperclassName());
+    }
+
+    /**
+     * Test the class name and path consistency check.
+     */
+    @Test
+    public void testIsClassPath() {
+        assertTrue(ClassFileSummary.isClassPath("a.b.C", "a/b/C.class"));
+        assertTrue(ClassFileSummary.isClassPath("a.b.C$D", "a/b/C$D.class"));
+        assertTrue(ClassFileSummary.isClassPath("C", "C.class"));
+        assertFalse(ClassFileSummary.isClassPath("a.b.C", "a/b/D.class"));
+        assertFalse(ClassFileSummary.isClassPath("a.b.C", "x/a/b/C.class"));
+        assertFalse(ClassFileSummary.isClassPath("a.b.C", "a.b.C.class"));
+        assertFalse(ClassFileSummary.isClassPath("a.b.C", "a/b/C.clas"));
+    }
+
+    /**
+     * Test reading flags, which should not allocate.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testReadFlags() throws IOException {
+        final ClassFileSummary.Buffers buffers = new ClassFileSummary.Buffers();
+        assertEquals(ClassFileSummary.HAS_SUPER_TYPES | ClassFileSummary.ANNOTATED,
+                ClassFileSummary.readFlags(ByteBuffer.wrap(getBytes(DummyProdModule.class)),
+                        buffers));
+        assertEquals(0, ClassFileSummary.readFlags(ByteBuffer.wrap(getBytes(Plain.class)),
+                buffers));
+        assertEquals(0, ClassFileSummary.readFlags(ByteBuffer.wrap(getBytes(Object.class)),
+                buffers));
+        // trailing bytes, as in a reused buffer, are ignored.
+        final byte[] bytes = getBytes(WithInterfaces.class);
+        final ByteBuffer padded = ByteBuffer.wrap(Arrays.copyOf(bytes, 2 * bytes.length));
+        assertEquals(ClassFileSummary.HAS_SUPER_TYPES | ClassFileSummary.ANNOTATED,
+                ClassFileSummary.readFlags(padded, buffers));
+
+        final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10000; i++) {
+            ClassFileSummary.readFlags(padded, buffers);
+        }
+        // allows for the measurement itself.
+        assertTrue(threadBean.getThreadAllocatedBytes(threadId) - before < 1024);
+    }
+
+    /**
+     * Test reading class annotation names.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testReadAnnotations() throws IOException {
+        assertTrue(ClassFileSummary.read(getBytes(DummyProdModule.class)).getAnnotationNames()
+                .isEmpty());
+        assertEquals(Arrays.asList(AlchemyModule.class.getName()),
+                ClassFileSummary.read(getBytes(DummyProdModule.class), true).getAnnotationNames());
+        assertEquals(Arrays.asList(Deprecated.class.getName()),
+                ClassFileSummary.read(getBytes(WithInterfaces.class), true).getAnnotationNames());
+        assertTrue(ClassFileSummary.read(getBytes(Plain.class), true).getAnnotationNames()
+                .isEmpty());
+    }
+
+    /**
+     * Class files should be read in place from a slice of a larger buffer.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testReadSlice() throws IOException {
+        final byte[] bytes = getBytes(DummyProdModule.class);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 10);
+        buffer.position(10);
+        buffer.put(bytes);
+        buffer.position(10);
+        final ClassFileSummary summary = ClassFileSummary.read(buffer.slice(), true);
+        assertEquals(DummyProdModule.class.getName(), summary.getClassName());
+        assertEquals(Arrays.asList(AlchemyModule.class.getName()), summary.getAnnotationNames());
+    }
+
+    /**
+     * Truncated class files should be rejected.
+     *
+     * @throws IOException
+     */
+    @Test(expected = IOException.class)
+    public void testReadTruncated() throws IOException {
+        final byte[] bytes = getBytes(DummyProdModule.class);
+        ClassFileSummary.read(Arrays.copyOf(bytes, bytes.length / 4));
+    }
+
+    /**
+     * Test reading enum values of class annotations.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testReadAnnotationValues() throws IOException {
+        assertEquals(Collections.singletonMap(AlchemyModule.class.getName(),
+                Arrays.asList(Environment.Prod.name())),
+                ClassFileSummary.readAnnotationValues(getBytes(DummyProdModule.class)));
+        // annotations without a value element have an empty value.
+        assertEquals(Collections.singletonMap(Deprecated.class.getName(),
+                Collections.emptyList()),
+                ClassFileSummary.readAnnotationValues(getBytes(WithInterfaces.class)));
+    }
+}
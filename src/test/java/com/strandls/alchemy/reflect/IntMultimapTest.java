@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link IntMultimap}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class IntMultimapTest {
+    /**
+     * Values should be grouped by key, sorted and distinct.
+     */
+    @Test
+    public void testBuild() {
+        final IntMultimap.Builder builder = new IntMultimap.Builder();
+        for (int i = 40; i > 0; i--) {
+            builder.put(i % 3, i).put(i % 3, i);
+        }
+        final IntMultimap multimap = builder.put(4, 7).build(5);
+        assertEquals(5, multimap.keyCount());
+        assertEquals(41, multimap.size());
+        for (int key = 0; key < 3; key++) {
+            for (int i = multimap.start(key); i < multimap.end(key); i++) {
+                assertEquals(key, multimap.value(i) % 3);
+                assertTrue(i == multimap.start(key) || multimap.value(i - 1) < multimap.value(i));
+            }
+        }
+        assertEquals(0, multimap.size(3));
+        assertEquals(1, multimap.size(4));
+        assertTrue(multimap.containsEntry(1, 40));
+        assertTrue(multimap.containsEntry(4, 7));
+        assertFalse(multimap.containsEntry(0, 40));
+        assertFalse(multimap.containsEntry(3, 7));
+        assertEquals(2 * 16 + 4 * 6 + 4 * 41, multimap.getByteSize());
+    }
+}
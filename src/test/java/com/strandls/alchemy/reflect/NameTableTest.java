@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.reflections.util.FilterBuilder;
+
+/**
+ * Unit tests for {@link NameTable}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class NameTableTest {
+    /**
+     * Names should be interned with ids in insertion order.
+     */
+    @Test
+    public void testAdd() {
+        final NameTable table = new NameTable();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, table.add("com.example.Type" + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, table.add("com.example.Type" + i));
+            assertEquals(i, table.find("com.example.Type" + i));
+            assertEquals("com.example.Type" + i, table.get(i));
+        }
+        assertEquals(1000, table.size());
+        assertEquals(-1, table.find("com.example.Type1000"));
+
+        final NameTable other = new NameTable();
+        other.add("com.example.Other");
+        other.add("com.example.Type7");
+        assertEquals(1000, table.add(other, 0));
+        assertEquals(7, table.add(other, 1));
+        assertEquals("com.example.Other", table.get(1000));
+    }
+
+    /**
+     * Matching should work for ASCII and non ASCII names.
+     */
+    @Test
+    public void testMatches() {
+        final NameTable table = new NameTable();
+        table.add("com.example.Type");
+        final Pattern pattern = Pattern.compile(FilterBuilder.prefix("com.example"));
+        final Pattern classPattern = Pattern.compile("com\\.example\\.Type\\.class");
+        assertTrue(table.matches(0, ".class", pattern));
+        assertTrue(table.matches(0, ".class", classPattern));
+        assertFalse(table.matches(0, "", classPattern));
+
+        table.add("com.example.T\u00e9");
+        assertEquals(1, table.find("com.example.T\u00e9"));
+        assertEquals("com.example.T\u00e9", table.get(1));
+        assertTrue(table.matches(1, ".class", pattern));
+        assertTrue(table.matches(0, ".class", classPattern));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link PackageTrie}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class PackageTrieTest {
+    /**
+     * Test literal prefixes of package regexes.
+     */
+    @Test
+    public void testGetLiteralPrefix() {
+        assertEquals("com.strandls.alchemy", PackageTrie.getLiteralPrefix("com.strandls.alchemy"));
+        assertEquals("com.strandls.", PackageTrie.getLiteralPrefix("com.strandls.(inject)"));
+        assertEquals("com.strandl", PackageTrie.getLiteralPrefix("com.strandls?"));
+        assertEquals("com.strandls", PackageTrie.getLiteralPrefix("com.strandls+"));
+        assertEquals("com.", PackageTrie.getLiteralPrefix("com.[a-z]+"));
+        assertEquals("", PackageTrie.getLiteralPrefix(".*"));
+        assertEquals("", PackageTrie.getLiteralPrefix("com.a|org.b"));
+    }
+
+    /**
+     * Test matching class name prefixes against packages.
+     */
+    @Test
+    public void testMayContain() {
+        final PackageTrie trie =
+                PackageTrie.of(Arrays.asList("com.strandls.alchemy.inject",
+                        "com.strandls.alchemy.reflect", "org.example"));
+        assertTrue(trie.mayContain("com.strandls"));
+        assertTrue(trie.mayContain("com.strand"));
+        assertTrue(trie.mayContain("com.strandls.alchemy.inject.AlchemyModule"));
+        assertTrue(trie.mayContain("com.strandls.alchemy.re"));
+        assertTrue(trie.mayContain("org.example.Foo"));
+        assertFalse(trie.mayContain("com.mycorp"));
+        assertFalse(trie.mayContain("com.strandls.alchemy.json"));
+        assertFalse(trie.mayContain("com.strandls.alchemy.inject.json.AlchemyJsonModule"));
+        // com.strandls has no classes of its own.
+        assertFalse(trie.mayContain("com.strandls.Foo"));
+        assertFalse(trie.mayContain("net"));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+
+import org.junit.Test;
+import org.reflections.util.ClasspathHelper;
+import org.reflections.vfs.Vfs;
+
+import com.google.common.collect.Multimap;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Unit tests for {@link ReflectionsScanEngine}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class ReflectionsScanEngineTest {
+    /**
+     * Bytes the scan may allocate per class file. Parsing classes with super
+     * types or annotations dominates, a scan allocated about 47 KB per class
+     * of the jar below before the path check and class file reads stopped
+     * allocating, and about 30 KB after.
+     */
+    private static final long MAX_BYTES_PER_CLASS = 36 * 1024;
+
+    /**
+     * Guards the bytes allocated per scanned class.
+     */
+    @Test
+    public void testAllocation() {
+        final URL url = ClasspathHelper.forClass(Multimap.class);
+        int classCount = 0;
+        for (final Vfs.File file : Vfs.fromURL(url).getFiles()) {
+            if (file.getName().endsWith(".class")) {
+                classCount++;
+            }
+        }
+
+        final ReflectionsScanEngine engine = new ReflectionsScanEngine();
+        // warm up.
+        assertFalse(engine.scan(url).getSubTypes().isEmpty());
+
+        final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        engine.scan(url);
+        final long bytesPerClass =
+                (threadBean.getThreadAllocatedBytes(threadId) - before) / classCount;
+        assertTrue(bytesPerClass + " bytes per class", bytesPerClass < MAX_BYTES_PER_CLASS);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.inject.AbstractModule;
+import com.strandls.alchemy.inject.AlchemyModule;
+
+/**
+ * Unit tests for {@link ScanCache}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class ScanCacheTest {
+    /**
+     * Temporary folder for cache files and classpath entries.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Unchanged urls should be served from the cache file, changed urls
+     * should be rescanned.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testGet() throws IOException {
+        final File cacheFile = new File(folder.getRoot(), "scan.cache");
+        final File classes = folder.newFolder("classes");
+        Files.write(new File(classes, "A.class").toPath(), new byte[] { 1, 2, 3 });
+        final URL url = classes.toURI().toURL();
+
+        final AtomicInteger scans = new AtomicInteger();
+        final Function<URL, ScannedTypes> scanner = input -> {
+            scans.incrementAndGet();
+            final Multimap<String, String> subTypes = HashMultimap.create();
+            subTypes.put("java.util.List", "a.MyList");
+            final Multimap<String, String> annotatedTypes = HashMultimap.create();
+            annotatedTypes.put("a.Marker", "a.MyList");
+            return new ScannedTypes(subTypes, annotatedTypes);
+        };
+
+        final ScanCache cache = new ScanCache(cacheFile);
+        cache.get(url, scanner);
+        cache.save();
+        assertEquals(1, scans.get());
+        assertTrue(cacheFile.isFile());
+
+        // a fresh cache reads the file and does not scan.
+        final ScannedTypes cached = new ScanCache(cacheFile).get(url, scanner);
+        assertEquals(1, scans.get());
+        assertEquals(HashMultimap.create(scanner.apply(url).getSubTypes()),
+                HashMultimap.create(cached.getSubTypes()));
+        assertEquals(HashMultimap.create(scanner.apply(url).getAnnotatedTypes()),
+                HashMultimap.create(cached.getAnnotatedTypes()));
+        scans.set(1);
+
+        // a changed directory is rescanned.
+        Files.write(new File(classes, "B.class").toPath(), new byte[] { 4, 5 });
+        new ScanCache(cacheFile).get(url, scanner);
+        assertEquals(2, scans.get());
+    }
+
+    /**
+     * Entries for urls that no longer exist should be dropped from the cache
+     * file.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testPrune() throws IOException {
+        final File cacheFile = new File(folder.getRoot(), "prune.cache");
+        final File kept = folder.newFolder("kept");
+        final File removed = folder.newFolder("removed");
+        final Function<URL, ScannedTypes> scanner = input -> {
+            final Multimap<String, String> subTypes = HashMultimap.create();
+            subTypes.put("java.util.List", input.toString());
+            return new ScannedTypes(subTypes, HashMultimap.<String, String> create());
+        };
+
+        final ScanCache cache = new ScanCache(cacheFile);
+        cache.get(kept.toURI().toURL(), scanner);
+        cache.get(removed.toURI().toURL(), scanner);
+        cache.save();
+        final long fullLength = cacheFile.length();
+
+        assertTrue(removed.delete());
+        new ScanCache(cacheFile).save();
+        assertTrue(cacheFile.length() < fullLength);
+
+        // the kept url is still served from the cache file.
+        final AtomicInteger scans = new AtomicInteger();
+        new ScanCache(cacheFile).get(kept.toURI().toURL(), input -> {
+            scans.incrementAndGet();
+            return scanner.apply(input);
+        });
+        assertEquals(0, scans.get());
+    }
+
+    /**
+     * Concurrent requests for the same url should share one scan.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    @Test
+    public void testGetConcurrently() throws IOException, InterruptedException,
+            ExecutionException {
+        final File classes = folder.newFolder("concurrent");
+        final URL url = classes.toURI().toURL();
+        final AtomicInteger scans = new AtomicInteger();
+        final CountDownLatch scanning = new CountDownLatch(1);
+        final CountDownLatch joined = new CountDownLatch(1);
+        final Function<URL, ScannedTypes> scanner = input -> {
+            scans.incrementAndGet();
+            scanning.countDown();
+            try {
+                joined.await();
+            } catch (final InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return new ScannedTypes(HashMultimap.<String, String> create(),
+                    HashMultimap.<String, String> create());
+        };
+
+        final ScanCache cache = new ScanCache(null);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<ScannedTypes> first = executor.submit(() -> cache.get(url, scanner));
+            scanning.await();
+            final Future<ScannedTypes> second = executor.submit(() -> cache.get(url, scanner));
+            // give the second request time to join.
+            Thread.sleep(100);
+            joined.countDown();
+            assertSame(first.get(), second.get());
+            assertEquals(1, scans.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Query results with a persistent cache should match results without one.
+     */
+    @Test
+    public void testQueryHandlerWithScanCache() {
+        final File cacheFile = new File(folder.getRoot(), "handler.cache");
+        final CachingJavaTypeQueryHandler uncached = new CachingJavaTypeQueryHandler(100000, 1000);
+        for (int i = 0; i < 2; i++) {
+            final CachingJavaTypeQueryHandler cached =
+                    new CachingJavaTypeQueryHandler(100000, 1000, 0, CacheRefreshMode.Expire,
+                            cacheFile.getPath(), 4, new ReflectionsScanEngine());
+            assertEquals(uncached.getTypesAnnotatedWith(".*", AlchemyModule.class),
+                    cached.getTypesAnnotatedWith(".*", AlchemyModule.class));
+            assertFalse(cached.getSubTypesOf("com.strandls", AbstractModule.class).isEmpty());
+            assertEquals(uncached.getSubTypesOf("com.strandls", AbstractModule.class),
+                    cached.getSubTypesOf("com.strandls", AbstractModule.class));
+            assertTrue(cacheFile.isFile());
+        }
+    }
+
+    /**
+     * Packages should be listed for directories and jars.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testGetPackages() throws IOException {
+        final File classes = folder.newFolder("packages");
+        new File(classes, "com/example").mkdirs();
+        Files.write(new File(classes, "com/example/A.class").toPath(), new byte[] { 1 });
+        final File jar = new File(folder.getRoot(), "packages.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry("org/example/B.class"));
+            out.closeEntry();
+        }
+
+        final ScanCache cache = new ScanCache(null);
+        final URL classesUrl = classes.toURI().toURL();
+        final PackageTrie directoryPackages = cache.getPackages(classesUrl);
+        assertTrue(directoryPackages.mayContain("com.example.A"));
+        assertFalse(directoryPackages.mayContain("org.example"));
+
+        // directories are listed again, and scanned again once changed.
+        final AtomicInteger scans = new AtomicInteger();
+        final Function<URL, ScannedTypes> scanner = input -> {
+            scans.incrementAndGet();
+            return new ScannedTypes(HashMultimap.<String, String> create(),
+                    HashMultimap.<String, String> create());
+        };
+        cache.get(classesUrl, scanner);
+        new File(classes, "org/sample").mkdirs();
+        Files.write(new File(classes, "org/sample/C.class").toPath(), new byte[] { 2 });
+        assertTrue(cache.getPackages(classesUrl).mayContain("org.sample"));
+        cache.get(classesUrl, scanner);
+        assertEquals(2, scans.get());
+        cache.get(classesUrl, scanner);
+        assertEquals(2, scans.get());
+
+        final PackageTrie jarPackages = cache.getPackages(jar.toURI().toURL());
+        assertTrue(jarPackages.mayContain("org.example"));
+        assertFalse(jarPackages.mayContain("com.example"));
+        assertSame(jarPackages, cache.getPackages(jar.toURI().toURL()));
+        assertNull(cache.getPackages(new URL("http://example.com/remote.jar")));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Unit tests for {@link TypeIndex}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class TypeIndexTest {
+    /**
+     * Create the index over a small hierarchy split across two scans.
+     *
+     * @return the index.
+     */
+    private TypeIndex createIndex() {
+        final Multimap<String, String> subTypes = HashMultimap.create();
+        subTypes.put("a.Base", "a.Middle");
+        subTypes.put("a.Middle", "a.Leaf");
+        subTypes.put("a.Base", "b.Other");
+        final Multimap<String, String> annotatedTypes = HashMultimap.create();
+        annotatedTypes.put("a.Marker", "a.Meta");
+        annotatedTypes.put("a.Meta", "a.Base");
+        annotatedTypes.put("a.Marker", "b.Other");
+
+        final Multimap<String, String> otherSubTypes = HashMultimap.create();
+        otherSubTypes.put("b.Other", "a.Deep");
+        otherSubTypes.put("a.Leaf", "a.Leafier");
+        return new TypeIndex(Arrays.asList(new ScannedTypes(subTypes, annotatedTypes),
+                new ScannedTypes(otherSubTypes, HashMultimap.<String, String> create())));
+    }
+
+    /**
+     * Sub types should be transitive and only traverse matching types.
+     */
+    @Test
+    public void testGetSubTypesOf() {
+        final TypeIndex index = createIndex();
+        assertEquals(new HashSet<>(Arrays.asList("a.Middle", "a.Leaf", "a.Leafier", "b.Other",
+                "a.Deep")), index.getSubTypesOf("a.Base", ".*"));
+        // b.Other is filtered out so a.Deep is not reached.
+        assertEquals(new HashSet<>(Arrays.asList("a.Middle", "a.Leaf", "a.Leafier")),
+                index.getSubTypesOf("a.Base", "a"));
+        assertEquals(Collections.emptySet(), index.getSubTypesOf("a.Leafier", ".*"));
+        assertEquals(Collections.emptySet(), index.getSubTypesOf("a.Unknown", ".*"));
+        // dots are literal.
+        assertEquals(Collections.emptySet(), index.getSubTypesOf("a.Base", "aX"));
+    }
+
+    /**
+     * Annotated types should include meta annotated types and sub types.
+     */
+    @Test
+    public void testGetTypesAnnotatedWith() {
+        final TypeIndex index = createIndex();
+        assertEquals(new HashSet<>(Arrays.asList("a.Meta", "a.Base", "a.Middle", "a.Leaf",
+                "a.Leafier", "b.Other", "a.Deep")), index.getTypesAnnotatedWith("a.Marker", ".*"));
+        assertEquals(new HashSet<>(Arrays.asList("a.Meta", "a.Base", "a.Middle", "a.Leaf",
+                "a.Leafier")), index.getTypesAnnotatedWith("a.Marker", "a"));
+        assertEquals(new HashSet<>(Arrays.asList("b.Other")),
+                index.getTypesAnnotatedWith("a.Marker", "b"));
+        assertTrue(index.isAnnotatedWith("b.Other", "a.Marker"));
+        assertFalse(index.isAnnotatedWith("a.Base", "a.Marker"));
+        assertFalse(index.isAnnotatedWith("a.Unknown", "a.Marker"));
+    }
+
+    /**
+     * Closure memory should be reported.
+     */
+    @Test
+    public void testGetClosureBytes() {
+        final TypeIndex index = createIndex();
+        assertEquals(8, index.getTypeCount());
+        // the starts of 8 keys plus closures of a.Base (5), a.Middle (2),
+        // a.Leaf (1) and b.Other (1).
+        assertEquals(2 * 16 + 4 * (8 + 1) + 4 * (5 + 2 + 1 + 1), index.getClosureBytes());
+        assertTrue(index.getByteSize() > index.getClosureBytes());
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Unit tests for {@link ZipIndex}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class ZipIndexTest {
+    /**
+     * Temporary folder for zip files.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Add an entry to a zip.
+     *
+     * @param out
+     *            the zip.
+     * @param name
+     *            the entry name.
+     * @param bytes
+     *            the contents.
+     * @param method
+     *            the compression method.
+     * @throws IOException
+     */
+    static void putEntry(final ZipOutputStream out, final String name, final byte[] bytes,
+            final int method) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+            entry.setCrc(crc.getValue());
+            entry.setSize(bytes.length);
+            entry.setCompressedSize(bytes.length);
+        }
+        out.putNextEntry(entry);
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    /**
+     * Create a zip with a stored, a deflated and a directory entry.
+     *
+     * @return the zip bytes.
+     * @throws IOException
+     */
+    private byte[] createZip() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            putEntry(out, "a/", new byte[0], ZipEntry.STORED);
+            putEntry(out, "a/stored.txt", "stored".getBytes(StandardCharsets.UTF_8),
+                    ZipEntry.STORED);
+            putEntry(out, "a/deflated.txt", "deflated deflated deflated"
+                    .getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+            out.setComment("comment");
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read an entry to a string.
+     *
+     * @param index
+     *            the index.
+     * @param name
+     *            the entry name.
+     * @return the contents.
+     * @throws IOException
+     */
+    private String read(final ZipIndex index, final String name) throws IOException {
+        try (InputStream in = index.openInputStream(index.getEntry(name))) {
+            return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Test reading entries from a mapped zip file.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testMap() throws IOException {
+        final File file = folder.newFile("test.zip");
+        Files.write(file.toPath(), createZip());
+        final ZipIndex index = ZipIndex.map(file);
+
+        assertEquals(3, index.getEntries().size());
+        assertTrue(index.getEntry("a/").isDirectory());
+        assertNull(index.getEntry("missing"));
+        assertEquals(ZipIndex.STORED, index.getEntry("a/stored.txt").getMethod());
+        assertEquals(ZipIndex.DEFLATED, index.getEntry("a/deflated.txt").getMethod());
+        assertEquals("stored", read(index, "a/stored.txt"));
+        assertEquals("deflated deflated deflated", read(index, "a/deflated.txt"));
+        assertEquals("deflated deflated deflated", StandardCharsets.UTF_8.decode(
+                index.getData(index.getEntry("a/deflated.txt"))).toString());
+    }
+
+    /**
+     * Zips with prepended data, like executable jars with a launch script,
+     * should be read with shifted offsets.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testPrefixed() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write("#!/bin/sh\nexec java -jar \"$0\"\n".getBytes(StandardCharsets.UTF_8));
+        bytes.write(createZip());
+        final ZipIndex index = new ZipIndex(ByteBuffer.wrap(bytes.toByteArray()));
+        assertEquals("stored", read(index, "a/stored.txt"));
+        assertEquals("deflated deflated deflated", read(index, "a/deflated.txt"));
+    }
+
+    /**
+     * Stored zips should be indexed in place.
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testNested() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            putEntry(out, "lib/stored.zip", createZip(), ZipEntry.STORED);
+            putEntry(out, "lib/deflated.zip", createZip(), ZipEntry.DEFLATED);
+        }
+        final ZipIndex index = new ZipIndex(ByteBuffer.wrap(bytes.toByteArray()));
+        for (final String name : new String[] { "lib/stored.zip", "lib/deflated.zip" }) {
+            final ZipIndex nested = index.getNested(index.getEntry(name));
+            assertEquals(3, nested.getEntries().size());
+            assertEquals("stored", read(nested, "a/stored.txt"));
+            assertEquals("deflated deflated deflated", read(nested, "a/deflated.txt"));
+        }
+    }
+
+    /**
+     * Buffers that are not zips should be rejected.
+     *
+     * @throws IOException
+     */
+    @Test(expected = IOException.class)
+    public void testNotZip() throws IOException {
+        new ZipIndex(ByteBuffer.wrap(new byte[100]));
+    }
+}
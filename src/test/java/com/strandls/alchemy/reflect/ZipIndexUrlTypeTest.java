@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 Strand Life Sciences.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.strandls.alchemy.reflect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.reflections.util.ClasspathHelper;
+import org.reflections.vfs.Vfs;
+
+import com.google.common.collect.HashMultimap;
+import com.strandls.alchemy.inject.AlchemyModule;
+import com.strandls.alchemy.inject.DummyProdModule;
+
+/**
+ * Unit tests for {@link ZipIndexUrlType}.
+ *
+ * @author Ashish Shinde
+ *
+ */
+public class ZipIndexUrlTypeTest {
+    /**
+     * Temporary folder for the executable jar.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Add the files of a directory to a zip.
+     *
+     * @param out
+     *            the zip.
+     * @param directory
+     *            the directory.
+     * @param prefix
+     *            the entry name prefix.
+     * @throws IOException
+     */
+    private void putDirectory(final ZipOutputStream out, final Path directory,
+            final String prefix) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (final Path path : (Iterable<Path>) paths.sorted()::iterator) {
+                if (Files.isRegularFile(path)) {
+                    ZipIndexTest.putEntry(out, prefix
+                            + directory.relativize(path).toString().replace(File.separatorChar,
+                                    '/'), Files.readAllBytes(path), ZipEntry.DEFLATED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a jar of a directory.
+     *
+     * @param directory
+     *            the directory.
+     * @return the jar bytes.
+     * @throws IOException
+     */
+    private byte[] createJar(final Path directory) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            putDirectory(out, directory, "");
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Check that a nested url scans the same as the exploded classes.
+     *
+     * @param engine
+     *            the scan engine.
+     * @param url
+     *            the nested url.
+     * @param exploded
+     *            the scan of the exploded classes.
+     */
+    private void assertScan(final ScanEngine engine, final URL url, final ScannedTypes exploded) {
+        final ScannedTypes nested = engine.scan(url);
+        assertEquals(url.toString(), HashMultimap.create(exploded.getSubTypes()),
+                HashMultimap.create(nested.getSubTypes()));
+        assertEquals(url.toString(), HashMultimap.create(exploded.getAnnotatedTypes()),
+                HashMultimap.create(nested.getAnnotatedTypes()));
+    }
+
+    /**
+     * Jars, and jars and classes nested in an executable jar, should scan the
+     * same as the exploded classpath, without extracting anything.
+     *
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    @Test
+    public void testScanNested() throws IOException, URISyntaxException {
+        final Path classes = Paths.get(ClasspathHelper.forClass(DummyProdModule.class).toURI());
+        final File app = folder.newFile("app.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(app))) {
+            putDirectory(out, classes, "BOOT-INF/classes/");
+            final byte[] jar = createJar(classes);
+            ZipIndexTest.putEntry(out, "BOOT-INF/lib/stored.jar", jar, ZipEntry.STORED);
+            ZipIndexTest.putEntry(out, "BOOT-INF/lib/deflated.jar", jar, ZipEntry.DEFLATED);
+        }
+        final String appUrl = "jar:" + app.toURI().toURL() + "!/";
+        final File lib = folder.newFile("lib.jar");
+        Files.write(lib.toPath(), createJar(classes));
+
+        final String temp = System.getProperty("java.io.tmpdir");
+        final int tempFiles = new File(temp).list().length;
+        for (final ScanEngine engine : new ScanEngine[] { new ReflectionsScanEngine(),
+                new ClassFileScanEngine() }) {
+            final ScannedTypes exploded = engine.scan(classes.toUri().toURL());
+            assertTrue(exploded.getAnnotatedTypes().containsEntry(
+                    AlchemyModule.class.getName(), DummyProdModule.class.getName()));
+            assertScan(engine, new URL(appUrl + "BOOT-INF/classes!/"), exploded);
+            assertScan(engine, new URL(appUrl + "BOOT-INF/lib/stored.jar!/"), exploded);
+            assertScan(engine, new URL(appUrl + "BOOT-INF/lib/deflated.jar!/"), exploded);
+            assertScan(engine, lib.toURI().toURL(), exploded);
+            assertScan(engine, new URL("jar:" + lib.toURI().toURL() + "!/"), exploded);
+        }
+        assertEquals(tempFiles, new File(temp).list().length);
+        // the url types are private to the engines.
+        for (final ZipIndexUrlType urlType : ZipIndexUrlType.values()) {
+            assertFalse(Vfs.getDefaultUrlTypes().contains(urlType));
+        }
+    }
+
+    /**
+     * Only urls of or within a local jar should match.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMatches() throws Exception {
+        final File lib = folder.newFile("lib.jar");
+        assertTrue(ZipIndexUrlType.Jar.matches(lib.toURI().toURL()));
+        assertTrue(ZipIndexUrlType.Jar.matches(new URL("jar:" + lib.toURI().toURL() + "!/")));
+        assertFalse(ZipIndexUrlType.Jar.matches(folder.getRoot().toURI().toURL()));
+        assertFalse(ZipIndexUrlType.Jar.matches(new URL("jar:" + lib.toURI().toURL()
+                + "!/BOOT-INF/classes!/")));
+
+        assertTrue(ZipIndexUrlType.NestedJar.matches(new URL(
+                "jar:file:/app.jar!/BOOT-INF/lib/lib.jar!/")));
+        assertTrue(ZipIndexUrlType.NestedJar.matches(new URL(
+                "jar:file:/app.jar!/BOOT-INF/classes!/")));
+        assertFalse(ZipIndexUrlType.NestedJar.matches(new URL("jar:file:/app.jar!/")));
+        assertFalse(ZipIndexUrlType.NestedJar.matches(new URL("file:/app.jar")));
+        assertFalse(ZipIndexUrlType.NestedJar.matches(new URL(
+                "jar:http://host/app.jar!/BOOT-INF/classes!/")));
+    }
+}